@@ -0,0 +1,427 @@
+package com.mauriciogiordano.easydb.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a ModelSerializer for every class with fields annotated with...
+ * Model.ModelField, so the library can read and write them without reflection.
+ *
+ * Fields are accessed directly when they are not private and through their...
+ * getter (getX/isX) and setter (setX) otherwise. Classes that can not be...
+ * handled that way are skipped with a warning and keep using reflection.
+ */
+@SupportedAnnotationTypes(ModelFieldProcessor.MODEL_FIELD)
+public class ModelFieldProcessor extends AbstractProcessor {
+
+    static final String MODEL = "com.mauriciogiordano.easydb.bean.Model";
+    static final String MODEL_FIELD = MODEL + ".ModelField";
+    static final String INDEXED = MODEL + ".Indexed";
+    static final String SERIALIZER = "com.mauriciogiordano.easydb.bean.ModelSerializer";
+    static final String SERIALIZER_SUFFIX = "$$ModelSerializer";
+
+    /**
+     * A stored field and how to reach it.
+     */
+    private static class StoredField {
+        String name;
+        String kind;
+        String type;
+        String getter;
+        String setter;
+        boolean indexed;
+        boolean ordered;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement modelField = processingEnv.getElementUtils().getTypeElement(MODEL_FIELD);
+
+        if (modelField == null) {
+            return false;
+        }
+
+        Set<TypeElement> classes = new LinkedHashSet<>();
+
+        for (Element element : roundEnv.getElementsAnnotatedWith(modelField)) {
+            if (element.getKind() == ElementKind.FIELD) {
+                classes.add((TypeElement) element.getEnclosingElement());
+            }
+        }
+
+        for (TypeElement clazz : classes) {
+            List<StoredField> fields = evaluate(clazz, modelField);
+
+            if (fields != null) {
+                generate(clazz, fields);
+            }
+        }
+
+        return false;
+    }
+
+    private void warn(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                message + ", falling back to reflection.", element);
+    }
+
+    /**
+     * Resolves every stored field of a class.
+     *
+     * @return The fields or null if the class can not have a generated serializer.
+     */
+    private List<StoredField> evaluate(TypeElement clazz, TypeElement modelField) {
+        Set<Modifier> modifiers = clazz.getModifiers();
+
+        if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.ABSTRACT)
+                || !clazz.getTypeParameters().isEmpty()
+                || (clazz.getNestingKind() == NestingKind.MEMBER && !modifiers.contains(Modifier.STATIC))
+                || clazz.getNestingKind() == NestingKind.LOCAL
+                || clazz.getNestingKind() == NestingKind.ANONYMOUS) {
+            warn(clazz, "Can not instantiate " + clazz.getSimpleName());
+            return null;
+        }
+
+        boolean hasConstructor = false;
+
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(clazz.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty()
+                    && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                hasConstructor = true;
+            }
+        }
+
+        if (!hasConstructor) {
+            warn(clazz, clazz.getSimpleName() + " has no empty constructor");
+            return null;
+        }
+
+        Map<String, ExecutableElement> methods = new LinkedHashMap<>();
+
+        for (ExecutableElement method : ElementFilter.methodsIn(clazz.getEnclosedElements())) {
+            if (!method.getModifiers().contains(Modifier.PRIVATE)
+                    && !method.getModifiers().contains(Modifier.STATIC)) {
+                methods.put(method.getSimpleName() + "/" + method.getParameters().size(), method);
+            }
+        }
+
+        List<StoredField> fields = new ArrayList<>();
+
+        for (VariableElement field : ElementFilter.fieldsIn(clazz.getEnclosedElements())) {
+            boolean annotated = false;
+            AnnotationMirror index = null;
+
+            for (AnnotationMirror annotation : field.getAnnotationMirrors()) {
+                Element type = annotation.getAnnotationType().asElement();
+
+                if (type.equals(modelField)) {
+                    annotated = true;
+                } else if (((TypeElement) type).getQualifiedName().contentEquals(INDEXED)) {
+                    index = annotation;
+                }
+            }
+
+            if (!annotated) continue;
+
+            StoredField stored = new StoredField();
+            stored.name = field.getSimpleName().toString();
+            stored.kind = toFieldKind(field.asType());
+            stored.type = processingEnv.getTypeUtils().erasure(field.asType()).toString();
+            stored.indexed = index != null;
+            stored.ordered = index != null && isOrdered(index);
+
+            // Left to the runtime evaluation, which throws when the class is used.
+            if (stored.kind == null) {
+                warn(field, "Field '" + stored.name + "' has type '" + field.asType() + "' that is not allowed");
+                return null;
+            }
+
+            if (stored.indexed && stored.kind.equals("LIST")) {
+                warn(field, "Field '" + stored.name + "' is a list and can't be indexed");
+                return null;
+            }
+
+            if (field.getModifiers().contains(Modifier.FINAL)) {
+                warn(field, "Field '" + stored.name + "' is final");
+                return null;
+            }
+
+            if (!field.getModifiers().contains(Modifier.PRIVATE)) {
+                stored.getter = "object." + stored.name;
+                stored.setter = "object." + stored.name + " = %s";
+            } else {
+                String capitalized = Character.toUpperCase(stored.name.charAt(0)) + stored.name.substring(1);
+
+                ExecutableElement getter = methods.get("get" + capitalized + "/0");
+
+                if (getter == null && stored.kind.equals("BOOLEAN")) {
+                    getter = methods.get("is" + capitalized + "/0");
+                }
+
+                ExecutableElement setter = methods.get("set" + capitalized + "/1");
+
+                Types types = processingEnv.getTypeUtils();
+
+                if (getter == null || setter == null
+                        || !types.isSameType(getter.getReturnType(), field.asType())
+                        || !types.isSameType(setter.getParameters().get(0).asType(), field.asType())) {
+                    warn(field, "Field '" + stored.name + "' is private and has no getter/setter");
+                    return null;
+                }
+
+                stored.getter = "object." + getter.getSimpleName() + "()";
+                stored.setter = "object." + setter.getSimpleName() + "(%s)";
+            }
+
+            fields.add(stored);
+        }
+
+        return fields;
+    }
+
+    /**
+     * @return The value of ordered() of an Indexed annotation, defaults included.
+     */
+    private boolean isOrdered(AnnotationMirror index) {
+        Map<? extends ExecutableElement, ? extends AnnotationValue> values =
+                processingEnv.getElementUtils().getElementValuesWithDefaults(index);
+
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value : values.entrySet()) {
+            if (value.getKey().getSimpleName().contentEquals("ordered")) {
+                return Boolean.TRUE.equals(value.getValue().getValue());
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Same rules as the library's runtime evaluation.
+     *
+     * @return The name of the Model.Fields constant or null if not allowed.
+     */
+    private String toFieldKind(TypeMirror type) {
+        Types types = processingEnv.getTypeUtils();
+        Elements elements = processingEnv.getElementUtils();
+
+        TypeMirror unboxed = type;
+
+        if (type.getKind() == TypeKind.DECLARED) {
+            try {
+                unboxed = types.unboxedType(type);
+            } catch (IllegalArgumentException e) {
+                unboxed = type;
+            }
+        }
+
+        switch (unboxed.getKind()) {
+            case INT: return "INT";
+            case LONG: return "LONG";
+            case FLOAT: return "FLOAT";
+            case DOUBLE: return "DOUBLE";
+            case BOOLEAN: return "BOOLEAN";
+            default: break;
+        }
+
+        if (type.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+
+        TypeMirror string = elements.getTypeElement("java.lang.String").asType();
+        TypeMirror charSequence = elements.getTypeElement("java.lang.CharSequence").asType();
+        TypeMirror list = types.erasure(elements.getTypeElement("java.util.List").asType());
+
+        if (types.isAssignable(type, charSequence) && types.isAssignable(string, type)) {
+            return "STRING";
+        }
+
+        if (types.isSameType(types.erasure(type), list)) {
+            List<? extends TypeMirror> arguments = ((DeclaredType) type).getTypeArguments();
+
+            if (arguments.size() == 1 && types.isSameType(arguments.get(0), string)) {
+                return "LIST";
+            }
+        }
+
+        return null;
+    }
+
+    private void generate(TypeElement clazz, List<StoredField> fields) {
+        Elements elements = processingEnv.getElementUtils();
+
+        String packageName = elements.getPackageOf(clazz).getQualifiedName().toString();
+        String binaryName = elements.getBinaryName(clazz).toString();
+        String simpleName = binaryName.substring(packageName.isEmpty() ? 0 : packageName.length() + 1)
+                + SERIALIZER_SUFFIX;
+        String type = clazz.getQualifiedName().toString();
+
+        StringBuilder source = new StringBuilder();
+
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+
+        source.append("/**\n * Generated by easydb, do not edit.\n */\n");
+        source.append("@SuppressWarnings(\"unchecked\")\n");
+        source.append("public final class ").append(simpleName)
+                .append(" implements ").append(SERIALIZER).append("<").append(type).append("> {\n\n");
+
+        source.append("    private static final String[] NAMES = {");
+        for (int i = 0; i < fields.size(); i++) {
+            source.append(i == 0 ? "" : ", ").append('"').append(fields.get(i).name).append('"');
+        }
+        source.append("};\n\n");
+
+        source.append("    private static final ").append(MODEL).append(".Fields[] KINDS = {");
+        for (int i = 0; i < fields.size(); i++) {
+            source.append(i == 0 ? "" : ", ").append(MODEL).append(".Fields.").append(fields.get(i).kind);
+        }
+        source.append("};\n\n");
+
+        source.append("    private static final boolean[] INDEXED = {");
+        for (int i = 0; i < fields.size(); i++) {
+            source.append(i == 0 ? "" : ", ").append(fields.get(i).indexed);
+        }
+        source.append("};\n\n");
+
+        source.append("    private static final boolean[] ORDERED = {");
+        for (int i = 0; i < fields.size(); i++) {
+            source.append(i == 0 ? "" : ", ").append(fields.get(i).ordered);
+        }
+        source.append("};\n\n");
+
+        source.append("    @Override\n    public ").append(type).append(" newInstance() {\n")
+                .append("        return new ").append(type).append("();\n    }\n\n");
+        source.append("    @Override\n    public String[] getFieldNames() {\n        return NAMES.clone();\n    }\n\n");
+        source.append("    @Override\n    public ").append(MODEL).append(".Fields[] getFieldKinds() {\n")
+                .append("        return KINDS.clone();\n    }\n\n");
+        source.append("    @Override\n    public boolean[] getIndexedFields() {\n        return INDEXED.clone();\n    }\n\n");
+        source.append("    @Override\n    public boolean[] getOrderedFields() {\n        return ORDERED.clone();\n    }\n");
+
+        String[][] accessors = {
+                {"INT", "int", "Int", "0"},
+                {"LONG", "long", "Long", "0L"},
+                {"FLOAT", "float", "Float", "0F"},
+                {"DOUBLE", "double", "Double", "0D"},
+                {"BOOLEAN", "boolean", "Boolean", "false"},
+        };
+
+        for (String[] accessor : accessors) {
+            appendGetter(source, type, fields, accessor[0], null, accessor[1], accessor[2], accessor[3]);
+            appendSetter(source, type, fields, accessor[0], null, accessor[1], accessor[2]);
+        }
+
+        appendGetter(source, type, fields, "STRING", "LIST", "Object", "", null);
+        appendSetter(source, type, fields, "STRING", "LIST", "Object", "");
+
+        source.append("}\n");
+
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                    (packageName.isEmpty() ? "" : packageName + ".") + simpleName, clazz);
+
+            Writer writer = file.openWriter();
+
+            try {
+                writer.write(source.toString());
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Could not generate serializer: " + e.getMessage(), clazz);
+        }
+    }
+
+    private static boolean matches(StoredField field, String kind, String otherKind) {
+        return field.kind.equals(kind) || field.kind.equals(otherKind);
+    }
+
+    private static void appendGetter(StringBuilder source, String type, List<StoredField> fields,
+                                     String kind, String otherKind, String returnType, String suffix,
+                                     String defaultValue) {
+        source.append("\n    @Override\n    public ").append(returnType).append(" get").append(suffix)
+                .append("(").append(type).append(" object, int field) {\n");
+        source.append("        switch (field) {\n");
+
+        for (int i = 0; i < fields.size(); i++) {
+            StoredField field = fields.get(i);
+
+            if (!matches(field, kind, otherKind)) continue;
+
+            source.append("            case ").append(i).append(":");
+
+            if (defaultValue != null && !field.type.equals(returnType)) {
+                // Wrapper type, null is read as the default value.
+                source.append(" {\n                ").append(field.type).append(" value = ")
+                        .append(field.getter).append(";\n")
+                        .append("                return (value == null) ? ").append(defaultValue)
+                        .append(" : value;\n            }\n");
+            } else {
+                source.append("\n                return ").append(field.getter).append(";\n");
+            }
+        }
+
+        source.append("            default:\n")
+                .append("                throw new IllegalArgumentException(\"Not a ")
+                .append(kind.toLowerCase()).append(" field: \" + field);\n");
+        source.append("        }\n    }\n");
+    }
+
+    private static void appendSetter(StringBuilder source, String type, List<StoredField> fields,
+                                     String kind, String otherKind, String valueType, String suffix) {
+        source.append("\n    @Override\n    public void set").append(suffix)
+                .append("(").append(type).append(" object, int field, ").append(valueType).append(" value) {\n");
+        source.append("        switch (field) {\n");
+
+        for (int i = 0; i < fields.size(); i++) {
+            StoredField field = fields.get(i);
+
+            if (!matches(field, kind, otherKind)) continue;
+
+            String value = valueType.equals("Object") ? "(" + field.type + ") value" : "value";
+
+            source.append("            case ").append(i).append(":\n")
+                    .append("                ").append(String.format(field.setter, value)).append(";\n")
+                    .append("                break;\n");
+        }
+
+        source.append("            default:\n")
+                .append("                throw new IllegalArgumentException(\"Not a ")
+                .append(kind.toLowerCase()).append(" field: \" + field);\n");
+        source.append("        }\n    }\n");
+    }
+}
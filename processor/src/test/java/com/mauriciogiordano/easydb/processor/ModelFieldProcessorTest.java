@@ -0,0 +1,204 @@
+package com.mauriciogiordano.easydb.processor;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * Runs the processor on small model classes and checks what it generates.
+ */
+public class ModelFieldProcessorTest extends TestCase {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The serializer interface of the library, generated code is compiled against it.
+     */
+    private static final File SERIALIZER =
+            new File("../src/main/java/com/mauriciogiordano/easydb/bean/ModelSerializer.java");
+
+    /**
+     * Annotations and kinds of the library, enough for the processor.
+     */
+    private static final String MODEL = "package com.mauriciogiordano.easydb.bean;\n"
+            + "public abstract class Model<T> {\n"
+            + "    public static @interface ModelField { }\n"
+            + "    public static @interface Indexed { boolean ordered() default false; }\n"
+            + "    public enum Fields { INT, LONG, FLOAT, DOUBLE, STRING, BOOLEAN, LIST }\n"
+            + "}\n";
+
+    private File directory;
+    private DiagnosticCollector<JavaFileObject> diagnostics;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("processor").toFile();
+        diagnostics = new DiagnosticCollector<>();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    private File write(String path, String source) throws IOException {
+        File file = new File(directory, "src/" + path);
+        file.getParentFile().mkdirs();
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF_8);
+
+        try {
+            writer.write(source);
+        } finally {
+            writer.close();
+        }
+
+        return file;
+    }
+
+    /**
+     * Compiles a class with the processor, generated code included.
+     *
+     * @param source A model class in package test, named Sample.
+     * @return The generated source, null if none.
+     */
+    private String process(String source) throws IOException {
+        List<File> files = Arrays.asList(
+                write("com/mauriciogiordano/easydb/bean/Model.java", MODEL),
+                write("test/Sample.java", source),
+                SERIALIZER);
+
+        File generated = new File(directory, "generated");
+        generated.mkdirs();
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, Locale.ROOT, UTF_8);
+
+        try {
+            fileManager.setLocation(StandardLocation.SOURCE_OUTPUT, Collections.singletonList(generated));
+            fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singletonList(generated));
+
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics,
+                    null, null, fileManager.getJavaFileObjectsFromFiles(files));
+            task.setProcessors(Collections.singletonList(new ModelFieldProcessor()));
+            task.call();
+        } finally {
+            fileManager.close();
+        }
+
+        File file = new File(generated, "test/Sample" + ModelFieldProcessor.SERIALIZER_SUFFIX + ".java");
+
+        return file.exists() ? new String(Files.readAllBytes(file.toPath()), UTF_8) : null;
+    }
+
+    private boolean reported(Diagnostic.Kind kind, String message) {
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == kind && diagnostic.getMessage(Locale.ROOT).contains(message)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public void testGeneratedSerializer() throws IOException {
+        String generated = process("package test;\n"
+                + "import com.mauriciogiordano.easydb.bean.Model;\n"
+                + "import java.util.List;\n"
+                + "public class Sample extends Model<Sample> {\n"
+                + "    @ModelField String id;\n"
+                + "    @ModelField @Indexed String hash;\n"
+                + "    @ModelField @Indexed(ordered = true) long timestamp;\n"
+                + "    @ModelField private Boolean active;\n"
+                + "    @ModelField List<String> tags;\n"
+                + "    public Boolean getActive() { return active; }\n"
+                + "    public void setActive(Boolean active) { this.active = active; }\n"
+                + "}\n");
+
+        assertNotNull("Should be generated!", generated);
+        assertTrue("Should be equal!", generated.contains(
+                "NAMES = {\"id\", \"hash\", \"timestamp\", \"active\", \"tags\"}"));
+        assertTrue("Should be equal!", generated.contains("Fields.LONG, "
+                + ModelFieldProcessor.MODEL + ".Fields.BOOLEAN, " + ModelFieldProcessor.MODEL + ".Fields.LIST}"));
+        assertTrue("Should be equal!", generated.contains("INDEXED = {false, true, true, false, false}"));
+        assertTrue("Should be equal!", generated.contains("ORDERED = {false, false, true, false, false}"));
+        assertTrue("Should use the getter!", generated.contains("object.getActive()"));
+        assertTrue("Should use the setter!", generated.contains("object.setActive(value)"));
+        assertTrue("Should use the field!", generated.contains("object.timestamp = value"));
+        assertTrue("Should cast lists!", generated.contains("object.tags = (java.util.List) value"));
+        assertFalse("Should compile!", reported(Diagnostic.Kind.ERROR, ""));
+    }
+
+    public void testIndexedList() throws IOException {
+        String generated = process("package test;\n"
+                + "import com.mauriciogiordano.easydb.bean.Model;\n"
+                + "import java.util.List;\n"
+                + "public class Sample extends Model<Sample> {\n"
+                + "    @ModelField String id;\n"
+                + "    @ModelField @Indexed List<String> tags;\n"
+                + "}\n");
+
+        assertNull("Should not be generated!", generated);
+        assertTrue("Should warn!", reported(Diagnostic.Kind.WARNING,
+                "Field 'tags' is a list and can't be indexed, falling back to reflection."));
+        assertFalse("Should not report errors!", reported(Diagnostic.Kind.ERROR, ""));
+    }
+
+    public void testNotAllowedType() throws IOException {
+        String generated = process("package test;\n"
+                + "import com.mauriciogiordano.easydb.bean.Model;\n"
+                + "public class Sample extends Model<Sample> {\n"
+                + "    @ModelField String id;\n"
+                + "    @ModelField Object other;\n"
+                + "}\n");
+
+        assertNull("Should not be generated!", generated);
+        assertTrue("Should warn!", reported(Diagnostic.Kind.WARNING,
+                "Field 'other' has type 'java.lang.Object' that is not allowed, falling back to reflection."));
+        assertFalse("Should not report errors!", reported(Diagnostic.Kind.ERROR, ""));
+    }
+
+    public void testFallbackToReflection() throws IOException {
+        String generated = process("package test;\n"
+                + "import com.mauriciogiordano.easydb.bean.Model;\n"
+                + "public class Sample extends Model<Sample> {\n"
+                + "    @ModelField String id;\n"
+                + "    @ModelField private String hash;\n"
+                + "}\n");
+
+        assertNull("Should not be generated!", generated);
+        assertTrue("Should warn!", reported(Diagnostic.Kind.WARNING,
+                "Field 'hash' is private and has no getter/setter, falling back to reflection."));
+        assertFalse("Should not report errors!", reported(Diagnostic.Kind.ERROR, ""));
+    }
+}
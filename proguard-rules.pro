@@ -15,3 +15,15 @@
 #-keepclassmembers class fqcn.of.javascript.interface.for.webview {
 #   public *;
 #}
+
+# Stored fields are read through reflection when no serializer was generated.
+-keepclassmembers class * extends com.mauriciogiordano.easydb.bean.Model {
+    @com.mauriciogiordano.easydb.bean.Model$ModelField <fields>;
+    <init>();
+}
+
+# Generated serializers are loaded by name.
+-keepnames class * extends com.mauriciogiordano.easydb.bean.Model
+-keep class **$$ModelSerializer {
+    <init>();
+}
@@ -0,0 +1,48 @@
+package com.mauriciogiordano.easydb;
+
+import android.content.Context;
+
+import com.mauriciogiordano.easydb.bean.Model;
+
+import java.util.List;
+
+public class Cached extends Model<Cached> {
+
+    @ModelField
+    private String id;
+    @ModelField
+    private String hash;
+
+    public Cached() {
+        super(Cached.class, true);
+    }
+
+    public Cached(Context context) {
+        super(Cached.class, true, context);
+    }
+
+    public static Cached find(String id, Context context) {
+        return (new Cached(context)).find(id);
+    }
+
+    public static List<Cached> findAll(Context context) {
+        return (new Cached(context)).findAll();
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+}
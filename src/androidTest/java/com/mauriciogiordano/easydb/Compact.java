@@ -0,0 +1,86 @@
+package com.mauriciogiordano.easydb;
+
+import android.content.Context;
+
+import com.mauriciogiordano.easydb.bean.Model;
+
+import java.util.List;
+
+@Model.BinaryFormat
+public class Compact extends Model<Compact> {
+
+    @ModelField
+    private String id;
+    @ModelField
+    private int count;
+    @ModelField
+    @Indexed(ordered = true)
+    private long timestamp;
+    @ModelField
+    private double value;
+    @ModelField
+    private boolean active;
+    @ModelField
+    private List<String> tags;
+
+    public Compact() {
+        super(Compact.class, false);
+    }
+
+    public Compact(Context context) {
+        super(Compact.class, false, context);
+    }
+
+    public static Compact find(String id, Context context) {
+        return (new Compact(context)).find(id);
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    public void setValue(double value) {
+        this.value = value;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public void setActive(boolean active) {
+        this.active = active;
+    }
+
+    public List<String> getTags() {
+        return tags;
+    }
+
+    public void setTags(List<String> tags) {
+        this.tags = tags;
+    }
+}
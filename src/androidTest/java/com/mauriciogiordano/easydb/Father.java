@@ -14,6 +14,8 @@ public class Father extends HasManyModel<Father, Child> {
     @ModelField
     private String hash;
 
+    private Cascade cascade = Cascade.NONE;
+
     public Father() {
         super(Father.class, Child.class, false);
     }
@@ -38,4 +40,13 @@ public class Father extends HasManyModel<Father, Child> {
     public void setHash(String hash) {
         this.hash = hash;
     }
+
+    public void setCascade(Cascade cascade) {
+        this.cascade = cascade;
+    }
+
+    @Override
+    protected Cascade getCascade() {
+        return cascade;
+    }
 }
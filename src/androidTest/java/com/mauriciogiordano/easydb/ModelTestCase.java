@@ -1,16 +1,42 @@
 package com.mauriciogiordano.easydb;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.test.ActivityUnitTestCase;
 
+import com.mauriciogiordano.easydb.bean.HasManyModel;
+import com.mauriciogiordano.easydb.bean.LiveQuery;
 import com.mauriciogiordano.easydb.bean.Model;
+import com.mauriciogiordano.easydb.bean.ModelCursor;
+import com.mauriciogiordano.easydb.bean.ModelSnapshot;
+import com.mauriciogiordano.easydb.codec.BinaryStreamWriter;
+import com.mauriciogiordano.easydb.codec.JsonStreamReader;
+import com.mauriciogiordano.easydb.exception.StorageException;
+import com.mauriciogiordano.easydb.storage.LogStorageEngine;
+import com.mauriciogiordano.easydb.storage.MappedStorageEngine;
+import com.mauriciogiordano.easydb.storage.SharedPreferencesStorageEngine;
+import com.mauriciogiordano.easydb.storage.StorageEngine;
+import com.mauriciogiordano.easydb.storage.WriteBehindStorageEngine;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 public class ModelTestCase extends ActivityUnitTestCase<SampleActivity> {
 
@@ -28,14 +54,23 @@ public class ModelTestCase extends ActivityUnitTestCase<SampleActivity> {
                         + "." + Single.class.getName() + "." + "object",
                 Context.MODE_PRIVATE).edit().clear().commit();
        context.getSharedPreferences(Single.class.getPackage().getName()
-                        + "." + Single.class.getName() + "." + "objectList",
+                        + "." + Single.class.getName() + "." + "objectIndex",
+                Context.MODE_PRIVATE).edit().clear().commit();
+       context.getSharedPreferences(Single.class.getPackage().getName()
+                        + "." + Single.class.getName() + "." + "index.hash",
                 Context.MODE_PRIVATE).edit().clear().commit();
 
        context.getSharedPreferences(Father.class.getPackage().getName()
                         + "." + Father.class.getName() + "." + "object",
                 Context.MODE_PRIVATE).edit().clear().commit();
        context.getSharedPreferences(Father.class.getPackage().getName()
-                        + "." + Father.class.getName() + "." + "objectList",
+                        + "." + Father.class.getName() + "." + "objectIndex",
+                Context.MODE_PRIVATE).edit().clear().commit();
+       context.getSharedPreferences(Father.class.getPackage().getName()
+                        + "." + Father.class.getName() + "." + "childParent",
+                Context.MODE_PRIVATE).edit().clear().commit();
+       context.getSharedPreferences(Father.class.getPackage().getName()
+                        + "." + Father.class.getName() + "." + "childIndex",
                 Context.MODE_PRIVATE).edit().clear().commit();
        context.getSharedPreferences(Father.class.getPackage().getName()
                         + "." + Father.class.getName() + "." + "children",
@@ -45,8 +80,39 @@ public class ModelTestCase extends ActivityUnitTestCase<SampleActivity> {
                         + "." + Child.class.getName() + "." + "object",
                 Context.MODE_PRIVATE).edit().clear().commit();
        context.getSharedPreferences(Child.class.getPackage().getName()
-                        + "." + Child.class.getName() + "." + "objectList",
+                        + "." + Child.class.getName() + "." + "objectIndex",
+                Context.MODE_PRIVATE).edit().clear().commit();
+
+       context.getSharedPreferences(Compact.class.getPackage().getName()
+                        + "." + Compact.class.getName() + "." + "object",
+                Context.MODE_PRIVATE).edit().clear().commit();
+       context.getSharedPreferences(Compact.class.getPackage().getName()
+                        + "." + Compact.class.getName() + "." + "objectIndex",
+                Context.MODE_PRIVATE).edit().clear().commit();
+       context.getSharedPreferences(Compact.class.getPackage().getName()
+                        + "." + Compact.class.getName() + "." + "index.timestamp",
+                Context.MODE_PRIVATE).edit().clear().commit();
+
+       context.getSharedPreferences(Cached.class.getPackage().getName()
+                        + "." + Cached.class.getName() + "." + "object",
+                Context.MODE_PRIVATE).edit().clear().commit();
+       context.getSharedPreferences(Cached.class.getPackage().getName()
+                        + "." + Cached.class.getName() + "." + "objectIndex",
+                Context.MODE_PRIVATE).edit().clear().commit();
+
+       context.getSharedPreferences(Pet.class.getPackage().getName()
+                        + "." + Pet.class.getName() + "." + "object",
                 Context.MODE_PRIVATE).edit().clear().commit();
+       context.getSharedPreferences(Pet.class.getPackage().getName()
+                        + "." + Pet.class.getName() + "." + "objectIndex",
+                Context.MODE_PRIVATE).edit().clear().commit();
+
+        Model.reset(Single.class);
+        Model.reset(Cached.class);
+        Model.reset(Father.class);
+        Model.reset(Child.class);
+        Model.reset(Compact.class);
+        Model.reset(Pet.class);
 
         super.setUp();
     }
@@ -162,4 +228,1757 @@ public class ModelTestCase extends ActivityUnitTestCase<SampleActivity> {
         }
     }
 
+    public void testBinaryFormat() {
+        List<String> tags = new ArrayList<>();
+        tags.add("first");
+        tags.add("segundo, com v\u00edrgula");
+
+        Compact compact = new Compact(context);
+        compact.setId("1");
+        compact.setCount(-7);
+        compact.setTimestamp(1421884800000L);
+        compact.setValue(0.25);
+        compact.setActive(true);
+        compact.setTags(tags);
+        compact.save();
+
+        Compact lookForCompact = Compact.find("1", context);
+
+        assertNotNull("Object 1 should be found!", lookForCompact);
+        assertEquals("Should be equal!", -7, lookForCompact.getCount());
+        assertEquals("Should be equal!", 1421884800000L, lookForCompact.getTimestamp());
+        assertEquals("Should be equal!", 0.25, lookForCompact.getValue(), 0);
+        assertTrue("Should be true!", lookForCompact.isActive());
+        assertEquals("Should be equal!", tags, lookForCompact.getTags());
+        assertTrue("Should be shorter than json!",
+                context.getSharedPreferences(Compact.class.getPackage().getName()
+                        + "." + Compact.class.getName() + "." + "object", Context.MODE_PRIVATE)
+                        .getString("1", "").length() < lookForCompact.toString().length());
+
+        context.getSharedPreferences(Compact.class.getPackage().getName()
+                        + "." + Compact.class.getName() + "." + "object",
+                Context.MODE_PRIVATE).edit().putString("2", "{\"id\":\"2\",\"count\":3}").commit();
+
+        assertEquals("Json records should still be read!", 3, Compact.find("2", context).getCount());
+    }
+
+    public void testBinaryFormatChangedKinds() {
+        // Written when count was a string, value an int, active a list and tags a string.
+        String schema = "id:STRING\ncount:STRING\ntimestamp:LONG\nvalue:INT\nactive:LIST\ntags:STRING\n";
+        CRC32 crc = new CRC32();
+        crc.update(bytes(schema));
+        int schemaId = (int) crc.getValue();
+
+        byte[] record = new BinaryStreamWriter()
+                .writeByte(0xFF).writeByte(1).writeVarLong(schemaId & 0xFFFFFFFFL)
+                .writeString("3")
+                .writeString("12")
+                .writeSignedVarLong(1421884800000L)
+                .writeSignedVarLong(5)
+                .writeVarLong(2).writeString("x")
+                .writeString("tag")
+                .toByteArray();
+
+        String namespace = Compact.class.getPackage().getName() + "." + Compact.class.getName() + ".";
+        StorageEngine engine = new SharedPreferencesStorageEngine(context);
+        engine.put(namespace + "schema", Integer.toHexString(schemaId), bytes(schema));
+        engine.put(namespace + "object", "3", record);
+
+        Compact lookForCompact = Compact.find("3", context);
+
+        assertNotNull("Object 3 should be found!", lookForCompact);
+        assertEquals("Should be equal!", "3", lookForCompact.getId());
+        assertEquals("Should keep its default!", 0, lookForCompact.getCount());
+        assertEquals("Should be equal!", 1421884800000L, lookForCompact.getTimestamp());
+        assertEquals("Should be converted!", 5, lookForCompact.getValue(), 0);
+        assertFalse("Should keep its default!", lookForCompact.isActive());
+        assertNull("Should keep its default!", lookForCompact.getTags());
+    }
+
+    public void testJsonRecords() throws JSONException {
+        SharedPreferences preferences = context.getSharedPreferences(Compact.class.getPackage().getName()
+                + "." + Compact.class.getName() + "." + "object", Context.MODE_PRIVATE);
+
+        // As written by org.json: escaped quotes, backslashes, "</" and control
+        // characters, raw non-ASCII and escaped surrogate pairs.
+        preferences.edit()
+                .putString("1", "{\"id\":\"1\",\"count\":-2147483648,\"timestamp\":9007199254740993,"
+                        + "\"value\":1.5E-300,\"active\":true,\"tags\":[\"quote \\\" backslash \\\\ tag <\\/p>\","
+                        + "\"tab\\t line\\n \\u0001\",\"v\u00edrgula \\ud83d\\ude00 \ud83d\ude00\"]}")
+                .putString("2", "{ \"id\" : \"2\" , \"count\" : \"12\" , \"timestamp\" : 1234567890123456789 ,"
+                        + " \"value\" : -2.5e+3 , \"active\" : \"true\" , \"tags\" : null }")
+                .putString("3", "{\"id\":\"3\",\"count\":1e3,\"timestamp\":-9223372036854775808,\"value\":1E2,"
+                        + "\"unknown\":{\"a\":[1,{\"b\":\"}\"}],\"c\":\"\\\"\"}}")
+                .commit();
+
+        Compact compact = Compact.find("1", context);
+
+        assertEquals("Should be equal!", Integer.MIN_VALUE, compact.getCount());
+        assertEquals("Should be exact beyond 2^53!", 9007199254740993L, compact.getTimestamp());
+        assertEquals("Should be equal!", 1.5e-300, compact.getValue(), 0);
+        assertTrue("Should be true!", compact.isActive());
+        assertEquals("Should be equal!", Arrays.asList("quote \" backslash \\ tag </p>", "tab\t line\n \u0001",
+                "v\u00edrgula \ud83d\ude00 \ud83d\ude00"), compact.getTags());
+
+        compact = Compact.find("2", context);
+
+        assertEquals("Should be equal!", 12, compact.getCount());
+        assertEquals("Should be exact!", 1234567890123456789L, compact.getTimestamp());
+        assertEquals("Should be equal!", -2500, compact.getValue(), 0);
+        assertTrue("Should be true!", compact.isActive());
+        assertNull("Should be null!", compact.getTags());
+
+        compact = Compact.find("3", context);
+
+        assertEquals("Should be equal!", 1000, compact.getCount());
+        assertEquals("Should be equal!", Long.MIN_VALUE, compact.getTimestamp());
+        assertEquals("Should be equal!", 100, compact.getValue(), 0);
+
+        String[] malformed = {
+                "{\"id\":\"4\"\"count\":1}",
+                "{\"id\" \"4\"}",
+                "{\"id\":\"4\":\"5\"}",
+                "{,\"id\":\"4\"}",
+                "{\"id\":\"4\",}",
+                "{\"id\":\"4\",\"count\":}",
+                "{\"id\":\"4\",\"tags\":[\"a\" \"b\"]}",
+                "{\"id\":\"4\",\"tags\":[1 2]}",
+                "{\"id\":\"4\",\"tags\":[1,,2]}",
+                "{\"id\":\"4\",\"unknown\":[1 2]}",
+                "{\"id\":\"4\",\"unknown\":{\"a\":1]}",
+                "{\"id\":\"\\u12\"}",
+                "{\"id\":\"\\u12",
+                "{\"id\":\"\\uzzzz\"}",
+                "{\"id\":\"\\x\"}",
+                "{\"id\":\"4\""
+        };
+
+        for (String record : malformed) {
+            preferences.edit().putString("4", record).commit();
+
+            assertNull("Should not be read: " + record, Compact.find("4", context));
+        }
+
+        JsonStreamReader reader = new JsonStreamReader(ByteBuffer.wrap(bytes("[\"\\ud83d\\ude00\",\"\\u00e9\\/\"]")));
+        reader.beginArray();
+
+        assertEquals("Should be equal!", "\ud83d\ude00", reader.nextString());
+        assertEquals("Should be equal!", "\u00e9/", reader.nextString());
+        assertFalse("Should be false!", reader.hasNext());
+
+        reader.endArray();
+
+        assertEquals("Should be equal!", JsonStreamReader.Token.END_DOCUMENT, reader.peek());
+
+        reader = new JsonStreamReader(ByteBuffer.wrap(bytes("[9223372036854775807,-0,0.5,\"7\",true,\"x\"]")));
+        reader.beginArray();
+
+        assertEquals("Should be equal!", Long.MAX_VALUE, reader.nextLong());
+        assertEquals("Should be equal!", 0, reader.nextLong());
+        assertEquals("Should be truncated!", 0, reader.nextLong());
+        assertEquals("Should be equal!", 7, reader.nextLong());
+        assertEquals("Should be 0!", 0, reader.nextLong());
+        assertEquals("Should be 0!", 0, reader.nextLong());
+
+        reader.endArray();
+    }
+
+    public void testBatchWrites() {
+        final List<Model.OnUpdateListener.Status> statuses = new ArrayList<>();
+
+        Model.OnUpdateListener listener = new Model.OnUpdateListener() {
+            @Override
+            public void onUpdate(Model object, Model.OnUpdateListener.Status status) {
+                statuses.add(status);
+            }
+        };
+
+        Single existing = new Single(context);
+        existing.setId("1");
+        existing.save();
+
+        List<Single> singles = new ArrayList<>();
+
+        for (int i = 1; i <= 3; i++) {
+            Single single = new Single(context);
+            single.setId(String.valueOf(i));
+            single.setHash("hash " + i);
+            single.addOnUpdateListener(listener);
+            singles.add(single);
+        }
+
+        new Single(context).saveAll(singles);
+
+        assertEquals("Should be equal!", "[UPDATED, CREATED, CREATED]", statuses.toString());
+        assertEquals("Should have three objects!", 3, Single.findAll(context).size());
+        assertEquals("Should be equal!", "hash 1", Single.find("1", context).getHash());
+
+        statuses.clear();
+
+        Single dummy = new Single(context);
+        dummy.addOnUpdateListener(listener);
+
+        List<String> ids = new ArrayList<>();
+        ids.add("1");
+        ids.add("3");
+        ids.add("4");
+
+        assertEquals("Should remove two objects!", 2, dummy.removeAll(ids));
+        assertEquals("Should be equal!", "[REMOVED, REMOVED]", statuses.toString());
+        assertEquals("Should have one object!", 1, Single.findAll(context).size());
+        assertNull("Should be null!", Single.find("3", context));
+    }
+
+    public void testBatchOrder() {
+        final List<List<String>> batches = new ArrayList<>();
+
+        Model.setStorageEngine(Single.class, new SharedPreferencesStorageEngine(context) {
+            @Override
+            public Batch batch() {
+                final Batch batch = super.batch();
+                final List<String> namespaces = new ArrayList<>();
+                batches.add(namespaces);
+
+                return new Batch() {
+                    private void use(String namespace) {
+                        String name = namespace.substring(namespace.indexOf(".Single.") + ".Single.".length());
+                        if (!namespaces.contains(name)) namespaces.add(name);
+                    }
+
+                    @Override
+                    public Batch put(String namespace, String key, byte[] value) {
+                        use(namespace);
+                        batch.put(namespace, key, value);
+                        return this;
+                    }
+
+                    @Override
+                    public Batch delete(String namespace, String key) {
+                        use(namespace);
+                        batch.delete(namespace, key);
+                        return this;
+                    }
+
+                    @Override
+                    public boolean commit() {
+                        return batch.commit();
+                    }
+                };
+            }
+        });
+
+        try {
+            List<Single> singles = new ArrayList<>();
+
+            for (int i = 1; i <= 2; i++) {
+                Single single = new Single(context);
+                single.setId(String.valueOf(i));
+                single.setHash("hash " + i);
+                singles.add(single);
+            }
+
+            singles.get(0).save();
+            new Single(context).saveAll(singles);
+            singles.get(0).remove();
+            new Single(context).removeAll(Arrays.asList("2"));
+
+            // Namespaces are committed in this order.
+            assertEquals("Records should be saved first!", "[object, objectIndex, index.hash]",
+                    batches.get(batches.size() - 4).toString());
+            assertEquals("Records should be saved first!", "[object, objectIndex, index.hash]",
+                    batches.get(batches.size() - 3).toString());
+            assertEquals("Records should be removed last!", "[objectIndex, index.hash, object]",
+                    batches.get(batches.size() - 2).toString());
+            assertEquals("Records should be removed last!", "[objectIndex, index.hash, object]",
+                    batches.get(batches.size() - 1).toString());
+        } finally {
+            Model.setStorageEngine(Single.class, null);
+        }
+    }
+
+    public void testWriteBehind() {
+        WriteBehindStorageEngine engine =
+                new WriteBehindStorageEngine(new SharedPreferencesStorageEngine(context), 60000);
+        Model.setStorageEngine(Single.class, engine);
+
+        try {
+            Single single = new Single(context);
+            single.setId("1");
+
+            for (int i = 1; i <= 3; i++) {
+                single.setHash("hash " + i);
+                single.save();
+            }
+
+            assertEquals("Pending write should be read!", "hash 3", Single.find("1", context).getHash());
+            assertEquals("Should have one object!", 1, Single.findAll(context).size());
+            assertEquals("Should not be stored yet!", "",
+                    context.getSharedPreferences(Single.class.getPackage().getName()
+                            + "." + Single.class.getName() + "." + "object", Context.MODE_PRIVATE)
+                            .getString("1", ""));
+
+            engine.flush();
+
+            assertTrue("Should be stored!",
+                    context.getSharedPreferences(Single.class.getPackage().getName()
+                            + "." + Single.class.getName() + "." + "object", Context.MODE_PRIVATE)
+                            .getString("1", "").contains("hash 3"));
+        } finally {
+            Model.setStorageEngine(Single.class, null);
+        }
+
+        assertEquals("Should be equal!", "hash 3", Single.find("1", context).getHash());
+    }
+
+    private StorageEngine failingEngine() {
+        return new SharedPreferencesStorageEngine(context) {
+            @Override
+            public Batch batch() {
+                return new Batch() {
+                    @Override
+                    public Batch put(String namespace, String key, byte[] value) {
+                        return this;
+                    }
+
+                    @Override
+                    public Batch delete(String namespace, String key) {
+                        return this;
+                    }
+
+                    @Override
+                    public boolean commit() {
+                        return false;
+                    }
+                };
+            }
+        };
+    }
+
+    public void testFailedCommit() {
+        Single single = new Single(context);
+        single.setId("1");
+        single.setHash("hash 1");
+        single.save();
+
+        Model.setStorageEngine(Single.class, failingEngine());
+
+        try {
+            Single other = new Single(context);
+            other.setId("2");
+            other.setHash("hash 2");
+
+            try {
+                other.save();
+                fail("Should not save!");
+            } catch (StorageException e) {
+                // Expected.
+            }
+
+            single.setHash("hash 3");
+
+            try {
+                single.remove();
+                fail("Should not remove!");
+            } catch (StorageException e) {
+                // Expected.
+            }
+
+            assertEquals("Should have one object!", 1, Single.findAll(context).size());
+            assertNull("Should be null!", Single.find("2", context));
+            assertEquals("Should be indexed!", 1, single.findBy("hash", "hash 1").size());
+            assertEquals("Should not be indexed!", 0, single.findBy("hash", "hash 2").size());
+        } finally {
+            Model.setStorageEngine(Single.class, null);
+        }
+    }
+
+    public void testWriteBehindFailures() throws Exception {
+        final int[] failures = {2};
+        SharedPreferencesStorageEngine delegate = new SharedPreferencesStorageEngine(context) {
+            @Override
+            public Batch batch() {
+                final Batch batch = super.batch();
+
+                return new Batch() {
+                    @Override
+                    public Batch put(String namespace, String key, byte[] value) {
+                        batch.put(namespace, key, value);
+                        return this;
+                    }
+
+                    @Override
+                    public Batch delete(String namespace, String key) {
+                        batch.delete(namespace, key);
+                        return this;
+                    }
+
+                    @Override
+                    public boolean commit() {
+                        synchronized (failures) {
+                            if (failures[0] > 0) {
+                                failures[0]--;
+                                throw new IllegalStateException("Disk is busy");
+                            }
+                        }
+
+                        return batch.commit();
+                    }
+                };
+            }
+        };
+
+        WriteBehindStorageEngine engine = new WriteBehindStorageEngine(delegate, 1);
+        engine.put("writeBehind", "a", bytes("1"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (delegate.get("writeBehind", "a") == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals("Should be stored after retrying!", "1", text(delegate.get("writeBehind", "a")));
+
+        synchronized (failures) {
+            failures[0] = Integer.MAX_VALUE;
+        }
+
+        engine.put("writeBehind", "b", bytes("2"));
+
+        try {
+            engine.flush();
+            fail("Should not flush!");
+        } catch (StorageException e) {
+            // Expected.
+        }
+
+        assertEquals("Should stay queued!", "2", text(engine.get("writeBehind", "b")));
+
+        synchronized (failures) {
+            failures[0] = 0;
+        }
+
+        engine.flush();
+
+        assertEquals("Should be stored!", "2", text(delegate.get("writeBehind", "b")));
+        engine.close();
+    }
+
+    public void testLogStorageEngine() throws Exception {
+        File directory = emptyDir("log");
+        File file = new File(directory, "ns.log");
+        LogStorageEngine engine = new LogStorageEngine(directory);
+
+        assertNull("Should be null!", engine.get("ns", "a"));
+        assertFalse("Reading should not create the file!", file.exists());
+
+        engine.put("ns", "a", bytes("1"));
+        engine.put("ns", "b", bytes("2"));
+        engine.put("ns", "a", bytes("3"));
+        engine.delete("ns", "b");
+        assertTrue("Should commit!", engine.batch().put("ns", "c", bytes("4")).delete("ns", "a").commit());
+        engine.close();
+
+        engine = new LogStorageEngine(directory);
+
+        assertNull("Delete should be replayed!", engine.get("ns", "a"));
+        assertNull("Delete should be replayed!", engine.get("ns", "b"));
+        assertEquals("Put should be replayed!", "4", text(engine.get("ns", "c")));
+
+        engine.put("ns", "d", bytes("5"));
+        engine.close();
+
+        RandomAccessFile torn = new RandomAccessFile(file, "rw");
+        torn.setLength(torn.length() - 2);
+        torn.close();
+
+        engine = new LogStorageEngine(directory);
+
+        assertNull("Torn record should be dropped!", engine.get("ns", "d"));
+        assertEquals("Should be equal!", "4", text(engine.get("ns", "c")));
+
+        engine.put("ns", "e", bytes("6"));
+        engine.close();
+        engine = new LogStorageEngine(directory);
+
+        assertEquals("Should append after the cut!", "6", text(engine.get("ns", "e")));
+
+        for (int i = 0; i < 100; i++) {
+            engine.put("ns", "f", bytes("value " + i));
+        }
+
+        long length = file.length();
+        engine.compact("ns");
+
+        assertTrue("Should shrink!", file.length() < length);
+        assertFalse("Should not leave the compacted copy!", new File(directory, "ns.log.compact").exists());
+        assertEquals("Should be equal!", "value 99", text(engine.get("ns", "f")));
+        assertEquals("Should be equal!", "4", text(engine.get("ns", "c")));
+
+        engine.put("ns", "g", bytes("7"));
+        engine.close();
+        engine = new LogStorageEngine(directory);
+
+        assertEquals("Should survive compaction!", "value 99", text(engine.get("ns", "f")));
+        assertEquals("Should be written after compaction!", "7", text(engine.get("ns", "g")));
+        assertNull("Should stay deleted!", engine.get("ns", "a"));
+        engine.close();
+    }
+
+    public void testLogStorageEngineReopenFailure() throws Exception {
+        File directory = emptyDir("reopen");
+
+        LogStorageEngine engine = new LogStorageEngine(directory) {
+            @Override
+            protected void onReopened(LogFile logFile) {
+                throw new IllegalStateException("Reopening failed!");
+            }
+        };
+
+        for (int i = 0; i < 10; i++) {
+            engine.put("ns", "a", bytes("value " + i));
+        }
+
+        try {
+            engine.compact("ns");
+            fail("Should fail!");
+        } catch (StorageException e) {
+            // Expected.
+        }
+
+        try {
+            engine.put("ns", "b", bytes("1"));
+            fail("Should not write to the replaced file!");
+        } catch (StorageException e) {
+            // Expected.
+        }
+
+        try {
+            engine.get("ns", "a");
+            fail("Should be unusable!");
+        } catch (StorageException e) {
+            // Expected.
+        }
+
+        assertFalse("Should not commit!", engine.batch().put("ns", "b", bytes("1")).commit());
+        engine.close();
+
+        engine = new LogStorageEngine(directory);
+
+        assertEquals("Should keep the compacted values!", "value 9", text(engine.get("ns", "a")));
+        engine.close();
+    }
+
+    public void testMappedStorageEngine() throws Exception {
+        File directory = emptyDir("mapped");
+        final long[] mapped = {0};
+        final int[] most = {0};
+        final TreeSet<Long> regions = new TreeSet<>();
+
+        MappedStorageEngine engine = new MappedStorageEngine(directory, false) {
+            @Override
+            protected MappedByteBuffer map(LogFile logFile, long position, long size) throws IOException {
+                mapped[0] += size;
+
+                // A new region replaces the ones from its position on.
+                regions.tailSet(position, true).clear();
+                regions.add(position);
+                most[0] = Math.max(most[0], regions.size());
+
+                return super.map(logFile, position, size);
+            }
+        };
+
+        engine.put("ns", "first", bytes("1"));
+        ByteBuffer first = engine.get("ns", "first");
+
+        assertEquals("Should be equal!", "1", text(first));
+
+        // Every read reaches past the mapping, which has to grow.
+        for (int i = 0; i < 500; i++) {
+            engine.put("ns", "key " + i, bytes("value " + i));
+
+            assertEquals("Should be equal!", "value " + i, text(engine.get("ns", "key " + i)));
+        }
+
+        long length = new File(directory, "ns.log").length();
+
+        assertTrue("Should map each byte a few times, not once per read!", mapped[0] < 8 * length);
+        assertTrue("Should keep a few regions, not one per read!", most[0] <= 10);
+        assertEquals("Old views should stay readable!", "1", text(first));
+        assertEquals("Should be equal!", "1", text(engine.get("ns", "first")));
+        assertEquals("Should be equal!", "value 250", text(engine.get("ns", "key 250")));
+
+        engine.delete("ns", "key 250");
+
+        assertNull("Should be deleted!", engine.get("ns", "key 250"));
+
+        engine.compact("ns");
+
+        assertEquals("Should be read after compaction!", "value 499", text(engine.get("ns", "key 499")));
+
+        engine.put("ns", "last", bytes("2"));
+        engine.close();
+        engine = new MappedStorageEngine(directory, false);
+
+        assertEquals("Should survive reopening!", "1", text(engine.get("ns", "first")));
+        assertEquals("Should survive reopening!", "value 0", text(engine.get("ns", "key 0")));
+        assertEquals("Should survive reopening!", "2", text(engine.get("ns", "last")));
+        assertNull("Should stay deleted!", engine.get("ns", "key 250"));
+        engine.close();
+    }
+
+    public void testLegacyIdList() {
+        Single single = new Single(context);
+        single.setId("1");
+        single.setHash("hash 1");
+        single.save();
+
+        context.getSharedPreferences(Single.class.getPackage().getName()
+                        + "." + Single.class.getName() + "." + "objectIndex",
+                Context.MODE_PRIVATE).edit().clear().commit();
+        context.getSharedPreferences(Single.class.getPackage().getName()
+                        + "." + Single.class.getName() + "." + "objectList",
+                Context.MODE_PRIVATE).edit().putString("list", "1,2").commit();
+
+        Model.reset(Single.class);
+
+        single.setId("2");
+        single.save();
+
+        List<Single> singles = Single.findAll(context);
+
+        assertEquals("Should have two objects!", 2, singles.size());
+        assertEquals("Should keep the order!", "1", singles.get(0).getId());
+        assertNull("Old list should be removed!",
+                context.getSharedPreferences(Single.class.getPackage().getName()
+                        + "." + Single.class.getName() + "." + "objectList", Context.MODE_PRIVATE)
+                        .getString("list", null));
+    }
+
+    public void testSharedCache() {
+        Model.setCacheSize(Cached.class, 2);
+
+        Cached cached = new Cached(context);
+        cached.setId("1");
+        cached.setHash("hash 1");
+        cached.save();
+
+        long hits = Model.getCacheHits(Cached.class);
+
+        assertSame("Should be the saved object!", cached, Cached.find("1", context));
+        assertSame("Should be the saved object!", cached, Cached.find("1", context));
+        assertEquals("Should hit twice!", hits + 2, Model.getCacheHits(Cached.class));
+
+        for (int i = 2; i <= 3; i++) {
+            Cached other = new Cached(context);
+            other.setId(String.valueOf(i));
+            other.save();
+        }
+
+        long misses = Model.getCacheMisses(Cached.class);
+        Cached evicted = Cached.find("1", context);
+
+        assertNotSame("Should be evicted!", cached, evicted);
+        assertEquals("Should miss once!", misses + 1, Model.getCacheMisses(Cached.class));
+        assertEquals("Should be equal!", "hash 1", evicted.getHash());
+
+        evicted.remove();
+
+        assertNull("Should be null!", Cached.find("1", context));
+
+        Model.setCacheSize(Cached.class, 100);
+    }
+
+    public void testFindBy() {
+        for (int i = 1; i <= 4; i++) {
+            Single single = new Single(context);
+            single.setId(String.valueOf(i));
+            single.setHash((i % 2 == 0) ? "even" : "odd");
+            single.save();
+        }
+
+        assertEquals("Should find two objects!", 2, new Single(context).findBy("hash", "even").size());
+        assertEquals("Should be equal!", "1", new Single(context).findBy("hash", "odd").get(0).getId());
+
+        Single single = Single.find("2", context);
+        single.setHash("odd");
+        single.save();
+
+        Single.find("1", context).remove();
+
+        assertEquals("Should find one object!", 1, new Single(context).findBy("hash", "even").size());
+        assertEquals("Should find two objects!", 2, new Single(context).findBy("hash", "odd").size());
+
+        Model.reset(Single.class);
+
+        List<Single> odd = new Single(context).findBy("hash", "odd");
+
+        assertEquals("Should find two objects!", 2, odd.size());
+        assertEquals("Should be equal!", "2", odd.get(0).getId());
+        assertTrue("Should be empty!", new Single(context).findBy("hash", "none").isEmpty());
+
+        context.getSharedPreferences(Single.class.getPackage().getName()
+                        + "." + Single.class.getName() + "." + "index.hash",
+                Context.MODE_PRIVATE).edit().clear().commit();
+        Model.reset(Single.class);
+
+        assertEquals("Index should be rebuilt!", 1, new Single(context).findBy("hash", "even").size());
+
+        try {
+            new Single(context).findBy("id", "1");
+            fail("Should not find by a field that is not indexed!");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testFindRange() {
+        long[] timestamps = {300L, 100L, 500L, 200L, 400L};
+
+        for (int i = 0; i < timestamps.length; i++) {
+            Compact compact = new Compact(context);
+            compact.setId(String.valueOf(i));
+            compact.setTimestamp(timestamps[i]);
+            compact.save();
+        }
+
+        Compact dummy = new Compact(context);
+        List<Compact> range = dummy.findRange("timestamp", 200L, 400L);
+
+        assertEquals("Should find three objects!", 3, range.size());
+        assertEquals("Should be in order!", 200L, range.get(0).getTimestamp());
+        assertEquals("Should be in order!", 400L, range.get(2).getTimestamp());
+
+        List<Compact> newest = dummy.findRange("timestamp", null, null, true, 2);
+
+        assertEquals("Should find two objects!", 2, newest.size());
+        assertEquals("Should be newest first!", 500L, newest.get(0).getTimestamp());
+        assertEquals("Should be newest first!", 400L, newest.get(1).getTimestamp());
+
+        Compact moved = Compact.find("2", context);
+        moved.setTimestamp(50L);
+        moved.save();
+
+        Model.reset(Compact.class);
+
+        assertEquals("Should be the lowest!", "2", dummy.findRange("timestamp", null, 100L).get(0).getId());
+        assertEquals("Should find one object!", 1, dummy.findRange("timestamp", "400", null).size());
+        assertTrue("Should be empty!", dummy.findRange("timestamp", 400L, 200L).isEmpty());
+    }
+
+    public void testQuery() {
+        for (int i = 0; i < 10; i++) {
+            Compact compact = new Compact(context);
+            compact.setId(String.valueOf(i));
+            compact.setCount(i % 3);
+            compact.setTimestamp(1000L - i * 10);
+            compact.setActive(i % 2 == 0);
+            compact.save();
+        }
+
+        Compact dummy = new Compact(context);
+
+        List<Compact> page = dummy.query()
+                .where("timestamp").lt(990L)
+                .orderBy("timestamp", false)
+                .offset(2)
+                .limit(3)
+                .find();
+
+        assertEquals("Should find three objects!", 3, page.size());
+        assertEquals("Should be equal!", "7", page.get(0).getId());
+        assertEquals("Should be equal!", "5", page.get(2).getId());
+
+        List<Compact> filtered = dummy.query()
+                .where("count").eq(1)
+                .where("active").eq(false)
+                .orderBy("count", true)
+                .find();
+
+        assertEquals("Should find two objects!", 2, filtered.size());
+        assertEquals("Should be equal!", "1", filtered.get(0).getId());
+
+        List<Compact> sorted = dummy.query()
+                .where("count").in(0, 2)
+                .orderBy("id", true)
+                .limit(2)
+                .find();
+
+        assertEquals("Should find two objects!", 2, sorted.size());
+        assertEquals("Should be equal!", "9", sorted.get(0).getId());
+        assertEquals("Should be equal!", "8", sorted.get(1).getId());
+
+        assertEquals("Should find every object!", 10, dummy.query().find().size());
+        assertTrue("Should be empty!", dummy.query().offset(10).find().isEmpty());
+    }
+
+    public void testCursor() {
+        for (int i = 1; i <= 5; i++) {
+            Single single = new Single(context);
+            single.setId(String.valueOf(i));
+            single.save();
+        }
+
+        ModelCursor<Single> cursor = new Single(context).cursor(2);
+
+        assertEquals("Should have five objects!", 5, cursor.getCount());
+        assertEquals("Should be equal!", "1", cursor.next().getId());
+
+        Single.find("3", context).remove();
+
+        List<String> ids = new ArrayList<>();
+
+        for (Single single : cursor) {
+            ids.add(single.getId());
+        }
+
+        assertEquals("Should skip removed objects!", "[2, 4, 5]", ids.toString());
+        assertFalse("Should be finished!", cursor.hasNext());
+
+        cursor = new Single(context).cursor();
+        cursor.close();
+
+        assertFalse("Should be closed!", cursor.hasNext());
+    }
+
+    public void testParallelLoad() {
+        List<Single> singles = new ArrayList<>();
+
+        for (int i = 0; i < 300; i++) {
+            Single single = new Single(context);
+            single.setId(String.valueOf(i));
+            single.setHash("hash " + i);
+            singles.add(single);
+        }
+
+        new Single(context).saveAll(singles);
+
+        Model.setParallelLoad(Single.class, true);
+
+        try {
+            List<Single> found = Single.findAll(context);
+
+            assertEquals("Should have every object!", 300, found.size());
+
+            for (int i = 0; i < 300; i++) {
+                assertEquals("Should keep the order!", "hash " + i, found.get(i).getHash());
+            }
+        } finally {
+            Model.setParallelLoad(Single.class, false);
+        }
+    }
+
+    public void testProjection() {
+        List<String> tags = new ArrayList<>();
+        tags.add("first");
+        tags.add("second");
+
+        Compact compact = new Compact(context);
+        compact.setId("1");
+        compact.setCount(7);
+        compact.setTimestamp(100L);
+        compact.setTags(tags);
+        compact.save();
+
+        Compact projected = new Compact(context).find("1", "id", "count");
+
+        assertEquals("Should be loaded!", 7, projected.getCount());
+        assertNull("Should not be loaded!", projected.getTags());
+        assertTrue("Should be loaded!", projected.isFieldLoaded("count"));
+        assertFalse("Should not be loaded!", projected.isFieldLoaded("tags"));
+
+        projected.setCount(8);
+        projected.save();
+
+        Compact stored = Compact.find("1", context);
+
+        assertEquals("Should be updated!", 8, stored.getCount());
+        assertEquals("Should be kept!", tags, stored.getTags());
+        assertEquals("Should be kept!", 100L, stored.getTimestamp());
+
+        List<Compact> page = new Compact(context).query().select("id").find();
+
+        assertEquals("Should be equal!", "1", page.get(0).getId());
+        assertEquals("Should not be loaded!", 0, page.get(0).getCount());
+
+        try {
+            new Compact(context).findAll("missing");
+            fail("Should not project a field that is not stored!");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testAggregates() {
+        Compact dummy = new Compact(context);
+
+        assertEquals("Should be empty!", 0, dummy.count());
+        assertNull("Should be null!", dummy.max("count"));
+
+        for (int i = 1; i <= 4; i++) {
+            Compact compact = new Compact(context);
+            compact.setId(String.valueOf(i));
+            compact.setCount(i * 10);
+            compact.setTimestamp(i * 100L);
+            compact.setValue(i * 0.5);
+            compact.save();
+        }
+
+        Compact.find("4", context).remove();
+
+        assertEquals("Should have three objects!", 3, dummy.count());
+        assertEquals("Should be equal!", 60.0, dummy.sum("count"), 0);
+        assertEquals("Should be equal!", 20.0, dummy.average("count"), 0);
+        assertEquals("Should be equal!", 10, dummy.min("count"));
+        assertEquals("Should be equal!", 3.0, dummy.sum("value"), 0);
+        assertEquals("Should be equal!", 300L, dummy.max("timestamp"));
+        assertEquals("Should be equal!", 100L, dummy.min("timestamp"));
+
+        try {
+            dummy.sum("tags");
+            fail("Should not sum a field that is not numeric!");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    public void testChildIndex() {
+        Father father = new Father(context);
+        father.setId("1");
+        father.save();
+
+        for (int i = 1; i <= 3; i++) {
+            Child child = new Child(context);
+            child.setId("10" + i);
+            child.setHash("child " + i);
+            father.addChild(child);
+        }
+
+        assertEquals("Should have three children!", 3, father.childCount());
+        assertTrue("Should remove the child!", father.removeChild("102"));
+        assertFalse("Should be already removed!", father.removeChild("102"));
+
+        Father reloaded = (Father) new Father(context).find("1");
+        List<Child> children = reloaded.findAllChildren();
+
+        assertEquals("Should have two children!", 2, reloaded.childCount());
+        assertEquals("Should keep the order!", "child 1", children.get(0).getHash());
+        assertEquals("Should keep the order!", "child 3", children.get(1).getHash());
+        assertEquals("Should be at position 1!", 1, reloaded.indexOfChild("103"));
+
+        context.getSharedPreferences(Father.class.getPackage().getName()
+                        + "." + Father.class.getName() + "." + "children",
+                Context.MODE_PRIVATE).edit().putString("2", "101,103").commit();
+
+        Father legacy = new Father(context);
+        legacy.setId("2");
+
+        assertEquals("Old list should be migrated!", 2, legacy.childCount());
+        assertEquals("Should be equal!", "child 3", legacy.findChild("103").getHash());
+    }
+
+    public void testCascade() {
+        Father deleting = new Father(context);
+        deleting.setId("1");
+        deleting.setCascade(HasManyModel.Cascade.DELETE);
+        deleting.save();
+
+        Father detaching = new Father(context);
+        detaching.setId("2");
+        detaching.setCascade(HasManyModel.Cascade.DETACH);
+        detaching.save();
+
+        Father keeping = new Father(context);
+        keeping.setId("3");
+        keeping.save();
+
+        for (int i = 1; i <= 3; i++) {
+            Father father = (i == 1) ? deleting : (i == 2) ? detaching : keeping;
+
+            for (int j = 1; j <= 2; j++) {
+                Child child = new Child(context);
+                child.setId(i + "0" + j);
+                child.setHash("child " + i + j);
+                father.addChild(child);
+            }
+        }
+
+        assertEquals("Should know the parent!", "2", keeping.parentIdOf("201"));
+        assertEquals("Should find the parent!", "1", keeping.findParent("102").getId());
+
+        keeping.addChild(new Child(context).find("202"));
+
+        assertEquals("Should move to the new parent!", "3", keeping.parentIdOf("202"));
+        assertEquals("Should leave the old parent!", 1, ((Father) new Father(context).find("2")).childCount());
+        assertEquals("Should update the old parent!", 1, detaching.childCount());
+        assertEquals("Should update the old parent!", -1, detaching.indexOfChild("202"));
+        assertEquals("Should update the old parent!", 1, detaching.findAllChildren().size());
+        assertEquals("Should be at the end!", 2, keeping.indexOfChild("202"));
+
+        deleting.remove();
+
+        assertNull("Child should be removed!", new Child(context).find("101"));
+        assertNull("Child should be removed!", new Child(context).find("102"));
+        assertNull("Should forget the parent!", keeping.parentIdOf("101"));
+
+        detaching.remove();
+
+        assertNotNull("Child should be kept!", new Child(context).find("201"));
+        assertNull("Should forget the parent!", keeping.parentIdOf("201"));
+
+        keeping.remove();
+
+        assertEquals("Should keep the children list!", "3", keeping.parentIdOf("301"));
+
+        Child legacyChild = new Child(context);
+        legacyChild.setId("901");
+        legacyChild.save();
+
+        context.getSharedPreferences(Father.class.getPackage().getName()
+                        + "." + Father.class.getName() + "." + "children",
+                Context.MODE_PRIVATE).edit().putString("9", "901").commit();
+
+        Father sweeper = new Father(context);
+        sweeper.setCascade(HasManyModel.Cascade.DELETE);
+
+        assertEquals("Should sweep the entries and children!", 11, sweeper.sweepOrphans());
+        assertNull("Should forget the parent!", keeping.parentIdOf("301"));
+        assertNull("Child should be removed!", new Child(context).find("301"));
+        assertNull("Legacy child should be removed!", new Child(context).find("901"));
+        assertEquals("Nothing left to sweep!", 0, sweeper.sweepOrphans());
+
+        Father failing = new Father(context);
+        failing.setId("4");
+        failing.setCascade(HasManyModel.Cascade.DELETE);
+        failing.save();
+
+        Child child = new Child(context);
+        child.setId("401");
+        failing.addChild(child);
+
+        StorageEngine engine = failingEngine();
+        Model.setStorageEngine(Father.class, engine);
+        Model.setStorageEngine(Child.class, engine);
+
+        try {
+            failing.remove();
+            fail("Should not remove!");
+        } catch (StorageException e) {
+            // Expected.
+        } finally {
+            Model.setStorageEngine(Father.class, null);
+            Model.setStorageEngine(Child.class, null);
+        }
+
+        assertNotNull("Parent should be kept!", new Father(context).find("4"));
+        assertNotNull("Child should be kept!", new Child(context).find("401"));
+        assertEquals("Should keep the children!", 1, failing.childCount());
+
+        // Children stored elsewhere are only removed once the parent is.
+        Model.setStorageEngine(Father.class, failingEngine());
+
+        try {
+            failing.remove();
+            fail("Should not remove!");
+        } catch (StorageException e) {
+            // Expected.
+        } finally {
+            Model.setStorageEngine(Father.class, null);
+        }
+
+        assertNotNull("Child should be kept!", new Child(context).find("401"));
+
+        assertTrue("Should remove!", failing.remove());
+        assertNull("Child should be removed!", new Child(context).find("401"));
+    }
+
+    public void testPrefetch() {
+        for (int i = 1; i <= 2; i++) {
+            Single owner = new Single(context);
+            owner.setId(String.valueOf(i));
+            owner.setHash("owner " + i);
+            owner.save();
+        }
+
+        List<Pet> pets = new ArrayList<>();
+
+        for (int i = 1; i <= 5; i++) {
+            Pet pet = new Pet(context);
+            pet.setId("pet " + i);
+            pet.setOwnerId((i == 5) ? "3" : String.valueOf(i % 2 + 1));
+            pet.save();
+            pets.add(pet);
+        }
+
+        assertEquals("Should find the owner!", "owner 2", pets.get(0).findRelated(null).getHash());
+
+        pets = new Pet(context).findAll();
+        Pet.prefetch(pets);
+
+        Single.find("1", context).remove();
+
+        for (Pet pet : pets) {
+            Single owner = pet.findRelated(null);
+
+            if (pet.getOwnerId().equals("3")) {
+                assertNull("Owner doesn't exist!", owner);
+            } else {
+                assertEquals("Should be served from memory!", "owner " + pet.getOwnerId(), owner.getHash());
+            }
+        }
+
+        Pet moved = pets.get(0);
+        moved.setOwnerId(moved.getOwnerId().equals("1") ? "2" : "1");
+
+        assertEquals("Should read the new owner!", moved.getOwnerId().equals("2"), moved.findRelated(null) != null);
+    }
+
+    public void testChangeListener() {
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<List<Model.Change>> classChanges = new ArrayList<>();
+        final List<List<Model.Change>> idChanges = new ArrayList<>();
+
+        Model.OnChangeListener classListener = new Model.OnChangeListener() {
+            @Override
+            public void onUpdate(List<Model.Change> changes) {
+                classChanges.add(changes);
+            }
+        };
+
+        Model.OnChangeListener idListener = new Model.OnChangeListener() {
+            @Override
+            public void onUpdate(List<Model.Change> changes) {
+                idChanges.add(changes);
+            }
+        };
+
+        Model.setChangeExecutor(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                tasks.add(task);
+            }
+        });
+
+        Model.addOnChangeListener(Single.class, classListener);
+        Model.addOnChangeListener(Single.class, "2", idListener);
+
+        try {
+            List<Single> singles = new ArrayList<>();
+
+            for (int i = 1; i <= 3; i++) {
+                Single single = new Single(context);
+                single.setId(String.valueOf(i));
+                single.setHash("hash " + i);
+                singles.add(single);
+            }
+
+            new Single(context).saveAll(singles);
+            singles.get(1).setHash("changed");
+            singles.get(1).save();
+            singles.get(2).remove();
+
+            assertEquals("Should be delivered in a single task!", 1, tasks.size());
+            assertTrue("Should not be delivered yet!", classChanges.isEmpty());
+
+            tasks.remove(0).run();
+
+            assertEquals("Should get one batch!", 1, classChanges.size());
+            assertEquals("Should merge the changes!", 2, classChanges.get(0).size());
+            assertEquals("Should be created!", Model.OnUpdateListener.Status.CREATED,
+                    classChanges.get(0).get(1).getStatus());
+            assertEquals("Should only get its id!", 1, idChanges.get(0).size());
+            assertEquals("Should be the new value!", "changed",
+                    ((Single) idChanges.get(0).get(0).getObject()).getHash());
+
+            new Single(context).removeAll(Arrays.asList("1", "2"));
+            tasks.remove(0).run();
+
+            assertEquals("Should get a second batch!", 2, classChanges.size());
+            assertEquals("Should be removed!", Model.OnUpdateListener.Status.REMOVED,
+                    idChanges.get(1).get(0).getStatus());
+
+            Model.removeOnChangeListener(Single.class, classListener);
+            Model.removeOnChangeListener(Single.class, "2", idListener);
+            singles.get(0).save();
+
+            assertTrue("Nobody is listening!", tasks.isEmpty());
+        } finally {
+            Model.removeOnChangeListener(Single.class, classListener);
+            Model.removeOnChangeListener(Single.class, "2", idListener);
+            Model.setChangeExecutor(null);
+        }
+    }
+
+    public void testChangeDelivery() {
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<String> delivered = new ArrayList<>();
+        final Single echo = new Single(context);
+        echo.setId("echo");
+
+        Model.OnChangeListener listener = new Model.OnChangeListener() {
+            @Override
+            public void onUpdate(List<Model.Change> changes) {
+                for (Model.Change change : changes) {
+                    delivered.add(change.getId());
+                }
+
+                // Posted while delivering, left to the task running.
+                if (!delivered.contains("echo")) echo.save();
+            }
+        };
+
+        Model.setChangeExecutor(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                tasks.add(task);
+            }
+        });
+
+        Model.addOnChangeListener(Single.class, listener);
+
+        try {
+            Single single = new Single(context);
+            single.setId("1");
+            single.save();
+
+            tasks.remove(0).run();
+
+            assertTrue("Should not start a second task!", tasks.isEmpty());
+            assertEquals("Should deliver both in order!", "[1, echo]", delivered.toString());
+
+            single.save();
+
+            assertEquals("Should schedule again once drained!", 1, tasks.size());
+
+            tasks.remove(0).run();
+
+            assertEquals("Should be delivered!", "[1, echo, 1]", delivered.toString());
+        } finally {
+            Model.removeOnChangeListener(Single.class, listener);
+            Model.setChangeExecutor(null);
+        }
+    }
+
+    public void testLiveQuery() {
+        final List<List<LiveQuery.Diff<Compact>>> calls = new ArrayList<>();
+        Compact dummy = new Compact(context);
+        Compact[] compacts = new Compact[6];
+
+        for (int i = 0; i < compacts.length; i++) {
+            compacts[i] = new Compact(context);
+            compacts[i].setId(String.valueOf(i));
+            compacts[i].setTimestamp(100L * i);
+            compacts[i].setActive(i % 2 == 0);
+
+            if (i < 5) compacts[i].save();
+        }
+
+        Model.setChangeExecutor(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                task.run();
+            }
+        });
+
+        LiveQuery<Compact> live = dummy.query()
+                .where("active").eq(true)
+                .orderBy("timestamp", false)
+                .observe(new LiveQuery.Listener<Compact>() {
+                    @Override
+                    public void onChanged(List<Compact> result, List<LiveQuery.Diff<Compact>> diffs) {
+                        calls.add(diffs);
+                    }
+                });
+
+        try {
+            List<Compact> before = live.getResult();
+            assertEquals("Should be equal!", "[0, 2, 4]", idsOf(before));
+
+            compacts[5].setTimestamp(250L);
+            compacts[5].setActive(true);
+            compacts[5].save();
+
+            assertEquals("Should be inserted!", "[INSERTED 2]", calls.get(0).toString());
+            assertEquals("Should be equal!", "[0, 2, 5, 4]", idsOf(live.getResult()));
+            assertEquals("Should not change a previous result!", "[0, 2, 4]", idsOf(before));
+            assertEquals("Should be read by position!", "5", live.getResult().get(2).getId());
+
+            compacts[2].setTimestamp(500L);
+            compacts[2].save();
+
+            assertEquals("Should be moved!", "[REMOVED 1, INSERTED 3]", calls.get(1).toString());
+
+            compacts[4].setActive(false);
+            compacts[4].save();
+            compacts[0].setCount(7);
+            compacts[0].save();
+            compacts[5].remove();
+
+            assertEquals("Should stop matching!", "[REMOVED 2]", calls.get(2).toString());
+            assertEquals("Should be updated!", "[UPDATED 0]", calls.get(3).toString());
+            assertEquals("Should be removed!", "[REMOVED 1]", calls.get(4).toString());
+
+            compacts[1].setActive(true);
+            compacts[1].save();
+
+            assertEquals("Should be equal!", "[0, 1, 2]", idsOf(live.getResult()));
+            assertEquals("Should match the query!", idsOf(dummy.query().where("active").eq(true)
+                    .orderBy("timestamp", false).find()), idsOf(live.getResult()));
+
+            compacts[3].save();
+
+            assertEquals("Non matching objects are ignored!", 6, calls.size());
+        } finally {
+            live.close();
+            Model.setChangeExecutor(null);
+        }
+
+        compacts[3].setActive(true);
+        compacts[3].save();
+
+        assertEquals("Should be closed!", 6, calls.size());
+    }
+
+    public void testLiveQueryStart() {
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<List<LiveQuery.Diff<Compact>>> calls = new ArrayList<>();
+        Model.OnChangeListener listening = new Model.OnChangeListener() {
+            @Override
+            public void onUpdate(List<Model.Change> changes) {
+            }
+        };
+
+        Model.setChangeExecutor(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                tasks.add(task);
+            }
+        });
+        Model.addOnChangeListener(Compact.class, listening);
+
+        try {
+            Compact compact = new Compact(context);
+            compact.setId("1");
+            compact.setActive(true);
+            compact.save();
+
+            // Delivered after the query ran, which already found the object.
+            LiveQuery<Compact> live = new Compact(context).query()
+                    .where("active").eq(true)
+                    .observe(new LiveQuery.Listener<Compact>() {
+                        @Override
+                        public void onChanged(List<Compact> result, List<LiveQuery.Diff<Compact>> diffs) {
+                            calls.add(diffs);
+                        }
+                    });
+
+            try {
+                for (Runnable task : new ArrayList<>(tasks)) {
+                    task.run();
+                }
+
+                assertEquals("Should not be listed twice!", "[1]", idsOf(live.getResult()));
+                assertEquals("Should be updated in place!", "[[UPDATED 0]]", calls.toString());
+            } finally {
+                live.close();
+            }
+        } finally {
+            Model.removeOnChangeListener(Compact.class, listening);
+            Model.setChangeExecutor(null);
+        }
+    }
+
+    public void testLiveQueryMutatedObject() {
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<List<LiveQuery.Diff<Compact>>> calls = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++) {
+            Compact compact = new Compact(context);
+            compact.setId(String.valueOf(i));
+            compact.setTimestamp(100L * i);
+            compact.setActive(true);
+            compact.save();
+        }
+
+        Model.setChangeExecutor(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                tasks.add(task);
+            }
+        });
+
+        LiveQuery<Compact> live = new Compact(context).query()
+                .where("active").eq(true)
+                .orderBy("timestamp", false)
+                .observe(new LiveQuery.Listener<Compact>() {
+                    @Override
+                    public void onChanged(List<Compact> result, List<LiveQuery.Diff<Compact>> diffs) {
+                        calls.add(diffs);
+                    }
+                });
+
+        try {
+            // The very instance held by the result, changed and saved again.
+            Compact held = live.getResult().get(1);
+            held.setTimestamp(300L);
+            held.save();
+
+            for (Runnable task : new ArrayList<>(tasks)) {
+                task.run();
+            }
+            tasks.clear();
+
+            assertEquals("Should be moved!", "[[REMOVED 1, INSERTED 2]]", calls.toString());
+            assertEquals("Should be equal!", "[0, 2, 1]", idsOf(live.getResult()));
+
+            // Changed again before the save is delivered, without saving.
+            held.setTimestamp(50L);
+            held.save();
+            held.setActive(false);
+
+            for (Runnable task : new ArrayList<>(tasks)) {
+                task.run();
+            }
+            tasks.clear();
+
+            assertEquals("Should use the saved fields!", "[REMOVED 2, INSERTED 1]", calls.get(1).toString());
+            assertEquals("Should be equal!", "[0, 1, 2]", idsOf(live.getResult()));
+        } finally {
+            live.close();
+            Model.setChangeExecutor(null);
+        }
+    }
+
+    public void testConcurrentWrites() throws Exception {
+        final int threads = 4;
+        final int perThread = 50;
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] writers = new Thread[threads];
+
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            Single single = new Single(context);
+                            single.setId(thread + "-" + i);
+                            single.setHash("hash " + (i % 5));
+                            single.save();
+
+                            Single shared = new Single(context);
+                            shared.setId("shared");
+                            shared.setHash("thread " + thread);
+                            shared.save();
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            });
+
+            writers[t].start();
+        }
+
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertTrue("Should not fail: " + failures, failures.isEmpty());
+
+        Single dummy = new Single(context);
+
+        assertEquals("Should not lose ids!", threads * perThread + 1, dummy.count());
+        assertEquals("Should find every hash!", threads * perThread / 5, dummy.findBy("hash", "hash 3").size());
+
+        Model.reset(Single.class);
+
+        assertEquals("Should be stored!", threads * perThread + 1, dummy.findAll().size());
+        assertEquals("Shared object should be indexed once!", 1,
+                dummy.findBy("hash", dummy.find("shared").getHash()).size());
+    }
+
+    public void testSnapshot() {
+        Single dummy = new Single(context);
+        List<Single> singles = new ArrayList<>();
+
+        for (int i = 1; i <= 3; i++) {
+            Single single = new Single(context);
+            single.setId(String.valueOf(i));
+            single.setHash("hash " + i);
+            singles.add(single);
+        }
+
+        dummy.saveAll(singles);
+
+        ModelSnapshot<Single> snapshot = dummy.snapshot();
+
+        try {
+            singles.get(0).setHash("changed");
+            singles.get(0).save();
+            singles.get(1).remove();
+
+            Single created = new Single(context);
+            created.setId("4");
+            created.save();
+
+            assertEquals("Should be stored!", "changed", dummy.find("1").getHash());
+            assertEquals("Should not see the changes!", "[1, 2, 3]", snapshot.ids().toString());
+            assertEquals("Should be the old value!", "hash 1", snapshot.find("1").getHash());
+            assertEquals("Should still exist!", "hash 2", snapshot.find("2").getHash());
+            assertNull("Should not exist yet!", snapshot.find("4"));
+
+            List<Single> found = snapshot.findAll();
+
+            assertEquals("Should find three objects!", 3, found.size());
+            assertEquals("Should keep the order!", "hash 2", found.get(1).getHash());
+
+            ModelSnapshot<Single> later = dummy.snapshot();
+
+            assertEquals("Should see the changes!", "[1, 3, 4]", later.ids().toString());
+            later.close();
+        } finally {
+            snapshot.close();
+        }
+
+        singles.get(2).save();
+
+        try {
+            snapshot.find("1");
+            fail("Should be closed!");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+
+        ModelSnapshot<Single> current = dummy.snapshot();
+
+        assertEquals("Should see the current objects!", 3, current.count());
+        current.close();
+    }
+
+    /**
+     * @return An engine whose commits count down committing, then wait for release.
+     */
+    private StorageEngine blockingCommits(final CountDownLatch committing, final CountDownLatch release) {
+        return new SharedPreferencesStorageEngine(context) {
+            @Override
+            public Batch batch() {
+                final Batch batch = super.batch();
+
+                return new Batch() {
+                    @Override
+                    public Batch put(String namespace, String key, byte[] value) {
+                        batch.put(namespace, key, value);
+                        return this;
+                    }
+
+                    @Override
+                    public Batch delete(String namespace, String key) {
+                        batch.delete(namespace, key);
+                        return this;
+                    }
+
+                    @Override
+                    public boolean commit() {
+                        committing.countDown();
+
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            return false;
+                        }
+
+                        return batch.commit();
+                    }
+                };
+            }
+        };
+    }
+
+    public void testSnapshotDuringWrite() throws Exception {
+        Single single = new Single(context);
+        single.setId("1");
+        single.setHash("old");
+        single.save();
+
+        final CountDownLatch committing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Single dummy = new Single(context);
+
+        // Open before the write, so the write keeps the old record.
+        ModelSnapshot<Single> first = dummy.snapshot();
+
+        Model.setStorageEngine(Single.class, blockingCommits(committing, release));
+
+        try {
+            final Single updated = new Single(context);
+            updated.setId("1");
+            updated.setHash("new");
+
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    updated.save();
+                }
+            });
+
+            writer.start();
+            assertTrue("Should be committing!", committing.await(5, TimeUnit.SECONDS));
+
+            final List<ModelSnapshot<Single>> opened = Collections.synchronizedList(new ArrayList<ModelSnapshot<Single>>());
+
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    opened.add(dummy.snapshot());
+                }
+            });
+
+            reader.start();
+            reader.join(5000);
+
+            assertFalse("Should not wait for the write!", reader.isAlive());
+
+            release.countDown();
+            writer.join();
+
+            ModelSnapshot<Single> snapshot = opened.get(0);
+
+            assertEquals("Should not see the write!", "old", snapshot.find("1").getHash());
+            assertEquals("Should not see the write!", "old", first.find("1").getHash());
+            assertEquals("Should see the write!", "new", Single.find("1", context).getHash());
+            snapshot.close();
+        } finally {
+            first.close();
+            release.countDown();
+            Model.setStorageEngine(Single.class, null);
+        }
+    }
+
+    public void testWriteWithoutSnapshot() {
+        final int[] reads = {0};
+        Single single = new Single(context);
+        single.setId("1");
+        single.setHash("old");
+
+        Model.setStorageEngine(Single.class, new SharedPreferencesStorageEngine(context) {
+            @Override
+            public ByteBuffer get(String namespace, String key) {
+                if (namespace.endsWith(".object")) reads[0]++;
+                return super.get(namespace, key);
+            }
+        });
+
+        try {
+            single.save();
+            single.setHash("new");
+            single.save();
+            single.remove();
+
+            assertEquals("Should not keep old records!", 0, reads[0]);
+
+            single.save();
+            ModelSnapshot<Single> snapshot = single.snapshot();
+
+            try {
+                single.setHash("newer");
+                single.save();
+            } finally {
+                snapshot.close();
+            }
+
+            assertEquals("Should keep the old record!", 1, reads[0]);
+        } finally {
+            Model.setStorageEngine(Single.class, null);
+        }
+    }
+
+    public void testSnapshotAfterUntrackedWrite() throws Exception {
+        Single single = new Single(context);
+        single.setId("1");
+        single.setHash("old");
+        single.save();
+
+        final CountDownLatch committing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Single dummy = new Single(context);
+
+        Model.setStorageEngine(Single.class, blockingCommits(committing, release));
+
+        try {
+            final Single updated = new Single(context);
+            updated.setId("1");
+            updated.setHash("new");
+
+            // No snapshot is open, so the write keeps nothing.
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    updated.save();
+                }
+            });
+
+            writer.start();
+            assertTrue("Should be committing!", committing.await(5, TimeUnit.SECONDS));
+
+            final List<ModelSnapshot<Single>> opened = Collections.synchronizedList(new ArrayList<ModelSnapshot<Single>>());
+
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    opened.add(dummy.snapshot());
+                }
+            });
+
+            reader.start();
+            reader.join(200);
+
+            assertTrue("Should wait for the write!", opened.isEmpty());
+
+            release.countDown();
+            writer.join();
+            reader.join(5000);
+
+            ModelSnapshot<Single> snapshot = opened.get(0);
+
+            assertEquals("Should see the committed write!", "new", snapshot.find("1").getHash());
+            snapshot.close();
+        } finally {
+            release.countDown();
+            Model.setStorageEngine(Single.class, null);
+        }
+    }
+
+    private File emptyDir(String name) {
+        File directory = context.getDir(name, Context.MODE_PRIVATE);
+        File[] files = directory.listFiles();
+
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        return directory;
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(Charset.forName("UTF-8"));
+    }
+
+    private static String text(ByteBuffer value) {
+        return (value == null) ? null : Charset.forName("UTF-8").decode(value.duplicate()).toString();
+    }
+
+    private String idsOf(List<Compact> compacts) {
+        List<String> ids = new ArrayList<>();
+
+        for (Compact compact : compacts) {
+            ids.add(compact.getId());
+        }
+
+        return ids.toString();
+    }
 }
@@ -0,0 +1,43 @@
+package com.mauriciogiordano.easydb;
+
+import android.content.Context;
+
+import com.mauriciogiordano.easydb.bean.HasOneModel;
+
+public class Pet extends HasOneModel<Pet, Single> {
+
+    @ModelField
+    private String id;
+    @ModelField
+    private String ownerId;
+
+    public Pet() {
+        super(Pet.class, Single.class, false);
+    }
+
+    public Pet(Context context) {
+        super(Pet.class, Single.class, false, context);
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    public void setOwnerId(String ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    @Override
+    public String getRelatedId() {
+        return ownerId;
+    }
+}
@@ -15,6 +15,7 @@ public class Single extends Model<Single> {
     @ModelField
     private String id;
     @ModelField
+    @Indexed
     private String hash;
     @ModelField
     private List<String> someList;
@@ -0,0 +1,225 @@
+package com.mauriciogiordano.easydb.bean;
+
+import com.mauriciogiordano.easydb.codec.BinaryStreamReader;
+import com.mauriciogiordano.easydb.codec.BinaryStreamWriter;
+
+import org.json.JSONException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary records, used by classes annotated with Model.BinaryFormat.
+ *
+ * Layout: MAGIC, VERSION, schema id (varint), then every field of that...
+ * schema in order, without names. Ints and longs are zigzag varints, floats...
+ * and doubles are fixed size, strings and lists are prefixed by varint(size + 1)...
+ * where 0 means null. The schema (names and kinds) is stored once per class,...
+ * so records written before a field was added, removed or reordered are...
+ * still readable. A number written under another numeric kind is converted,...
+ * any other value whose kind changed is skipped and its field keeps its default.
+ *
+ * MAGIC is never the first byte of a json record (nor valid UTF-8), which...
+ * is how both formats are told apart.
+ */
+class BinaryRecordCodec extends RecordCodec {
+
+    static final int MAGIC = 0xFF;
+    static final int VERSION = 1;
+
+    /**
+     * @param record The record.
+     * @return True if the record was written by this codec.
+     */
+    static boolean isBinary(ByteBuffer record) {
+        return record.hasRemaining() && (record.get(record.position()) & 0xFF) == MAGIC;
+    }
+
+    /**
+     * Reads the schema id of a binary record.
+     *
+     * @param record The record.
+     * @return The schema id.
+     */
+    static int schemaId(ByteBuffer record) throws JSONException {
+        BinaryStreamReader reader = new BinaryStreamReader(record);
+        reader.skip(2);
+
+        return (int) reader.readVarLong();
+    }
+
+    @Override
+    byte[] encode(ModelBinding binding, Object object) {
+        BinaryStreamWriter writer = new BinaryStreamWriter();
+
+        writer.writeByte(MAGIC).writeByte(VERSION).writeVarLong(binding.schema.id & 0xFFFFFFFFL);
+
+        for (ModelBinding.FieldBinding field : binding.fields) {
+            switch (field.kind) {
+                case INT:
+                    writer.writeSignedVarLong(field.getInt(object));
+                    break;
+                case LONG:
+                    writer.writeSignedVarLong(field.getLong(object));
+                    break;
+                case FLOAT:
+                    writer.writeFloat(field.getFloat(object));
+                    break;
+                case DOUBLE:
+                    writer.writeDouble(field.getDouble(object));
+                    break;
+                case STRING:
+                    writer.writeString((CharSequence) field.get(object));
+                    break;
+                case BOOLEAN:
+                    writer.writeBoolean(field.getBoolean(object));
+                    break;
+                case LIST:
+                    List<String> stringList = (List<String>) field.get(object);
+
+                    if (stringList == null) {
+                        writer.writeVarLong(0);
+                    } else {
+                        writer.writeVarLong(stringList.size() + 1);
+
+                        for (String value : stringList) {
+                            writer.writeString(value);
+                        }
+                    }
+
+                    break;
+            }
+        }
+
+        return writer.toByteArray();
+    }
+
+    @Override
+    void decode(ModelBinding binding, ByteBuffer record, FieldVisitor visitor) throws JSONException {
+        BinaryStreamReader reader = new BinaryStreamReader(record);
+
+        if (reader.readByte() != MAGIC || reader.readByte() != VERSION) {
+            throw new JSONException("Unsupported binary record");
+        }
+
+        int id = (int) reader.readVarLong();
+        ModelBinding.Schema schema = binding.schema(id);
+
+        if (schema == null) {
+            throw new JSONException("Unknown schema " + Integer.toHexString(id) + " for " + binding.clazz.getName());
+        }
+
+        for (int i = 0; i < schema.kinds.length; i++) {
+            ModelBinding.FieldBinding field = schema.fields[i];
+            Model.Fields kind = schema.kinds[i];
+
+            if (field == null || !convertible(kind, field.kind) || !visitor.wants(field)) {
+                skip(reader, kind);
+                continue;
+            }
+
+            switch (kind) {
+                case INT:
+                case LONG:
+                    visitNumber(visitor, field, reader.readSignedVarLong());
+                    break;
+                case FLOAT:
+                    visitNumber(visitor, field, reader.readFloat());
+                    break;
+                case DOUBLE:
+                    visitNumber(visitor, field, reader.readDouble());
+                    break;
+                case STRING:
+                    visitor.visitString(field, reader.readString());
+                    break;
+                case BOOLEAN:
+                    visitor.visitBoolean(field, reader.readBoolean());
+                    break;
+                case LIST:
+                    long size = reader.readVarLong() - 1;
+
+                    if (size < 0) {
+                        visitor.visitList(field, null);
+                        break;
+                    }
+
+                    List<String> stringList = new ArrayList<>((int) Math.min(size, 1024));
+
+                    for (long j = 0; j < size; j++) {
+                        stringList.add(reader.readString());
+                    }
+
+                    visitor.visitList(field, stringList);
+                    break;
+            }
+        }
+    }
+
+    private static boolean isNumber(Model.Fields kind) {
+        return kind == Model.Fields.INT || kind == Model.Fields.LONG
+                || kind == Model.Fields.FLOAT || kind == Model.Fields.DOUBLE;
+    }
+
+    /**
+     * @param stored The kind a value was written with.
+     * @param current The kind of its field now.
+     * @return True if the value can be given to the field.
+     */
+    private static boolean convertible(Model.Fields stored, Model.Fields current) {
+        return stored == current || (isNumber(stored) && isNumber(current));
+    }
+
+    /**
+     * Hands a number to the visitor converted to the current kind of the field...
+     * (the kind may have changed since the record was written).
+     */
+    private static void visitNumber(FieldVisitor visitor, ModelBinding.FieldBinding field, double value) {
+        switch (field.kind) {
+            case INT: visitor.visitInt(field, (int) value); break;
+            case LONG: visitor.visitLong(field, (long) value); break;
+            case FLOAT: visitor.visitFloat(field, (float) value); break;
+            case DOUBLE: visitor.visitDouble(field, value); break;
+            default: break;
+        }
+    }
+
+    private static void visitNumber(FieldVisitor visitor, ModelBinding.FieldBinding field, long value) {
+        switch (field.kind) {
+            case INT: visitor.visitInt(field, (int) value); break;
+            case LONG: visitor.visitLong(field, value); break;
+            case FLOAT: visitor.visitFloat(field, value); break;
+            case DOUBLE: visitor.visitDouble(field, value); break;
+            default: break;
+        }
+    }
+
+    private static void skip(BinaryStreamReader reader, Model.Fields kind) throws JSONException {
+        switch (kind) {
+            case INT:
+            case LONG:
+                reader.readVarLong();
+                break;
+            case FLOAT:
+                reader.skip(4);
+                break;
+            case DOUBLE:
+                reader.skip(8);
+                break;
+            case STRING:
+                reader.skipString();
+                break;
+            case BOOLEAN:
+                reader.skip(1);
+                break;
+            case LIST:
+                long size = reader.readVarLong() - 1;
+
+                for (long j = 0; j < size; j++) {
+                    reader.skipString();
+                }
+
+                break;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.mauriciogiordano.easydb.bean;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Delivers the changes of stored objects to the listeners of their class...
+ * or id, off the writing thread.
+ *
+ * Changes are queued when committed, and a single task drains the queue on...
+ * the executor, so every listener gets the changes made since its last call...
+ * in one list. Many changes of the same object are merged into one. Only one...
+ * task runs at a time, whatever the executor, so changes are delivered in...
+ * commit order.
+ */
+final class ChangeDispatcher {
+
+    private static final Object lock = new Object();
+
+    private static final Map<Class<?>, List<Model.OnChangeListener>> classListeners = new HashMap<>();
+    private static final Map<Class<?>, Map<String, List<Model.OnChangeListener>>> idListeners = new HashMap<>();
+
+    private static List<Model.Change> pending = new ArrayList<>();
+    private static boolean scheduled = false;
+
+    private static Executor executor = null;
+    private static ExecutorService defaultExecutor = null;
+
+    private ChangeDispatcher() { }
+
+    private static Executor executor() {
+        synchronized (lock) {
+            if (executor != null) return executor;
+
+            if (defaultExecutor == null) {
+                defaultExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "easydb-changes");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+
+            return defaultExecutor;
+        }
+    }
+
+    /**
+     * @param executor Executor running the listeners, or null for a single...
+     *                 background thread.
+     */
+    static void setExecutor(Executor executor) {
+        synchronized (lock) {
+            ChangeDispatcher.executor = executor;
+        }
+    }
+
+    static void addListener(Class<?> clazz, String id, Model.OnChangeListener listener) {
+        synchronized (lock) {
+            List<Model.OnChangeListener> listeners;
+
+            if (id == null) {
+                listeners = classListeners.get(clazz);
+
+                if (listeners == null) {
+                    listeners = new CopyOnWriteArrayList<>();
+                    classListeners.put(clazz, listeners);
+                }
+            } else {
+                Map<String, List<Model.OnChangeListener>> byId = idListeners.get(clazz);
+
+                if (byId == null) {
+                    byId = new HashMap<>();
+                    idListeners.put(clazz, byId);
+                }
+
+                listeners = byId.get(id);
+
+                if (listeners == null) {
+                    listeners = new CopyOnWriteArrayList<>();
+                    byId.put(id, listeners);
+                }
+            }
+
+            listeners.add(listener);
+        }
+    }
+
+    static void removeListener(Class<?> clazz, String id, Model.OnChangeListener listener) {
+        synchronized (lock) {
+            if (id == null) {
+                List<Model.OnChangeListener> listeners = classListeners.get(clazz);
+
+                if (listeners != null && listeners.remove(listener) && listeners.isEmpty()) {
+                    classListeners.remove(clazz);
+                }
+            } else {
+                Map<String, List<Model.OnChangeListener>> byId = idListeners.get(clazz);
+                List<Model.OnChangeListener> listeners = (byId == null) ? null : byId.get(id);
+
+                if (listeners != null && listeners.remove(listener) && listeners.isEmpty()) {
+                    byId.remove(id);
+
+                    if (byId.isEmpty()) idListeners.remove(clazz);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True if some listener may want the changes of a class.
+     */
+    static boolean isListened(Class<?> clazz) {
+        synchronized (lock) {
+            return classListeners.containsKey(clazz) || idListeners.containsKey(clazz);
+        }
+    }
+
+    /**
+     * Queues committed changes, scheduling their delivery.
+     *
+     * @param changes The changes, in commit order.
+     */
+    static void post(List<Model.Change> changes) {
+        if (changes.isEmpty()) return;
+
+        boolean schedule;
+
+        synchronized (lock) {
+            pending.addAll(changes);
+            schedule = !scheduled;
+            scheduled = true;
+        }
+
+        if (!schedule) return;
+
+        try {
+            executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        } catch (RuntimeException e) {
+            synchronized (lock) {
+                scheduled = false;
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Merges the changes of the same object, keeping the position of its...
+     * first change: created then updated is created, created then removed...
+     * is dropped, removed then created is updated.
+     */
+    private static List<Model.Change> coalesce(List<Model.Change> changes) {
+        Map<List<Object>, Model.Change> merged = new LinkedHashMap<>();
+
+        for (Model.Change change : changes) {
+            List<Object> key = Arrays.<Object>asList(change.getModelClass(), change.getId());
+            Model.Change previous = merged.get(key);
+
+            if (previous == null) {
+                merged.put(key, change);
+                continue;
+            }
+
+            Model.OnUpdateListener.Status status = change.getStatus();
+
+            if (previous.getStatus() == Model.OnUpdateListener.Status.CREATED) {
+                if (status == Model.OnUpdateListener.Status.REMOVED) {
+                    merged.remove(key);
+                    continue;
+                }
+
+                status = Model.OnUpdateListener.Status.CREATED;
+            } else if (previous.getStatus() == Model.OnUpdateListener.Status.REMOVED
+                    && status == Model.OnUpdateListener.Status.CREATED) {
+                status = Model.OnUpdateListener.Status.UPDATED;
+            }
+
+            merged.put(key, change.withStatus(status));
+        }
+
+        return new ArrayList<>(merged.values());
+    }
+
+    /**
+     * Delivers every queued change, then the ones queued meanwhile, until...
+     * the queue is empty.
+     *
+     * The task stays scheduled while it delivers, so changes posted by then...
+     * are left to it instead of starting a second task that could run at the...
+     * same time on another thread of the executor.
+     */
+    private static void drain() {
+        boolean drained = false;
+
+        try {
+            while (true) {
+                List<Model.Change> changes;
+
+                synchronized (lock) {
+                    if (pending.isEmpty()) {
+                        scheduled = false;
+                        drained = true;
+                        return;
+                    }
+
+                    changes = pending;
+                    pending = new ArrayList<>();
+                }
+
+                deliver(changes);
+            }
+        } finally {
+            // A listener threw an Error, the next post schedules a new task.
+            if (!drained) {
+                synchronized (lock) {
+                    scheduled = false;
+                }
+            }
+        }
+    }
+
+    private static void deliver(List<Model.Change> changes) {
+        Map<Model.OnChangeListener, List<Model.Change>> deliveries = new LinkedHashMap<>();
+
+        for (Model.Change change : coalesce(changes)) {
+            List<Model.OnChangeListener> listeners = new ArrayList<>();
+
+            synchronized (lock) {
+                List<Model.OnChangeListener> byClass = classListeners.get(change.getModelClass());
+                Map<String, List<Model.OnChangeListener>> byId = idListeners.get(change.getModelClass());
+                List<Model.OnChangeListener> byObject = (byId == null) ? null : byId.get(change.getId());
+
+                if (byClass != null) listeners.addAll(byClass);
+                if (byObject != null) listeners.addAll(byObject);
+            }
+
+            for (Model.OnChangeListener listener : listeners) {
+                List<Model.Change> delivery = deliveries.get(listener);
+
+                if (delivery == null) {
+                    delivery = new ArrayList<>();
+                    deliveries.put(listener, delivery);
+                }
+
+                // Listening to both the class and the id delivers the change once.
+                if (delivery.isEmpty() || delivery.get(delivery.size() - 1) != change) delivery.add(change);
+            }
+        }
+
+        for (Map.Entry<Model.OnChangeListener, List<Model.Change>> delivery : deliveries.entrySet()) {
+            try {
+                delivery.getKey().onUpdate(Collections.unmodifiableList(delivery.getValue()));
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
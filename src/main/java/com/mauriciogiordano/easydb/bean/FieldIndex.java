@@ -0,0 +1,352 @@
+package com.mauriciogiordano.easydb.bean;
+
+import com.mauriciogiordano.easydb.storage.StorageEngine;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Ids of the stored objects of a class by the value of an indexed field.
+ *
+ * Kept in memory as value to ids and id to value maps, the first one...
+ * sorted by value for ordered indexes. On disk every object is its own...
+ * entry, keyed by value and id, so saving or removing an object only...
+ * writes the entries of that object.
+ */
+final class FieldIndex {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Key prefix of objects with a null value.
+     */
+    private static final String NULL_PREFIX = "-:";
+
+    /**
+     * Natural order of the values, null first.
+     */
+    static final Comparator<Object> ORDER = new Comparator<Object>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compare(Object a, Object b) {
+            if (a == null) return (b == null) ? 0 : -1;
+            if (b == null) return 1;
+
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+    };
+
+    final ModelBinding.FieldBinding field;
+
+    /**
+     * Full name of the namespace holding the entries.
+     */
+    private final String namespace;
+
+    private final Map<Object, Set<String>> ids;
+    private final Map<String, Object> values = new HashMap<>();
+
+    private FieldIndex(String namespace, ModelBinding.FieldBinding field, boolean ordered) {
+        this.namespace = namespace;
+        this.field = field;
+        this.ids = ordered ? new TreeMap<Object, Set<String>>(ORDER) : new HashMap<Object, Set<String>>();
+    }
+
+    /**
+     * Loads the index of a field.
+     *
+     * @param storageEngine The engine where the class is stored.
+     * @param namespace Full name of the namespace holding the entries.
+     * @param field The indexed field.
+     * @param ordered Should keep the values sorted.
+     * @return The index.
+     */
+    static FieldIndex load(StorageEngine storageEngine, String namespace,
+                           ModelBinding.FieldBinding field, boolean ordered) {
+        final FieldIndex index = new FieldIndex(namespace, field, ordered);
+
+        storageEngine.scan(namespace, null, new StorageEngine.Visitor() {
+            @Override
+            public boolean visit(String key, ByteBuffer value) {
+                index.parse(key);
+                return true;
+            }
+        });
+
+        return index;
+    }
+
+    /**
+     * Builds the key of an entry. Values are prefixed by their length, so...
+     * no character has to be escaped.
+     */
+    private static String key(Object value, String id) {
+        if (value == null) return NULL_PREFIX + id;
+
+        String text = value.toString();
+        return text.length() + ":" + text + id;
+    }
+
+    /**
+     * Adds an entry read from storage, ignoring malformed keys.
+     */
+    private void parse(String key) {
+        try {
+            if (key.startsWith(NULL_PREFIX)) {
+                add(key.substring(NULL_PREFIX.length()), null);
+                return;
+            }
+
+            int separator = key.indexOf(':');
+            int end = separator + 1 + Integer.parseInt(key.substring(0, separator));
+
+            add(key.substring(end), normalize(field, key.substring(separator + 1, end)));
+        } catch (RuntimeException e) {
+            // Not an entry of this index.
+        }
+    }
+
+    private void add(String id, Object value) {
+        Set<String> valueIds = ids.get(value);
+
+        if (valueIds == null) {
+            valueIds = new LinkedHashSet<>();
+            ids.put(value, valueIds);
+        }
+
+        valueIds.add(id);
+        values.put(id, value);
+    }
+
+    private void delete(String id) {
+        Object value = values.remove(id);
+        Set<String> valueIds = ids.get(value);
+
+        if (valueIds != null) {
+            valueIds.remove(id);
+
+            if (valueIds.isEmpty()) ids.remove(value);
+        }
+    }
+
+    /**
+     * Converts a value to the type a field is indexed and compared with.
+     *
+     * @param field The field.
+     * @param value The value, as its own type or as text.
+     * @return The converted value.
+     * @throws IllegalArgumentException in case the value can't be converted.
+     */
+    static Object normalize(ModelBinding.FieldBinding field, Object value) {
+        if (value == null) return null;
+
+        String text = value.toString();
+
+        try {
+            switch (field.kind) {
+                case INT:
+                    return (value instanceof Number) ? ((Number) value).intValue() : Integer.valueOf(text);
+                case LONG:
+                    return (value instanceof Number) ? ((Number) value).longValue() : Long.valueOf(text);
+                case FLOAT:
+                    return (value instanceof Number) ? ((Number) value).floatValue() : Float.valueOf(text);
+                case DOUBLE:
+                    return (value instanceof Number) ? ((Number) value).doubleValue() : Double.valueOf(text);
+                case BOOLEAN:
+                    return (value instanceof Boolean) ? value : Boolean.valueOf(text);
+                default:
+                    return text;
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Value '" + value + "' is not valid for field '" + field.name + "'!");
+        }
+    }
+
+    /**
+     * Reads the value of a field of an object, as normalize() returns it.
+     *
+     * @param field The field.
+     * @param target The object.
+     * @return The value.
+     */
+    static Object valueOf(ModelBinding.FieldBinding field, Object target) {
+        switch (field.kind) {
+            case INT:
+                return field.getInt(target);
+            case LONG:
+                return field.getLong(target);
+            case FLOAT:
+                return field.getFloat(target);
+            case DOUBLE:
+                return field.getDouble(target);
+            case BOOLEAN:
+                return field.getBoolean(target);
+            default:
+                Object value = field.get(target);
+                return (value == null) ? null : value.toString();
+        }
+    }
+
+    boolean isOrdered() {
+        return ids instanceof NavigableMap;
+    }
+
+    synchronized boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    /**
+     * @param value The value, as its own type or as text.
+     * @return Ids of the objects with the value.
+     */
+    synchronized List<String> find(Object value) {
+        Set<String> valueIds = ids.get(normalize(field, value));
+
+        return (valueIds == null) ? Collections.<String>emptyList() : new ArrayList<>(valueIds);
+    }
+
+    /**
+     * Walks the values between from and to (inclusive) in order.
+     *
+     * @param from The lowest value, or null for no lower bound.
+     * @param to The highest value, or null for no upper bound.
+     * @param descending Should walk from the highest value.
+     * @param limit How many ids to return at most, 0 for no limit.
+     * @return Ids of the objects found.
+     * @throws IllegalArgumentException in case the index is not ordered.
+     */
+    synchronized List<String> range(Object from, Object to, boolean descending, int limit) {
+        if (!isOrdered()) {
+            throw new IllegalArgumentException("Field '" + field.name + "' is not indexed in order!");
+        }
+
+        NavigableMap<Object, Set<String>> range = (NavigableMap<Object, Set<String>>) ids;
+        List<String> found = new ArrayList<>();
+
+        from = normalize(field, from);
+        to = normalize(field, to);
+
+        if (from != null && to != null && ORDER.compare(from, to) > 0) return found;
+
+        if (from != null) {
+            range = range.tailMap(from, true);
+        } else if (range.containsKey(null)) {
+            // Objects without value are only returned when walking everything.
+            if (to != null) range = range.tailMap(null, false);
+        }
+
+        if (to != null) range = range.headMap(to, true);
+
+        if (descending) range = range.descendingMap();
+
+        for (Set<String> valueIds : range.values()) {
+            for (String id : valueIds) {
+                if (limit > 0 && found.size() >= limit) return found;
+
+                found.add(id);
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Adds every indexed value to a summary.
+     *
+     * @param summary The summary.
+     */
+    synchronized void summarize(FieldSummary summary) {
+        for (Map.Entry<Object, Set<String>> entry : ids.entrySet()) {
+            summary.add(entry.getKey(), entry.getValue().size());
+        }
+    }
+
+    /**
+     * Writes the entry of an object to a batch, deleting the previous one if...
+     * the value changed, without indexing it. The object is indexed by...
+     * applyPut() once the batch is committed.
+     *
+     * @param id The object's id.
+     * @param target The object.
+     * @param batch The batch entries are written to.
+     * @return The value to give to applyPut().
+     */
+    synchronized Object stagePut(String id, Object target, StorageEngine.Batch batch) {
+        Object value = valueOf(field, target);
+
+        if (values.containsKey(id)) {
+            Object previous = values.get(id);
+
+            if ((previous == null) ? value == null : previous.equals(value)) return value;
+
+            batch.delete(namespace, key(previous, id));
+        }
+
+        batch.put(namespace, key(value, id), EMPTY);
+        return value;
+    }
+
+    /**
+     * Indexes an object whose entry was committed.
+     *
+     * @param id The object's id.
+     * @param value What stagePut() returned.
+     */
+    synchronized void applyPut(String id, Object value) {
+        if (values.containsKey(id)) delete(id);
+
+        add(id, value);
+    }
+
+    /**
+     * Deletes the entry of an object in a batch, without removing it. The...
+     * object is removed by applyRemove() once the batch is committed.
+     *
+     * @param id The object's id.
+     * @param batch The batch entries are deleted in.
+     */
+    synchronized void stageRemove(String id, StorageEngine.Batch batch) {
+        if (values.containsKey(id)) batch.delete(namespace, key(values.get(id), id));
+    }
+
+    /**
+     * Removes an object whose entry deletion was committed.
+     *
+     * @param id The object's id.
+     */
+    synchronized void applyRemove(String id) {
+        if (values.containsKey(id)) delete(id);
+    }
+
+    /**
+     * Indexes an object, replacing its previous entry if the value changed.
+     *
+     * @param id The object's id.
+     * @param target The object.
+     * @param batch The batch entries are written to.
+     */
+    synchronized void put(String id, Object target, StorageEngine.Batch batch) {
+        Object value = valueOf(field, target);
+
+        if (values.containsKey(id)) {
+            Object previous = values.get(id);
+
+            if ((previous == null) ? value == null : previous.equals(value)) return;
+
+            batch.delete(namespace, key(previous, id));
+            delete(id);
+        }
+
+        batch.put(namespace, key(value, id), EMPTY);
+        add(id, value);
+    }
+}
@@ -0,0 +1,127 @@
+package com.mauriciogiordano.easydb.bean;
+
+import com.mauriciogiordano.easydb.storage.StorageEngine;
+
+import org.json.JSONException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Count, sum, minimum and maximum of a numeric field over the stored...
+ * objects of a class.
+ *
+ * Indexed fields are summarized from their index in memory. Other fields...
+ * are streamed from the stored records, decoding only that field and never...
+ * creating objects.
+ */
+final class FieldSummary {
+
+    private final ModelBinding.FieldBinding field;
+
+    long count = 0;
+    double sum = 0;
+    Number min = null;
+    Number max = null;
+
+    private FieldSummary(ModelBinding.FieldBinding field) {
+        this.field = field;
+    }
+
+    /**
+     * Adds a value found in some objects.
+     *
+     * @param value The value, as FieldIndex.normalize() returns it.
+     * @param times How many objects have it.
+     */
+    void add(Object value, int times) {
+        Number number = (Number) FieldIndex.normalize(field, (value == null) ? 0 : value);
+
+        count += times;
+        sum += number.doubleValue() * times;
+
+        if (min == null || FieldIndex.ORDER.compare(number, min) < 0) min = number;
+        if (max == null || FieldIndex.ORDER.compare(number, max) > 0) max = number;
+    }
+
+    /**
+     * Summarizes a field of the stored objects of a class.
+     *
+     * @param model Instance of the class.
+     * @param name The field's name.
+     * @return The summary.
+     * @throws IllegalArgumentException in case the field is not stored or not numeric.
+     */
+    static FieldSummary of(Model<?> model, String name) {
+        final ModelBinding.FieldBinding field = model.binding.field(name);
+
+        if (field == null) {
+            throw new IllegalArgumentException("Field '" + name + "' is not stored!");
+        }
+
+        switch (field.kind) {
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                break;
+            default:
+                throw new IllegalArgumentException("Field '" + name + "' is not numeric!");
+        }
+
+        final FieldSummary summary = new FieldSummary(field);
+
+        for (FieldIndex index : model.getFieldIndexes()) {
+            if (index.field == field) {
+                index.summarize(summary);
+                return summary;
+            }
+        }
+
+        StorageEngine storageEngine = model.loadStorageEngine();
+        String namespace = model.getNamespace("object");
+
+        for (String id : model.getIdIndex().ids()) {
+            ByteBuffer record = storageEngine.get(namespace, id);
+
+            if (record == null) continue;
+
+            final Object[] value = {null};
+
+            try {
+                model.codecOf(record).decode(model.binding, record, new RecordCodec.FieldVisitor() {
+                    @Override
+                    boolean wants(ModelBinding.FieldBinding visited) {
+                        return visited == field;
+                    }
+
+                    @Override
+                    void visitInt(ModelBinding.FieldBinding visited, int visitedValue) {
+                        value[0] = visitedValue;
+                    }
+
+                    @Override
+                    void visitLong(ModelBinding.FieldBinding visited, long visitedValue) {
+                        value[0] = visitedValue;
+                    }
+
+                    @Override
+                    void visitFloat(ModelBinding.FieldBinding visited, float visitedValue) {
+                        value[0] = visitedValue;
+                    }
+
+                    @Override
+                    void visitDouble(ModelBinding.FieldBinding visited, double visitedValue) {
+                        value[0] = visitedValue;
+                    }
+                });
+            } catch (JSONException e) {
+                e.printStackTrace();
+                continue;
+            }
+
+            summary.add(value[0], 1);
+        }
+
+        return summary;
+    }
+}
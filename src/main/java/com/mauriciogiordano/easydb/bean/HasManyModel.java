@@ -1,14 +1,21 @@
 package com.mauriciogiordano.easydb.bean;
 
 import android.content.Context;
-import android.content.SharedPreferences;
+
+import com.mauriciogiordano.easydb.storage.StorageEngine;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 public abstract class HasManyModel<F, C> extends Model {
 
@@ -18,9 +25,22 @@ public abstract class HasManyModel<F, C> extends Model {
     protected Class<C> childClazz;
 
     /**
-     * Cache related.
+     * What happens to the children when the object is removed.
      */
-    private List<String> childrenList = null;
+    public enum Cascade {
+        /**
+         * Children and the list of children are kept.
+         */
+        NONE,
+        /**
+         * The list of children is removed, children are kept.
+         */
+        DETACH,
+        /**
+         * The list of children and the children are removed.
+         */
+        DELETE
+    }
 
     /**
      * Default constructor, but all inherited objects should have an empty constructor for...
@@ -51,22 +71,80 @@ public abstract class HasManyModel<F, C> extends Model {
         this.childClazz = childClazz;
     }
 
+    private IdIndex getChildrenIndex() {
+        return getChildrenIndex(String.valueOf(getId()));
+    }
+
     /**
-     * Get a list of child objects ids.
+     * Loads the index of child ids of an object, migrating its old...
+     * comma-joined list if needed. Entries of every object share a namespace,...
+     * keyed by the object's id (prefixed by its length) plus the child's id.
+     * The index is shared by every instance of the class, and only changed...
+     * holding the lock of the object.
      *
+     * @param id The object's id.
      * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null..
      * context.
-     * @return List of all children.
+     * @return The index of all children.
+     */
+    private IdIndex getChildrenIndex(String id) {
+        ConcurrentMap<String, IdIndex> indexes = getChildIndexes();
+        IdIndex children = indexes.get(id);
+
+        if (children != null) return children;
+
+        StripedLocks.lock(clazz, id);
+
+        try {
+            children = indexes.get(id);
+
+            if (children == null) {
+                children = IdIndex.load(loadStorageEngine(), getNamespace("childIndex"), childPrefix(id),
+                        getNamespace("children"), id);
+                indexes.put(id, children);
+            }
+
+            return children;
+        } finally {
+            StripedLocks.unlock(clazz, id);
+        }
+    }
+
+    /**
+     * @return Prefix of the children entries of an object.
      */
-    private List<String> getChildrenList() {
-        if (childrenList != null) return childrenList;
+    private static String childPrefix(String id) {
+        return id.length() + ":" + id;
+    }
 
-        SharedPreferences prefs = loadSharedPreferences("children");
+    /**
+     * Creates a dummy child, used to reach the children's storage.
+     *
+     * @return The dummy, or null if the child class can't be instantiated.
+     */
+    private Model newChild() {
+        try {
+            Model dummy = (Model) childClazz.newInstance();
+            dummy.setContext(context);
 
-        String list = prefs.getString(getId(), null);
+            return dummy;
+        } catch (InstantiationException e) {
+            e.printStackTrace();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+        }
 
-        childrenList = (list == null) ? new ArrayList<String>() : new ArrayList<>(Arrays.asList(list.split(",")));
-        return childrenList;
+        return null;
+    }
+
+    /**
+     * Tells what happens to the children when the object is removed.
+     * Override it to remove or detach children, the default keeps them.
+     *
+     * @return The cascade mode.
+     */
+    protected Cascade getCascade() {
+        return Cascade.NONE;
     }
 
     /**
@@ -78,31 +156,73 @@ public abstract class HasManyModel<F, C> extends Model {
      * @return The index of the child.
      */
     public int indexOfChild(String id) {
-        return getChildrenList().indexOf(id);
+        int position = getChildrenIndex().indexOf(id);
+
+        return (position < 0) ? ArrayUtils.INDEX_NOT_FOUND : position;
+    }
+
+    /**
+     * Counts the children without reading them.
+     *
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * @return How many children the object has.
+     */
+    public int childCount() {
+        return getChildrenIndex().size();
     }
 
     /**
-     * Adds the object to the child ids list.
+     * Saves a child and adds it to the child ids list.
+     *
+     * A child has a single parent: a child already added to another object...
+     * is moved, leaving the children of the other object in the same commit.
      *
      * @param child The child to be added.
      * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * @throws com.mauriciogiordano.easydb.exception.StorageException in case the child could not be added.
      */
     public void addChild(C child) {
-        SharedPreferences prefs = loadSharedPreferences("children");
-
-        List<String> objects = getChildrenList();
-
+        String id = String.valueOf(getId());
         Model toPut = (Model) child;
 
-        if (objects.indexOf(toPut.getId()) != ArrayUtils.INDEX_NOT_FOUND) {
+        if (getChildrenIndex(id).contains(toPut.getId())) {
             return;
         }
 
-        objects.add(toPut.getId());
-
         toPut.save();
 
-        prefs.edit().putString(String.valueOf(getId()), StringUtils.join(objects, ",")).commit();
+        String childId = toPut.getId();
+
+        while (true) {
+            String previous = parentIdOf(childId);
+            boolean moved = previous != null && !previous.equals(id);
+            boolean[] held = StripedLocks.lockAll(clazz, moved ? Arrays.asList(id, previous) : Arrays.asList(id));
+
+            try {
+                // Moved by another writer before the lock, try again.
+                if (!StringUtils.equals(previous, parentIdOf(childId))) continue;
+
+                IdIndex children = getChildrenIndex(id);
+
+                if (children.contains(childId)) return;
+
+                IdIndex previousChildren = moved ? getChildrenIndex(previous) : null;
+                StorageEngine.Batch batch = loadStorageEngine().batch();
+
+                if (moved) previousChildren.stageRemove(childId, batch);
+
+                long sequence = children.stageAdd(childId, batch);
+                batch.put(getNamespace("childParent"), childId, id.getBytes(UTF_8));
+                commit(batch, "add child " + childId);
+
+                if (moved) previousChildren.applyRemove(childId);
+
+                children.applyAdd(childId, sequence);
+                return;
+            } finally {
+                StripedLocks.unlockAll(clazz, held);
+            }
+        }
     }
 
     /**
@@ -113,18 +233,29 @@ public abstract class HasManyModel<F, C> extends Model {
      * @return True if removed successfully and false otherwise.
      */
     public boolean removeChild(String id) {
-        SharedPreferences prefs = loadSharedPreferences("children");
+        String parentId = String.valueOf(getId());
 
-        List<String> objects = getChildrenList();
+        StripedLocks.lock(clazz, parentId);
 
-        if (objects.indexOf(id) == ArrayUtils.INDEX_NOT_FOUND) {
-            return false;
-        }
+        try {
+            IdIndex children = getChildrenIndex(parentId);
+            StorageEngine.Batch batch = loadStorageEngine().batch();
 
-        objects.remove(id);
-        prefs.edit().putString(String.valueOf(getId()), StringUtils.join(objects, ",")).commit();
+            if (!children.stageRemove(id, batch)) {
+                return false;
+            }
 
-        return true;
+            if (parentId.equals(parentIdOf(id))) {
+                batch.delete(getNamespace("childParent"), id);
+            }
+
+            commit(batch, "remove child " + id);
+            children.applyRemove(id);
+
+            return true;
+        } finally {
+            StripedLocks.unlock(clazz, parentId);
+        }
     }
 
     /**
@@ -135,20 +266,226 @@ public abstract class HasManyModel<F, C> extends Model {
      * @return True if removed successfully and false otherwise.
      */
     public boolean removeChild(C object) {
-        SharedPreferences prefs = loadSharedPreferences("children");
+        return removeChild(((Model) object).getId());
+    }
+
+    /**
+     * Returns the id of the object a child was added to.
+     *
+     * @param childId The child's id.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * @return The parent's id if found, null otherwise.
+     */
+    public String parentIdOf(String childId) {
+        return readValue("childParent", childId);
+    }
+
+    /**
+     * Finds the object a child was added to.
+     *
+     * TODO: Figure out how to make this accesible without...
+     *       creating a dummy instance.
+     *
+     * @param childId The child's id.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * @return The parent if found, null otherwise.
+     */
+    public F findParent(String childId) {
+        String parentId = parentIdOf(childId);
+
+        return (parentId == null) ? null : (F) find(parentId);
+    }
+
+    /**
+     * Removes the children entries of a removed object in the batch removing...
+     * it, and the children too if the cascade mode is DELETE, so everything...
+     * is committed at once. Children stored by another engine can't join...
+     * the batch, so they are removed right after it, in a commit of their own.
+     */
+    @Override
+    protected PendingChange onRemove(final String id, StorageEngine.Batch batch) {
+        Cascade cascade = getCascade();
 
-        List<String> objects = getChildrenList();
+        if (cascade == Cascade.NONE) return null;
 
-        String id = ((Model) object).getId();
+        IdIndex children = getChildrenIndex(id);
+        List<String> childIds = children.ids();
 
-        if (objects.indexOf(id) == ArrayUtils.INDEX_NOT_FOUND) {
-            return false;
+        for (String childId : childIds) {
+            children.stageRemove(childId, batch);
+            batch.delete(getNamespace("childParent"), childId);
         }
 
-        objects.remove(id);
-        prefs.edit().putString(String.valueOf(getId()), StringUtils.join(objects, ",")).commit();
+        final List<String> removedIds = childIds;
+        final Model dummy = (cascade == Cascade.DELETE && !childIds.isEmpty()) ? newChild() : null;
+        final PendingChange removal = (dummy != null && sharesStorageWith(childClazz))
+                ? dummy.stageRemoveAll(childIds, batch) : null;
+
+        return new PendingChange() {
+            @Override
+            public void commit() {
+                getChildIndexes().remove(id);
+
+                if (removal != null) {
+                    removal.commit();
+                } else if (dummy != null) {
+                    dummy.removeAll(removedIds);
+                }
+            }
 
-        return true;
+            @Override
+            public void abort() {
+                if (removal != null) removal.abort();
+            }
+        };
+    }
+
+    /**
+     * Removes the children entries left by removed objects (and their...
+     * children, if the cascade mode is DELETE), and rebuilds missing...
+     * child to parent entries, with a single commit (children stored by...
+     * another engine are removed after it). Reads every children...
+     * entry and holds every lock of the class meanwhile, so run it off the...
+     * main thread, e.g. with sweepOrphansInBackground().
+     *
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * @throws com.mauriciogiordano.easydb.exception.StorageException in case the changes could not be written.
+     * @return How many entries (and children) were removed.
+     */
+    public int sweepOrphans() {
+        boolean[] held = StripedLocks.lockClass(clazz);
+
+        try {
+            StorageEngine storageEngine = loadStorageEngine();
+            final IdIndex parents = getIdIndex();
+            final StorageEngine.Batch batch = storageEngine.batch();
+
+            final String childIndexNamespace = getNamespace("childIndex");
+            final String childParentNamespace = getNamespace("childParent");
+            final String legacyNamespace = getNamespace("children");
+
+            final Map<String, String> parentOf = new HashMap<>();
+            final Set<String> orphans = new HashSet<>();
+            final Set<String> removedParents = new HashSet<>();
+            final int[] swept = {0};
+
+            storageEngine.scan(childIndexNamespace, null, new StorageEngine.Visitor() {
+                @Override
+                public boolean visit(String key, ByteBuffer value) {
+                    int separator = key.indexOf(':');
+                    int end;
+
+                    try {
+                        end = separator + 1 + Integer.parseInt(key.substring(0, separator));
+                    } catch (RuntimeException e) {
+                        return true;
+                    }
+
+                    if (end > key.length()) return true;
+
+                    String parentId = key.substring(separator + 1, end);
+                    String childId = key.substring(end);
+
+                    if (parents.contains(parentId)) {
+                        parentOf.put(childId, parentId);
+                    } else {
+                        batch.delete(childIndexNamespace, key);
+                        orphans.add(childId);
+                        removedParents.add(parentId);
+                        swept[0]++;
+                    }
+
+                    return true;
+                }
+            });
+
+            final Set<String> linked = new HashSet<>();
+
+            storageEngine.scan(childParentNamespace, null, new StorageEngine.Visitor() {
+                @Override
+                public boolean visit(String key, ByteBuffer value) {
+                    if (UTF_8.decode(value).toString().equals(parentOf.get(key))) {
+                        linked.add(key);
+                    } else {
+                        batch.delete(childParentNamespace, key);
+                        swept[0]++;
+                    }
+
+                    return true;
+                }
+            });
+
+            for (Map.Entry<String, String> entry : parentOf.entrySet()) {
+                if (!linked.contains(entry.getKey())) {
+                    batch.put(childParentNamespace, entry.getKey(), entry.getValue().getBytes(UTF_8));
+                }
+            }
+
+            storageEngine.scan(legacyNamespace, null, new StorageEngine.Visitor() {
+                @Override
+                public boolean visit(String key, ByteBuffer value) {
+                    if (!parents.contains(key)) {
+                        for (String childId : UTF_8.decode(value).toString().split(",")) {
+                            if (!childId.isEmpty()) orphans.add(childId);
+                        }
+
+                        batch.delete(legacyNamespace, key);
+                        removedParents.add(key);
+                        swept[0]++;
+                    }
+
+                    return true;
+                }
+            });
+
+            orphans.removeAll(parentOf.keySet());
+
+            Model dummy = (getCascade() == Cascade.DELETE && !orphans.isEmpty()) ? newChild() : null;
+            Removal removal = (dummy != null && sharesStorageWith(childClazz))
+                    ? dummy.stageRemoveAll(orphans, batch) : null;
+
+            try {
+                commit(batch, "sweep orphans of " + clazz.getName());
+            } catch (RuntimeException e) {
+                if (removal != null) removal.abort();
+                throw e;
+            }
+
+            for (String parentId : removedParents) {
+                getChildIndexes().remove(parentId);
+            }
+
+            if (removal != null) {
+                removal.commit();
+                swept[0] += removal.size();
+            } else if (dummy != null) {
+                swept[0] += dummy.removeAll(orphans);
+            }
+
+            return swept[0];
+        } finally {
+            StripedLocks.unlockAll(clazz, held);
+        }
+    }
+
+    /**
+     * Runs sweepOrphans() on a low priority background thread.
+     */
+    public void sweepOrphansInBackground() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweepOrphans();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "easydb-orphan-sweep");
+
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
     }
 
     /**
@@ -162,9 +499,7 @@ public abstract class HasManyModel<F, C> extends Model {
      * @return The child if found, null otherwise.
      */
     public C findChild(String id) {
-        int index = getChildrenList().indexOf(id);
-
-        if (index == ArrayUtils.INDEX_NOT_FOUND) {
+        if (!getChildrenIndex().contains(id)) {
             return null;
         }
 
@@ -186,6 +521,7 @@ public abstract class HasManyModel<F, C> extends Model {
 
     /**
      * Find all objects from the child list.
+     * Children not cached are read with a single storage call.
      *
      * TODO: Figure out how to make this accesible without...
      *       creating a dummy instance.
@@ -194,7 +530,7 @@ public abstract class HasManyModel<F, C> extends Model {
      * @return A list of all children.
      */
     public List<C> findAllChildren() {
-        List<String> objects = getChildrenList();
+        List<String> objects = getChildrenIndex().ids();
 
         List<C> children = new ArrayList<C>();
 
@@ -202,9 +538,7 @@ public abstract class HasManyModel<F, C> extends Model {
             Model dummy = (Model) childClazz.newInstance();
             dummy.setContext(context);
 
-            for (String id : objects) {
-                children.add((C) dummy.find(id));
-            }
+            children = dummy.findAll(objects);
         } catch (IllegalAccessException e) {
             e.printStackTrace();
         } catch (InstantiationException e) {
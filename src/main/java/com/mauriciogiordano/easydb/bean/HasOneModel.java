@@ -2,6 +2,15 @@ package com.mauriciogiordano.easydb.bean;
 
 import android.content.Context;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Created by mauricio on 12/7/14.
  */
@@ -9,6 +18,13 @@ public abstract class HasOneModel<T, O> extends Model<T> {
 
     protected Class<O> relatedClazz;
 
+    /**
+     * Related object attached by prefetch(), and the id it was read for.
+     */
+    private O related = null;
+    private String relatedId = null;
+    private boolean prefetched = false;
+
     public HasOneModel(Class<T> clazz, Class<O> relatedClazz, boolean cache) {
         super(clazz, cache);
         this.relatedClazz = relatedClazz;
@@ -19,20 +35,102 @@ public abstract class HasOneModel<T, O> extends Model<T> {
         this.relatedClazz = relatedClazz;
     }
 
-    public O findRelated(String fallback) {
-        O object = null;
-
+    /**
+     * Creates a dummy related object, used to reach the related storage.
+     *
+     * @return The dummy, or null if the related class can't be instantiated.
+     */
+    private Model<O> newRelated() {
         try {
-            O dummy = relatedClazz.newInstance();
+            Model<O> dummy = (Model<O>) relatedClazz.newInstance();
+            dummy.setContext(context);
 
-            object = (O) ((Model) dummy).find(getRelatedId());
+            return dummy;
         } catch(IllegalAccessException e) {
             e.printStackTrace();
         } catch(InstantiationException e) {
             e.printStackTrace();
         }
 
-        return object;
+        return null;
+    }
+
+    /**
+     * Finds the related object. Served from memory when it was read by...
+     * prefetch() and the related id did not change since.
+     *
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * @return The related object if found, null otherwise.
+     */
+    public O findRelated(String fallback) {
+        String id = getRelatedId();
+
+        if (prefetched && (id == null ? relatedId == null : id.equals(relatedId))) {
+            return related;
+        }
+
+        if (id == null) return null;
+
+        Model<O> dummy = newRelated();
+
+        return (dummy == null) ? null : dummy.find(id);
+    }
+
+    /**
+     * Reads the related objects of many objects with a single storage call...
+     * and attaches them, so findRelated() doesn't read storage again. Each...
+     * related id is read once, however many objects share it.
+     *
+     * <pre>
+     * List&lt;Message&gt; messages = new Message(context).findAll();
+     * HasOneModel.prefetch(messages);
+     *
+     * for (Message message : messages) {
+     *     User sender = message.findRelated(null);
+     * }
+     * </pre>
+     *
+     * @param objects The objects, all of the same class.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    public static <O> void prefetch(Collection<? extends HasOneModel<?, O>> objects) {
+        Iterator<? extends HasOneModel<?, O>> iterator = objects.iterator();
+        HasOneModel<?, O> first = null;
+
+        while (first == null && iterator.hasNext()) {
+            first = iterator.next();
+        }
+
+        if (first == null) return;
+
+        Set<String> ids = new LinkedHashSet<>();
+
+        for (HasOneModel<?, O> object : objects) {
+            if (object != null && object.getRelatedId() != null) ids.add(object.getRelatedId());
+        }
+
+        Map<String, O> found = new HashMap<>(ids.size() * 2);
+
+        if (!ids.isEmpty()) {
+            Model<O> dummy = first.newRelated();
+
+            if (dummy == null) return;
+
+            List<String> idList = new ArrayList<>(ids);
+            List<O> relatedObjects = dummy.findMany(idList);
+
+            for (int i = 0; i < idList.size(); i++) {
+                found.put(idList.get(i), relatedObjects.get(i));
+            }
+        }
+
+        for (HasOneModel<?, O> object : objects) {
+            if (object == null) continue;
+
+            object.relatedId = object.getRelatedId();
+            object.related = (object.relatedId == null) ? null : found.get(object.relatedId);
+            object.prefetched = true;
+        }
     }
 
     public abstract String getRelatedId();
@@ -0,0 +1,246 @@
+package com.mauriciogiordano.easydb.bean;
+
+import com.mauriciogiordano.easydb.storage.StorageEngine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ids of every stored object of a class (or of every child of a parent).
+ *
+ * Kept in memory as a set, so checking, adding and removing an id costs...
+ * O(1). On disk every id is its own entry (key is the prefix plus the id,...
+ * value is the sequence it was added with), so adding or removing one id...
+ * only writes that entry, and the sequence keeps the order ids were added in.
+ *
+ * Safe for many threads without locking: writers stage entries in a batch...
+ * and apply them once it is committed (writers of the same id hold its...
+ * lock), sequences come from an atomic counter, and readers never wait...
+ * for writers.
+ */
+final class IdIndex {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Full name of the namespace holding the entries.
+     */
+    private final String namespace;
+
+    /**
+     * Prefix of the keys of the entries, so many indexes can share a namespace.
+     */
+    private final String prefix;
+
+    private final ConcurrentMap<String, Long> sequences = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<Long, String> ids = new ConcurrentSkipListMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private IdIndex(String namespace, String prefix) {
+        this.namespace = namespace;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Loads the index of a class, migrating the old comma-joined ids list...
+     * if the index is still empty.
+     *
+     * @param storageEngine The engine where the class is stored.
+     * @param namespace Full name of the namespace holding the entries.
+     * @param legacyNamespace Full name of the namespace of the old ids list.
+     * @return The index.
+     */
+    static IdIndex load(StorageEngine storageEngine, String namespace, String legacyNamespace) {
+        return load(storageEngine, namespace, "", legacyNamespace, "list");
+    }
+
+    /**
+     * Loads an index whose entries share a namespace with other indexes,...
+     * migrating an old comma-joined ids list if the index is still empty.
+     *
+     * @param storageEngine The engine where the index is stored.
+     * @param namespace Full name of the namespace holding the entries.
+     * @param prefix Prefix of the keys of the entries.
+     * @param legacyNamespace Full name of the namespace of the old ids list.
+     * @param legacyKey Key of the old ids list.
+     * @return The index.
+     */
+    static IdIndex load(StorageEngine storageEngine, String namespace, final String prefix,
+                        String legacyNamespace, String legacyKey) {
+        final IdIndex index = new IdIndex(namespace, prefix);
+        final Map<String, Long> entries = new HashMap<>();
+
+        storageEngine.scan(namespace, prefix.isEmpty() ? null : prefix, new StorageEngine.Visitor() {
+            @Override
+            public boolean visit(String key, ByteBuffer value) {
+                long sequence;
+
+                try {
+                    sequence = Long.parseLong(UTF_8.decode(value).toString());
+                } catch (NumberFormatException e) {
+                    sequence = 0;
+                }
+
+                entries.put(key.substring(prefix.length()), sequence);
+                return true;
+            }
+        });
+
+        if (!entries.isEmpty()) {
+            List<Map.Entry<String, Long>> sorted = new ArrayList<>(entries.entrySet());
+
+            Collections.sort(sorted, new Comparator<Map.Entry<String, Long>>() {
+                @Override
+                public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                    return (a.getValue() < b.getValue()) ? -1 : ((a.getValue() > b.getValue()) ? 1 : 0);
+                }
+            });
+
+            for (Map.Entry<String, Long> entry : sorted) {
+                long sequence = entry.getValue();
+
+                // Entries may share a sequence (e.g. unreadable ones), keep them apart.
+                if (!index.ids.isEmpty()) sequence = Math.max(sequence, index.ids.lastKey() + 1);
+
+                index.sequences.put(entry.getKey(), sequence);
+                index.ids.put(sequence, entry.getKey());
+            }
+
+            index.sequence.set(index.ids.lastKey());
+
+            return index;
+        }
+
+        ByteBuffer legacy = storageEngine.get(legacyNamespace, legacyKey);
+
+        if (legacy != null) {
+            StorageEngine.Batch batch = storageEngine.batch();
+            Map<String, Long> migrated = new LinkedHashMap<>();
+
+            for (String id : UTF_8.decode(legacy).toString().split(",")) {
+                if (!id.isEmpty() && !migrated.containsKey(id)) migrated.put(id, index.stageAdd(id, batch));
+            }
+
+            batch.delete(legacyNamespace, legacyKey);
+            Model.commit(batch, "migrate " + legacyNamespace);
+
+            for (Map.Entry<String, Long> entry : migrated.entrySet()) {
+                index.applyAdd(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return index;
+    }
+
+    boolean contains(String id) {
+        return sequences.containsKey(id);
+    }
+
+    int size() {
+        return sequences.size();
+    }
+
+    /**
+     * @return A copy of the ids, in the order they were added.
+     */
+    List<String> ids() {
+        return new ArrayList<>(ids.values());
+    }
+
+    /**
+     * @return A copy of the ids by the sequence they were added with.
+     */
+    NavigableMap<Long, String> entries() {
+        return new TreeMap<>(ids);
+    }
+
+    /**
+     * @param id The id.
+     * @return The sequence the id was added with, -1 if not there.
+     */
+    long sequenceOf(String id) {
+        Long found = sequences.get(id);
+        return (found == null) ? -1 : found;
+    }
+
+    /**
+     * Finds the position of an id by counting the lower sequences, without...
+     * copying the ids.
+     *
+     * @param id The id.
+     * @return Its position among the ids, in the order they were added, -1 if not there.
+     */
+    int indexOf(String id) {
+        Long found = sequences.get(id);
+        return (found == null) ? -1 : ids.headMap(found).size();
+    }
+
+    /**
+     * Writes the entry of a new id to a batch, without adding it. The id is...
+     * added by applyAdd() once the batch is committed.
+     *
+     * @param id The id.
+     * @param batch The batch the entry is written to.
+     * @return The sequence of the id, -1 if it is already there.
+     */
+    long stageAdd(String id, StorageEngine.Batch batch) {
+        if (sequences.containsKey(id)) return -1;
+
+        long next = sequence.incrementAndGet();
+
+        batch.put(namespace, prefix + id, String.valueOf(next).getBytes(UTF_8));
+        return next;
+    }
+
+    /**
+     * Adds an id whose entry was committed.
+     *
+     * @param id The id.
+     * @param next What stageAdd() returned.
+     */
+    void applyAdd(String id, long next) {
+        if (next < 0 || sequences.putIfAbsent(id, next) != null) return;
+
+        ids.put(next, id);
+    }
+
+    /**
+     * Deletes the entry of an id in a batch, without removing it. The id is...
+     * removed by applyRemove() once the batch is committed.
+     *
+     * @param id The id.
+     * @param batch The batch the entry is deleted in.
+     * @return True if the id is there and false otherwise.
+     */
+    boolean stageRemove(String id, StorageEngine.Batch batch) {
+        if (!sequences.containsKey(id)) return false;
+
+        batch.delete(namespace, prefix + id);
+        return true;
+    }
+
+    /**
+     * Removes an id whose entry deletion was committed.
+     *
+     * @param id The id.
+     */
+    void applyRemove(String id) {
+        Long removed = sequences.remove(id);
+
+        if (removed != null) ids.remove(removed);
+    }
+}
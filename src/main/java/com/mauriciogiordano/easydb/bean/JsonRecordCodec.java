@@ -0,0 +1,123 @@
+package com.mauriciogiordano.easydb.bean;
+
+import com.mauriciogiordano.easydb.codec.JsonStreamReader;
+import com.mauriciogiordano.easydb.codec.JsonStreamWriter;
+
+import org.json.JSONException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Json records, same layout as Model#toJson(), streamed field by field...
+ * without building a JSONObject.
+ */
+class JsonRecordCodec extends RecordCodec {
+
+    @Override
+    byte[] encode(ModelBinding binding, Object object) {
+        JsonStreamWriter writer = new JsonStreamWriter();
+
+        writer.beginObject();
+
+        for (ModelBinding.FieldBinding field : binding.fields) {
+            writer.name(field.name);
+
+            switch (field.kind) {
+                case INT:
+                    writer.value(field.getInt(object));
+                    break;
+                case LONG:
+                    writer.value(field.getLong(object));
+                    break;
+                case FLOAT:
+                    writer.value(field.getFloat(object));
+                    break;
+                case DOUBLE:
+                    writer.value(field.getDouble(object));
+                    break;
+                case STRING:
+                    writer.value((CharSequence) field.get(object));
+                    break;
+                case BOOLEAN:
+                    writer.value(field.getBoolean(object));
+                    break;
+                case LIST:
+                    List<String> stringList = (List<String>) field.get(object);
+
+                    writer.beginArray();
+
+                    if (stringList != null) {
+                        for (String value : stringList) {
+                            writer.value(value);
+                        }
+                    }
+
+                    writer.endArray();
+                    break;
+            }
+        }
+
+        writer.endObject();
+
+        return writer.toByteArray();
+    }
+
+    @Override
+    void decode(ModelBinding binding, ByteBuffer record, FieldVisitor visitor) throws JSONException {
+        JsonStreamReader reader = new JsonStreamReader(record);
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            ModelBinding.FieldBinding field = binding.field(reader.nextName());
+
+            if (field == null || !visitor.wants(field)) {
+                reader.skipValue();
+                continue;
+            }
+
+            switch (field.kind) {
+                case INT:
+                    visitor.visitInt(field, reader.nextInt());
+                    break;
+                case LONG:
+                    visitor.visitLong(field, reader.nextLong());
+                    break;
+                case FLOAT:
+                    visitor.visitFloat(field, (float) reader.nextDouble());
+                    break;
+                case DOUBLE:
+                    visitor.visitDouble(field, reader.nextDouble());
+                    break;
+                case STRING:
+                    visitor.visitString(field, reader.nextString());
+                    break;
+                case BOOLEAN:
+                    visitor.visitBoolean(field, reader.nextBoolean());
+                    break;
+                case LIST:
+                    if (reader.peek() != JsonStreamReader.Token.BEGIN_ARRAY) {
+                        reader.skipValue();
+                        break;
+                    }
+
+                    List<String> stringList = new ArrayList<>();
+
+                    reader.beginArray();
+
+                    while (reader.hasNext()) {
+                        stringList.add(reader.nextString());
+                    }
+
+                    reader.endArray();
+
+                    visitor.visitList(field, stringList);
+                    break;
+            }
+        }
+
+        reader.endObject();
+    }
+}
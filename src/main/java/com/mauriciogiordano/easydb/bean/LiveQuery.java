@@ -0,0 +1,323 @@
+package com.mauriciogiordano.easydb.bean;
+
+import java.io.Closeable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of a query kept up to date while objects of its class are saved...
+ * and removed.
+ *
+ * The query runs once. After that every change is checked against the...
+ * conditions in memory, using the fields the change committed, and the...
+ * listener gets the positions that changed instead of a new result, so a...
+ * refresh costs as much as the changes, not as the stored objects: each...
+ * change finds its object by id and its position in O(log n). The result...
+ * itself is not copied either: it is a view of the result as it was after...
+ * the diffs, which later changes leave untouched.
+ *
+ * <pre>
+ * LiveQuery&lt;Message&gt; live = new Message(context).query()
+ *         .where("conversationId").eq("42")
+ *         .orderBy("timestamp", false)
+ *         .observe(new LiveQuery.Listener&lt;Message&gt;() {
+ *             public void onChanged(List&lt;Message&gt; result, List&lt;LiveQuery.Diff&lt;Message&gt;&gt; diffs) { ... }
+ *         });
+ *
+ * live.close();
+ * </pre>
+ */
+public class LiveQuery<T> implements Closeable {
+
+    /**
+     * Change of the result at a position.
+     */
+    public static final class Diff<T> {
+
+        public enum Type {
+            INSERTED,
+            UPDATED,
+            REMOVED
+        }
+
+        private final Type type;
+        private final int position;
+        private final T object;
+
+        Diff(Type type, int position, T object) {
+            this.type = type;
+            this.position = position;
+            this.object = object;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return The position, in the result as left by the previous diffs.
+         */
+        public int getPosition() {
+            return position;
+        }
+
+        /**
+         * @return The object inserted or updated, or the removed one.
+         */
+        public T getObject() {
+            return object;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + position;
+        }
+    }
+
+    /**
+     * Listener of the changes of a live query, run by the executor of...
+     * Model.setChangeExecutor().
+     */
+    public static abstract class Listener<T> {
+
+        /**
+         * Run the listener.
+         *
+         * @param result The new result, read only. Reading an object costs O(log n).
+         * @param diffs The changes that turn the previous result into the new one, in order.
+         */
+        public abstract void onChanged(List<T> result, List<Diff<T>> diffs);
+    }
+
+    /**
+     * An object of the result, sorted by the query and then by when it...
+     * entered the result.
+     *
+     * Sorted by the fields read when it was committed, never by the object...
+     * itself: the application can change it at any time, and a key that...
+     * changes would lose the entry inside the tree.
+     */
+    private static final class Entry<T> {
+        final String id;
+        final T object;
+        final Object[] values;
+        final long order;
+
+        Entry(String id, T object, Object[] values, long order) {
+            this.id = id;
+            this.object = object;
+            this.values = values;
+            this.order = order;
+        }
+    }
+
+    private final Query<T> query;
+    private final Class<?> clazz;
+    private final Listener<T> listener;
+
+    private final RankedList<Entry<T>> entries;
+    private final Map<String, Entry<T>> byId = new HashMap<>();
+    private long order = 0;
+
+    /**
+     * Changes delivered while the query runs, null once it ran.
+     */
+    private List<List<Model.Change>> buffered = new ArrayList<>();
+
+    private final Model.OnChangeListener onChangeListener = new Model.OnChangeListener() {
+        @Override
+        public void onUpdate(List<Model.Change> changes) {
+            apply(changes);
+        }
+    };
+
+    private boolean closed = false;
+
+    private LiveQuery(final Query<T> query, Class<?> clazz, Listener<T> listener) {
+        this.query = query;
+        this.clazz = clazz;
+        this.listener = listener;
+        this.entries = new RankedList<>(new Comparator<Entry<T>>() {
+            @Override
+            public int compare(Entry<T> a, Entry<T> b) {
+                if (query.isOrdered()) {
+                    int comparison = query.compare(a.values, b.values);
+
+                    if (comparison != 0) return comparison;
+                }
+
+                return (a.order < b.order) ? -1 : ((a.order > b.order) ? 1 : 0);
+            }
+        });
+    }
+
+    /**
+     * Runs a query and starts updating its result.
+     *
+     * Listens before running it, so no change is lost in between. Changes...
+     * delivered while it runs are applied to its result before anything is...
+     * shown, so an object is never in the result twice.
+     */
+    static <T> LiveQuery<T> start(Query<T> query, Class<?> clazz, Listener<T> listener) {
+        LiveQuery<T> live = new LiveQuery<>(query, clazz, listener);
+
+        Model.addOnChangeListener(clazz, live.onChangeListener);
+
+        try {
+            live.fill(query.find());
+        } catch (RuntimeException e) {
+            live.close();
+            throw e;
+        }
+
+        return live;
+    }
+
+    private synchronized void fill(List<T> found) {
+        ModelBinding binding = ModelBinding.of(clazz);
+
+        for (T object : found) {
+            String id = String.valueOf(((Model) object).getId());
+
+            if (byId.containsKey(id)) continue;
+
+            Entry<T> entry = new Entry<>(id, object, binding.valuesOf(object), order++);
+            entries.add(entry);
+            byId.put(id, entry);
+        }
+
+        for (List<Model.Change> changes : buffered) {
+            update(changes, null);
+        }
+
+        buffered = null;
+    }
+
+    /**
+     * @return The current result, read only and never changed by later...
+     *         changes. Taking it costs O(1), reading an object O(log n).
+     */
+    public synchronized List<T> getResult() {
+        return new Result<>(entries.snapshot());
+    }
+
+    /**
+     * The objects of a snapshot of the entries.
+     */
+    private static final class Result<T> extends AbstractList<T> {
+        private final List<Entry<T>> entries;
+
+        Result(List<Entry<T>> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public T get(int position) {
+            return entries.get(position).object;
+        }
+
+        @Override
+        public int size() {
+            return entries.size();
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+            final Iterator<Entry<T>> iterator = entries.iterator();
+
+            return new Iterator<T>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public T next() {
+                    return iterator.next().object;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    /**
+     * Applies changes to the result, finding every object by its id, so...
+     * each change costs O(log n).
+     *
+     * @param changes The changes.
+     * @param diffs Where the diffs are added, null to apply them silently.
+     */
+    private void update(List<Model.Change> changes, List<Diff<T>> diffs) {
+        for (Model.Change change : changes) {
+            Entry<T> previous = byId.remove(change.getId());
+            int from = (previous == null) ? -1 : entries.remove(previous);
+            T object = (T) change.getObject();
+
+            if (change.getStatus() == Model.OnUpdateListener.Status.REMOVED || !query.matches(change.values)) {
+                if (from >= 0 && diffs != null) diffs.add(new Diff<>(Diff.Type.REMOVED, from, previous.object));
+                continue;
+            }
+
+            // Keeps its place among the objects it ties with.
+            Entry<T> entry = new Entry<>(change.getId(), object, change.values,
+                    (previous == null) ? order++ : previous.order);
+            int to = entries.add(entry);
+            byId.put(entry.id, entry);
+
+            if (diffs == null) continue;
+
+            if (from == to) {
+                diffs.add(new Diff<>(Diff.Type.UPDATED, to, object));
+                continue;
+            }
+
+            // Moved: removed from the old position, inserted at the new one.
+            if (from >= 0) diffs.add(new Diff<>(Diff.Type.REMOVED, from, previous.object));
+
+            diffs.add(new Diff<>(Diff.Type.INSERTED, to, object));
+        }
+    }
+
+    private void apply(List<Model.Change> changes) {
+        List<Diff<T>> diffs = new ArrayList<>();
+        List<T> result;
+
+        synchronized (this) {
+            if (closed) return;
+
+            if (buffered != null) {
+                buffered.add(changes);
+                return;
+            }
+
+            update(changes, diffs);
+
+            if (diffs.isEmpty()) return;
+
+            result = new Result<>(entries.snapshot());
+        }
+
+        listener.onChanged(result, Collections.unmodifiableList(diffs));
+    }
+
+    /**
+     * Stops updating the result.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+
+        closed = true;
+        Model.removeOnChangeListener(clazz, onChangeListener);
+    }
+}
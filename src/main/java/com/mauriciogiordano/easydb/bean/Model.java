@@ -4,10 +4,10 @@ import android.content.Context;
 import android.content.SharedPreferences;
 
 import com.mauriciogiordano.easydb.exception.NoContextFoundException;
+import com.mauriciogiordano.easydb.exception.StorageException;
+import com.mauriciogiordano.easydb.storage.SharedPreferencesStorageEngine;
+import com.mauriciogiordano.easydb.storage.StorageEngine;
 
-import org.apache.commons.lang3.ArrayUtils;
-import org.apache.commons.lang3.ClassUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -16,11 +16,20 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
-import java.lang.reflect.Field;
-import java.lang.reflect.ParameterizedType;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 
 public abstract class Model<T> {
 
@@ -31,6 +40,25 @@ public abstract class Model<T> {
     @Retention(RetentionPolicy.RUNTIME)
     public static @interface ModelField { }
 
+    /**
+     * Annotation used to keep an index of a stored field, so objects can...
+     * be found by its value with findBy() without reading every object.
+     * Ordered indexes also allow findRange().
+     */
+    @Target(ElementType.FIELD)
+    @Retention(RetentionPolicy.RUNTIME)
+    public static @interface Indexed {
+        boolean ordered() default false;
+    }
+
+    /**
+     * Annotation used to store the records of a class in a compact binary...
+     * format instead of json. Records already stored in json are still read.
+     */
+    @Target(ElementType.TYPE)
+    @Retention(RetentionPolicy.RUNTIME)
+    public static @interface BinaryFormat { }
+
     /**
      * Configuration variables.
      */
@@ -38,17 +66,15 @@ public abstract class Model<T> {
     protected Context context;
     
     /**
-     * Cache related.
+     * Should keep found objects in the cache shared by the class.
      */
     protected boolean cache;
-    private List<T> cachedObjects = null;
-    private List<String> cachedIds = null;
 
     /**
      * Available fields for storage.
      * TODO: Allow anything that extends Serializable. 
      */
-    private enum Fields {
+    public enum Fields {
         INT,
         LONG,
         FLOAT,
@@ -59,22 +85,58 @@ public abstract class Model<T> {
     }
 
     /**
-     * List of evaluated classes.
-     * This avoids evaluating every time a new instance is created. 
+     * Stored fields of the class, evaluated once per class.
      */
-    private static List<Class<?>> evaluatedClasses = new ArrayList<Class<?>>();
+    ModelBinding binding;
 
     /**
-     * Verifies if the given field follow the rules.
-     *  
-     * @param field Field to be verified
-     * @return True if field is allowed and false otherwise.
+     * Names of the fields read from storage when the object was found with...
+     * a projection, null when every field was read.
      */
-    private boolean isAllowed(Field field) {
-        return ClassUtils.isPrimitiveOrWrapper(field.getType())
-                || CharSequence.class.isAssignableFrom(field.getType())
-                || List.class.isAssignableFrom(field.getType());
-    }
+    private Set<String> loadedFields = null;
+
+    /**
+     * Storage engines registered for specific classes.
+     * Classes without one use SharedPreferences.
+     */
+    private static Map<Class<?>, StorageEngine> storageEngines = new ConcurrentHashMap<Class<?>, StorageEngine>();
+
+    /**
+     * Ids of the stored objects of each class, loaded on first use.
+     * Read without locking, loaded and dropped holding the map.
+     */
+    private static Map<Class<?>, IdIndex> idIndexes = new ConcurrentHashMap<Class<?>, IdIndex>();
+
+    /**
+     * Indexes of the indexed fields of each class, loaded on first use.
+     * Read without locking, loaded and dropped holding idIndexes.
+     */
+    private static Map<Class<?>, FieldIndex[]> fieldIndexes = new ConcurrentHashMap<Class<?>, FieldIndex[]>();
+
+    /**
+     * Objects of each class kept in memory, for classes with cache enabled.
+     */
+    private static Map<Class<?>, ObjectCache> objectCaches = new ConcurrentHashMap<Class<?>, ObjectCache>();
+
+    /**
+     * Ids of the children of each object, by class and object's id, loaded...
+     * on first use and shared by every instance (see HasManyModel).
+     */
+    private static Map<Class<?>, ConcurrentMap<String, IdIndex>> childIndexes =
+            new ConcurrentHashMap<Class<?>, ConcurrentMap<String, IdIndex>>();
+
+    /**
+     * Old versions of the records of each class, kept for snapshots.
+     */
+    private static Map<Class<?>, VersionStore> versionStores = new ConcurrentHashMap<Class<?>, VersionStore>();
+
+    /**
+     * Classes whose objects are decoded in parallel by findAll().
+     */
+    private static Set<Class<?>> parallelLoads =
+            Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+
+    protected static final Charset UTF_8 = Charset.forName("UTF-8");
 
     /**
      * Evaluates the object if not yet evaluated.
@@ -82,23 +144,7 @@ public abstract class Model<T> {
      * @throws RuntimeException in case object don't follow the rules.
      */
     private void evaluateObject() {
-        if (evaluatedClasses.contains(clazz)) {
-            return;
-        }
-
-        Field[] fields = clazz.getDeclaredFields();
-
-        for (Field field : fields) {
-            if (field.isAnnotationPresent(ModelField.class)
-            && !isAllowed(field)) {
-                throw new RuntimeException("Field '"
-                        + field.getName()
-                        + "' has type '" + field.getType().getSimpleName()
-                        + "' that is not allowed!");
-            }
-        }
-
-        evaluatedClasses.add(clazz);
+        binding = ModelBinding.of(clazz);
     }
 
     /**
@@ -135,41 +181,6 @@ public abstract class Model<T> {
         evaluateObject();
     }
 
-    /**
-     * Return a Fields object for a given field's Class.
-     *
-     * @param field The class that will be used.
-     * @throws RuntimeException in case the field type is not found.
-     * @return A Fields type if found.
-     */
-    private static Fields toFieldEnum(Field field) {
-        Class<?> clazz = field.getType();
-        String name = clazz.getSimpleName().toLowerCase();
-
-        if (name.equals("int") || name.equals("integer")) {
-            return Fields.INT;
-        } else if (name.equals("long")) {
-            return Fields.LONG;
-        } else if (name.equals("float")) {
-            return Fields.FLOAT;
-        } else if (name.equals("double")) {
-            return Fields.DOUBLE;
-        } else if (CharSequence.class.isAssignableFrom(clazz)) {
-            return Fields.STRING;
-        } else if (name.equals("boolean")) {
-            return Fields.BOOLEAN;
-        } else if (clazz.isAssignableFrom(List.class)) {
-            ParameterizedType listType = (ParameterizedType) field.getGenericType();
-            Class<?> listClass = (Class<?>) listType.getActualTypeArguments()[0];
-
-            if (listClass.toString().equals("class java.lang.String")) {
-                return Fields.LIST;
-            }
-        }
-
-        throw new RuntimeException("Field not found!");
-    }
-
     /**
      * Analyzes the entire json object and creates a brand-new...
      * instance from its representation. 
@@ -184,68 +195,52 @@ public abstract class Model<T> {
         T object = null;
 
         try {
-            object = clazz.newInstance();
+            object = (T) binding.newInstance();
             ((Model) object).setContext(context);
 
-            Field[] fields = clazz.getDeclaredFields();
+            for (ModelBinding.FieldBinding field : binding.fields) {
+                String name = field.name;
 
-            try {
-                for (Field field : fields) {
+                switch (field.kind) {
+                    case INT:
+                        field.setInt(object, json.optInt(name, 0));
+                        break;
+                    case LONG:
+                        field.setLong(object, json.optLong(name, 0));
+                        break;
+                    case FLOAT:
+                        field.setFloat(object, (float) json.optDouble(name, 0));
+                        break;
+                    case DOUBLE:
+                        field.setDouble(object, json.optDouble(name, 0));
+                        break;
+                    case STRING:
+                        Object value = json.opt(name);
+                        field.set(object, (value == null || value == JSONObject.NULL) ? null : value.toString());
+                        break;
+                    case BOOLEAN:
+                        field.setBoolean(object, json.optBoolean(name, false));
+                        break;
+                    case LIST:
+                        JSONArray list = json.optJSONArray(name);
 
-                    if (!field.isAnnotationPresent(ModelField.class)) {
-                        continue;
-                    }
+                        try {
+                            if (list != null) {
+                                List<String> stringList = new ArrayList<>();
 
-                    String name = field.getName();
-                    boolean was = field.isAccessible();
-
-                    field.setAccessible(true);
-
-                    switch (toFieldEnum(field)) {
-                        case INT:
-                            field.setInt(object, json.optInt(name, 0));
-                            break;
-                        case LONG:
-                            field.setLong(object, json.optLong(name, 0));
-                            break;
-                        case FLOAT:
-                            field.setFloat(object, json.optLong(name, 0));
-                            break;
-                        case DOUBLE:
-                            field.setDouble(object, json.optDouble(name, 0));
-                            break;
-                        case STRING:
-                            field.set(object, json.opt(name));
-                            break;
-                        case BOOLEAN:
-                            field.setBoolean(object, json.optBoolean(name, false));
-                            break;
-                        case LIST:
-                            JSONArray list = json.optJSONArray(name);
-
-                            try {
-                                if (list != null) {
-                                    List<String> stringList = new ArrayList<>();
-
-                                    for (int i = 0; i < list.length(); i++) {
-                                        stringList.add(list.getString(i));
-                                    }
-
-                                    field.set(object, stringList);
+                                for (int i = 0; i < list.length(); i++) {
+                                    stringList.add(list.getString(i));
                                 }
-                            } catch (JSONException e) {
-                                // TODO.
-                            }
 
-                            break;
-                    }
+                                field.set(object, stringList);
+                            }
+                        } catch (JSONException e) {
+                            // TODO.
+                        }
 
-                    field.setAccessible(was);
+                        break;
                 }
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
             }
-
         } catch (IllegalAccessException | InstantiationException e) {
             e.printStackTrace();
         }
@@ -262,21 +257,11 @@ public abstract class Model<T> {
     public JSONObject toJson() {
         JSONObject json = new JSONObject();
 
-        Field[] fields = clazz.getDeclaredFields();
-
         try {
-            for (Field field : fields) {
-
-                if (!field.isAnnotationPresent(ModelField.class)) {
-                    continue;
-                }
-
-                String name = field.getName();
-                boolean was = field.isAccessible();
+            for (ModelBinding.FieldBinding field : binding.fields) {
+                String name = field.name;
 
-                field.setAccessible(true);
-
-                switch (toFieldEnum(field)) {
+                switch (field.kind) {
                     case INT:
                         json.put(name, field.getInt(this));
                         break;
@@ -308,10 +293,8 @@ public abstract class Model<T> {
                         json.put(name, list);
                         break;
                 }
-
-                field.setAccessible(was);
             }
-        } catch (IllegalAccessException | JSONException e) {
+        } catch (JSONException e) {
             e.printStackTrace();
         }
 
@@ -326,267 +309,1530 @@ public abstract class Model<T> {
      */
     @Override
     public String toString() {
-        return toJson().toString();
+        return new String(RecordCodec.JSON.encode(binding, this), UTF_8);
     }
 
     /**
-     * Sets the context for the current instance.
+     * Encodes the current object into the record kept by the storage engine.
      *
-     * @param context Sets the application context for the current instance.
+     * @return The record.
      */
-    public void setContext(Context context) {
-        this.context = context;
+    private byte[] encode() {
+        if (binding.codec == RecordCodec.BINARY && !binding.schemaStored) {
+            storeSchema();
+        }
+
+        return binding.codec.encode(binding, this);
     }
 
     /**
-     * Loads a reference to the SharedPreferences for a given...
-     * namespace.
-     *
-     * @param namespace The namespace to be used.
-     * @return The sharedPreferences object.
-     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * Stores the current schema of the class, needed to read binary records...
+     * after the class changes.
      */
-    protected SharedPreferences loadSharedPreferences(String namespace) {
-        if (context == null) {
-            throw new NoContextFoundException();
+    private void storeSchema() {
+        String key = Integer.toHexString(binding.schema.id);
+
+        if (readValue("schema", key) == null) {
+            writeValue("schema", key, binding.schema.describe());
         }
-        
-        return context.getSharedPreferences(clazz.getPackage().getName()
-                        + "." + clazz.getName() + "." + namespace,
-                Context.MODE_PRIVATE);
+
+        binding.schemaStored = true;
     }
 
     /**
-     * Get a list of objects ids.
-     *
-     * @return The list of all object ids.
-     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * Loads every schema stored for the class.
      */
-    private List<String> getObjectList() {
-        if (cachedIds != null) return cachedIds;
+    private void loadSchemas() {
+        loadStorageEngine().scan(getNamespace("schema"), null, new StorageEngine.Visitor() {
+            @Override
+            public boolean visit(String key, ByteBuffer value) {
+                binding.addSchema(UTF_8.decode(value).toString());
+                return true;
+            }
+        });
+    }
 
-        SharedPreferences prefs = loadSharedPreferences("objectList");
+    /**
+     * Returns the codec a record was written with, loading its schema if needed.
+     *
+     * @param record The record.
+     * @return The codec.
+     */
+    RecordCodec codecOf(ByteBuffer record) throws JSONException {
+        RecordCodec codec = RecordCodec.of(record);
 
-        String list = prefs.getString("list", null);
+        if (codec == RecordCodec.BINARY && binding.schema(BinaryRecordCodec.schemaId(record)) == null) {
+            loadSchemas();
+        }
 
-        cachedIds = (list == null) ? new ArrayList<String>() : new ArrayList<>(Arrays.asList(list.split(",")));
-        return cachedIds;
+        return codec;
     }
 
     /**
-     * Adds the object to the ids list.
+     * Creates a brand-new instance from a stored record.
      *
-     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * @param record The record.
+     * @return The object T if able to decode and null otherwise.
      */
-    private void addObject() {
-        SharedPreferences prefs = loadSharedPreferences("objectList");
-
-        List<String> objects = getObjectList();
-        objects.add(getId());
-        
-        prefs.edit().putString("list", StringUtils.join(objects, ",")).commit();
+    T decode(ByteBuffer record) {
+        return decode(record, null);
     }
 
     /**
-     * Removes the object from the ids list.
+     * Creates a brand-new instance from a stored record, decoding only some...
+     * of the fields.
      *
-     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
-     * @return True if removed successfully and false otherwise.
+     * @param record The record.
+     * @param fields Names of the fields to decode, or null for every field.
+     * @return The object T if able to decode and null otherwise.
      */
-    private boolean removeObject() {
-        SharedPreferences prefs = loadSharedPreferences("objectList");
-
-        List<String> objects = getObjectList();
-        
-        int index = objects.indexOf(getId());
-        
-        if (index == ArrayUtils.INDEX_NOT_FOUND) return false;
+    private T decode(ByteBuffer record, final Set<String> fields) {
+        try {
+            T object = (T) binding.newInstance();
+            ((Model) object).setContext(context);
+            ((Model) object).loadedFields = fields;
 
-        objects.remove(getId());
+            codecOf(record).decode(binding, record, new RecordCodec.ObjectVisitor(object) {
+                @Override
+                boolean wants(ModelBinding.FieldBinding field) {
+                    return fields == null || fields.contains(field.name);
+                }
+            });
 
-        if (objects.size() == 0) {
-            prefs.edit().putString("list", null).commit();
-        } else {
-            prefs.edit().putString("list", StringUtils.join(objects, ",")).commit();
+            return object;
+        } catch (IllegalAccessException | InstantiationException | JSONException e) {
+            e.printStackTrace();
         }
 
-        return true;
+        return null;
     }
 
     /**
-     * Saves the current object.
-     *
-     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * Reads from storage the fields left out by a projection, so saving...
+     * does not overwrite them with defaults.
      */
-    public synchronized void save() {
-        SharedPreferences prefs = loadSharedPreferences("object");
+    private void loadMissingFields() {
+        if (loadedFields == null) return;
 
-        if (find(getId()) == null) {
-            addObject();
+        final Set<String> fields = loadedFields;
+        ByteBuffer record = loadStorageEngine().get(getNamespace("object"), String.valueOf(getId()));
 
-            modelListenerHandler.execOnUpdateListeners(this, OnUpdateListener.Status.CREATED);
-
-            if (cache && cachedObjects != null) {
-                cachedObjects.add((T) this);
+        if (record != null) {
+            try {
+                codecOf(record).decode(binding, record, new RecordCodec.ObjectVisitor(this) {
+                    @Override
+                    boolean wants(ModelBinding.FieldBinding field) {
+                        return !fields.contains(field.name);
+                    }
+                });
+            } catch (JSONException e) {
+                e.printStackTrace();
             }
-        } else {
-            modelListenerHandler.execOnUpdateListeners(this, OnUpdateListener.Status.UPDATED);
         }
 
-        prefs.edit().putString(String.valueOf(getId()), toJson().toString()).commit();
+        loadedFields = null;
     }
 
     /**
-     * Removes the current object.
+     * Verifies if a field was read from storage. Only fields left out of the...
+     * projection of find(id, fields) are not loaded.
      *
-     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * @param field The field's name.
+     * @return True if loaded and false otherwise.
      */
-    public synchronized boolean remove() {
-        SharedPreferences prefs = loadSharedPreferences("object");
-
-        if (find(getId()) != null) {
-            if (!removeObject()) return false;
+    public boolean isFieldLoaded(String field) {
+        return loadedFields == null || loadedFields.contains(field);
+    }
 
-            modelListenerHandler.execOnUpdateListeners(this, OnUpdateListener.Status.REMOVED);
+    /**
+     * Verifies the fields of a projection.
+     *
+     * @throws IllegalArgumentException in case a field is not stored.
+     */
+    Set<String> projection(String... fields) {
+        Set<String> projection = new HashSet<>();
 
-            prefs.edit().putString(String.valueOf(getId()), null).commit();
+        for (String field : fields) {
+            if (binding.field(field) == null) {
+                throw new IllegalArgumentException("Field '" + field + "' is not stored!");
+            }
 
-            return true;
+            projection.add(field);
         }
 
-        return false;
+        return projection;
     }
 
     /**
-     * Find a specific object from its id.
-     *
-     * TODO: Figure out how to make this accesible without...
-     *       creating a dummy instance.
+     * Sets the context for the current instance.
      *
-     * @param id Object's id.
-     * @return The object if found, null otherwise.
-     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * @param context Sets the application context for the current instance.
      */
-    public T find(String id) {
-        SharedPreferences prefs = loadSharedPreferences("object");
-
-        JSONObject object = null;
-
-        try {
-            String json = prefs.getString(String.valueOf(id), null);
-
-            if (json == null) return null;
+    public void setContext(Context context) {
+        this.context = context;
+    }
 
-            object = new JSONObject(json);
+    /**
+     * Sets the storage engine used by every instance of a given class.
+     *
+     * @param clazz The model class.
+     * @param storageEngine The engine to be used, or null to go back to SharedPreferences.
+     */
+    public static void setStorageEngine(Class<?> clazz, StorageEngine storageEngine) {
+        synchronized (idIndexes) {
+            if (storageEngine == null) {
+                storageEngines.remove(clazz);
+            } else {
+                storageEngines.put(clazz, storageEngine);
+            }
 
-        } catch (JSONException e) {
-            e.printStackTrace();
+            idIndexes.remove(clazz);
+            fieldIndexes.remove(clazz);
+            childIndexes.remove(clazz);
         }
 
-        return fromJson(object);
+        clearObjectCache(clazz);
     }
 
     /**
-     * Find all objects of type T.
-     *
-     * TODO: Add offset.
+     * Forgets everything kept in memory for a given class, so it is read...
+     * again from storage. Needed when the storage is changed behind the...
+     * model's back (e.g. cleared by tests).
      *
-     * @return A list of all objects on the database.
-     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * @param clazz The model class.
      */
-    public List<T> findAll() {
-        if (cache && cachedObjects != null) {
-            return cachedObjects;
+    public static void reset(Class<?> clazz) {
+        synchronized (idIndexes) {
+            idIndexes.remove(clazz);
+            fieldIndexes.remove(clazz);
+            childIndexes.remove(clazz);
         }
 
-        List<String> ids = getObjectList();
-
-        List<T> listT = new ArrayList<>();
+        clearObjectCache(clazz);
+    }
 
-        for (String id : ids) {
-            listT.add(find(id));
+    /**
+     * Makes findAll() (and findAllChildren() of classes having it as child)...
+     * decode the objects of a given class in parallel, one thread per core,...
+     * when there are many of them.
+     *
+     * @param clazz The model class.
+     * @param parallel Should decode in parallel.
+     */
+    public static void setParallelLoad(Class<?> clazz, boolean parallel) {
+        if (parallel) {
+            parallelLoads.add(clazz);
+        } else {
+            parallelLoads.remove(clazz);
         }
+    }
 
-        if (cache) {
-            cachedObjects = listT;
+    /**
+     * Sets how many objects of a given class are kept in its cache...
+     * (only used if the class is created with cache enabled). The least...
+     * recently used objects are evicted first.
+     *
+     * @param clazz The model class.
+     * @param size How many objects can be kept.
+     */
+    public static void setCacheSize(Class<?> clazz, int size) {
+        synchronized (objectCaches) {
+            ObjectCache objectCache = objectCaches.get(clazz);
+
+            if (objectCache == null) {
+                objectCaches.put(clazz, new ObjectCache(size));
+            } else {
+                objectCache.resize(size);
+            }
         }
-
-        return listT;
     }
 
     /**
-     * Handles all listeners.
+     * @param clazz The model class.
+     * @return How many times find() got an object from the cache of the class.
      */
-    protected final ModelListenerHandler modelListenerHandler = new ModelListenerHandler();
+    public static long getCacheHits(Class<?> clazz) {
+        ObjectCache objectCache = objectCaches.get(clazz);
+
+        return (objectCache == null) ? 0 : objectCache.hits();
+    }
 
     /**
-     * Listeners.
+     * @param clazz The model class.
+     * @return How many times find() had to read an object from storage...
+     * because it was not in the cache of the class.
      */
+    public static long getCacheMisses(Class<?> clazz) {
+        ObjectCache objectCache = objectCaches.get(clazz);
+
+        return (objectCache == null) ? 0 : objectCache.misses();
+    }
+
+    private static void clearObjectCache(Class<?> clazz) {
+        ObjectCache objectCache = objectCaches.get(clazz);
+
+        if (objectCache != null) objectCache.clear();
+    }
 
     /**
-     * Listener that should be triggered whenever the object...
-     * is CREATED, UPDATED or REMOVED.
+     * Loads the cache of the current class.
+     *
+     * @return The cache, or null if the current instance has cache disabled.
      */
-    public static abstract class OnUpdateListener {
+    private ObjectCache getObjectCache() {
+        if (!cache) return null;
 
-        /**
-         * Possible statuses.
-         */
-        public enum Status {
-            CREATED,
-            UPDATED,
-            REMOVED
-        }
+        ObjectCache objectCache = objectCaches.get(clazz);
 
-        /**
-         * Run the listener. 
-         * 
-         * @param object The object that was modified.
-         * @param status What happened to the object.
-         */
-        public abstract void onUpdate(Model object, Status status);
+        if (objectCache != null) return objectCache;
+
+        synchronized (objectCaches) {
+            objectCache = objectCaches.get(clazz);
+
+            if (objectCache == null) {
+                objectCache = new ObjectCache(ObjectCache.DEFAULT_SIZE);
+                objectCaches.put(clazz, objectCache);
+            }
+
+            return objectCache;
+        }
     }
 
     /**
-     * Listener handler.
+     * Loads the storage engine for the current class.
+     *
+     * @return The engine registered for the class or a SharedPreferences based one.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null...
+     * context and no engine registered.
      */
-    private class ModelListenerHandler {
-
-        public List<OnUpdateListener> onUpdateListeners;
+    protected StorageEngine loadStorageEngine() {
+        StorageEngine storageEngine = storageEngines.get(clazz);
 
-        public ModelListenerHandler() {
-            onUpdateListeners = new ArrayList<OnUpdateListener>();
+        if (storageEngine != null) {
+            return storageEngine;
         }
 
-        /**
-         * Triggers all listeners listening to this object.
-         *
-         * @param target The object that was modified.
-         * @param status What happened to the object.
-         */
-        protected void execOnUpdateListeners(Model target, OnUpdateListener.Status status) {
-            for (OnUpdateListener onUpdateListener : onUpdateListeners) {
-                onUpdateListener.onUpdate(target, status);
-            }
+        if (context == null) {
+            throw new NoContextFoundException();
         }
+
+        return new SharedPreferencesStorageEngine(context);
     }
 
     /**
-     * Add a new update listener.
+     * @param other Another model class.
+     * @return True if the objects of both classes are written by the same...
+     *         engine, so they can share a batch.
+     */
+    boolean sharesStorageWith(Class<?> other) {
+        return storageEngines.get(clazz) == storageEngines.get(other);
+    }
+
+    /**
+     * Returns the full name of a namespace for the current class.
      *
-     * @param onUpdateListener The listener.
+     * @param namespace The namespace to be used.
+     * @return The namespace prefixed by the class name.
      */
-    public void addOnUpdateListener(OnUpdateListener onUpdateListener) {
-        modelListenerHandler.onUpdateListeners.add(onUpdateListener);
+    protected String getNamespace(String namespace) {
+        return clazz.getPackage().getName() + "." + clazz.getName() + "." + namespace;
     }
 
     /**
-     * Remove an update listener.
+     * Reads a text value from the storage engine.
      *
-     * @param onUpdateListener The listener.
+     * @param namespace The namespace to be used.
+     * @param key The value's key.
+     * @return The value if found and null otherwise.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
      */
-    public void removeOnUpdateListener(OnUpdateListener onUpdateListener) {
-        modelListenerHandler.onUpdateListeners.remove(onUpdateListener);
+    protected String readValue(String namespace, String key) {
+        ByteBuffer value = loadStorageEngine().get(getNamespace(namespace), key);
+
+        return (value == null) ? null : UTF_8.decode(value).toString();
+    }
+
+    /**
+     * Writes a text value to the storage engine.
+     *
+     * @param namespace The namespace to be used.
+     * @param key The value's key.
+     * @param value The value, or null to delete it.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    protected void writeValue(String namespace, String key, String value) {
+        StorageEngine storageEngine = loadStorageEngine();
+
+        if (value == null) {
+            storageEngine.delete(getNamespace(namespace), key);
+        } else {
+            storageEngine.put(getNamespace(namespace), key, value.getBytes(UTF_8));
+        }
+    }
+
+    /**
+     * Loads a reference to the SharedPreferences for a given...
+     * namespace.
+     *
+     * @deprecated Data may live in another storage engine, use loadStorageEngine().
+     *
+     * @param namespace The namespace to be used.
+     * @return The sharedPreferences object.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    @Deprecated
+    protected SharedPreferences loadSharedPreferences(String namespace) {
+        if (context == null) {
+            throw new NoContextFoundException();
+        }
+        
+        return context.getSharedPreferences(getNamespace(namespace), Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Loads the ids index of the current class.
+     *
+     * @return The index.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    IdIndex getIdIndex() {
+        IdIndex idIndex = idIndexes.get(clazz);
+
+        if (idIndex != null) return idIndex;
+
+        synchronized (idIndexes) {
+            idIndex = idIndexes.get(clazz);
+
+            if (idIndex == null) {
+                idIndex = IdIndex.load(loadStorageEngine(), getNamespace("objectIndex"), getNamespace("objectList"));
+                idIndexes.put(clazz, idIndex);
+            }
+
+            return idIndex;
+        }
+    }
+
+    /**
+     * Returns the children indexes of the objects of the current class, by...
+     * the object's id.
+     *
+     * @return The indexes loaded so far.
+     */
+    ConcurrentMap<String, IdIndex> getChildIndexes() {
+        ConcurrentMap<String, IdIndex> indexes = childIndexes.get(clazz);
+
+        if (indexes != null) return indexes;
+
+        synchronized (idIndexes) {
+            indexes = childIndexes.get(clazz);
+
+            if (indexes == null) {
+                indexes = new ConcurrentHashMap<>();
+                childIndexes.put(clazz, indexes);
+            }
+
+            return indexes;
+        }
+    }
+
+    /**
+     * Loads the old versions kept for snapshots of the current class.
+     *
+     * @return The versions.
+     */
+    VersionStore getVersionStore() {
+        VersionStore versionStore = versionStores.get(clazz);
+
+        if (versionStore != null) return versionStore;
+
+        synchronized (versionStores) {
+            versionStore = versionStores.get(clazz);
+
+            if (versionStore == null) {
+                versionStore = new VersionStore();
+                versionStores.put(clazz, versionStore);
+            }
+
+            return versionStore;
+        }
+    }
+
+    /**
+     * Loads the indexes of the indexed fields of the current class, building...
+     * them from the stored objects the first time a field is indexed.
+     *
+     * @return The indexes.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    FieldIndex[] getFieldIndexes() {
+        if (binding.indexedFields.length == 0) return new FieldIndex[0];
+
+        FieldIndex[] indexes = fieldIndexes.get(clazz);
+
+        if (indexes != null) return indexes;
+
+        synchronized (idIndexes) {
+            indexes = fieldIndexes.get(clazz);
+
+            if (indexes != null) return indexes;
+
+            StorageEngine storageEngine = loadStorageEngine();
+            IdIndex idIndex = getIdIndex();
+            List<FieldIndex> missing = new ArrayList<>();
+
+            indexes = new FieldIndex[binding.indexedFields.length];
+
+            for (int i = 0; i < indexes.length; i++) {
+                ModelBinding.FieldBinding field = binding.indexedFields[i];
+                indexes[i] = FieldIndex.load(storageEngine, getNamespace("index." + field.name), field,
+                        binding.orderedIndexes[i]);
+
+                if (indexes[i].isEmpty() && idIndex.size() > 0) missing.add(indexes[i]);
+            }
+
+            if (!missing.isEmpty()) {
+                StorageEngine.Batch batch = storageEngine.batch();
+
+                for (String id : idIndex.ids()) {
+                    ByteBuffer record = storageEngine.get(getNamespace("object"), id);
+                    T object = (record == null) ? null : decode(record);
+
+                    if (object == null) continue;
+
+                    for (FieldIndex fieldIndex : missing) {
+                        fieldIndex.put(id, object, batch);
+                    }
+                }
+
+                commit(batch, "index " + clazz.getName());
+            }
+
+            fieldIndexes.put(clazz, indexes);
+            return indexes;
+        }
+    }
+
+    /**
+     * Returns the index of a field of the current class.
+     *
+     * @param field The field's name.
+     * @return The index.
+     * @throws IllegalArgumentException in case the field is not indexed.
+     */
+    private FieldIndex getFieldIndex(String field) {
+        for (FieldIndex fieldIndex : getFieldIndexes()) {
+            if (fieldIndex.field.name.equals(field)) return fieldIndex;
+        }
+
+        throw new IllegalArgumentException("Field '" + field + "' is not indexed!");
+    }
+
+    /**
+     * Commits a batch. Namespaces are written one after the other (see...
+     * StorageEngine.Batch#commit()), so writes stage records before their...
+     * index entries and removals stage index entries before their records.
+     *
+     * @param batch The batch.
+     * @param what What the batch does, for the error message.
+     * @throws StorageException in case the batch was not written.
+     */
+    static void commit(StorageEngine.Batch batch, String what) {
+        if (!batch.commit()) {
+            throw new StorageException("Could not " + what + "!", null);
+        }
+    }
+
+    /**
+     * Saves the current object. Saves of the same id are serialized,...
+     * saves of different ids run in parallel. The indexes in memory and the...
+     * listeners are only updated once the object is committed.
+     *
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * @throws StorageException in case the object could not be written.
+     */
+    public void save() {
+        String id = String.valueOf(getId());
+        long sequence;
+
+        StripedLocks.lock(clazz, id);
+
+        VersionStore versionStore = getVersionStore();
+        VersionStore.Write write = versionStore.begin();
+
+        try {
+            loadMissingFields();
+
+            byte[] record = encode();
+
+            StorageEngine storageEngine = loadStorageEngine();
+            StorageEngine.Batch batch = storageEngine.batch();
+
+            IdIndex idIndex = getIdIndex();
+            FieldIndex[] indexes = getFieldIndexes();
+            Object[] values = new Object[indexes.length];
+
+            write.keep(storageEngine, getNamespace("object"), idIndex, id);
+            versionStore.publish(write);
+
+            // The record first: a crash between namespaces leaves it unlisted, never listed and missing.
+            batch.put(getNamespace("object"), id, record);
+            sequence = idIndex.stageAdd(id, batch);
+
+            for (int i = 0; i < indexes.length; i++) {
+                values[i] = indexes[i].stagePut(id, this, batch);
+            }
+
+            commit(batch, "save " + id);
+
+            idIndex.applyAdd(id, sequence);
+
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i].applyPut(id, values[i]);
+            }
+
+            ObjectCache objectCache = getObjectCache();
+            if (objectCache != null) objectCache.put(id, this);
+        } finally {
+            versionStore.end(write);
+            StripedLocks.unlock(clazz, id);
+        }
+
+        OnUpdateListener.Status status = (sequence >= 0) ? OnUpdateListener.Status.CREATED : OnUpdateListener.Status.UPDATED;
+
+        postChange(id, status, this);
+        modelListenerHandler.execOnUpdateListeners(this, status);
+    }
+
+    /**
+     * Removes the current object.
+     *
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * @throws StorageException in case the removal could not be written.
+     */
+    public boolean remove() {
+        String id = String.valueOf(getId());
+        PendingChange related = null;
+        boolean committed = false;
+
+        StripedLocks.lock(clazz, id);
+
+        VersionStore versionStore = getVersionStore();
+        VersionStore.Write write = versionStore.begin();
+
+        try {
+            StorageEngine storageEngine = loadStorageEngine();
+            StorageEngine.Batch batch = storageEngine.batch();
+
+            IdIndex idIndex = getIdIndex();
+            FieldIndex[] indexes = getFieldIndexes();
+
+            write.keep(storageEngine, getNamespace("object"), idIndex, id);
+            versionStore.publish(write);
+
+            // The index entries first: a crash between namespaces leaves the record unlisted.
+            if (!idIndex.stageRemove(id, batch)) return false;
+
+            for (FieldIndex fieldIndex : indexes) {
+                fieldIndex.stageRemove(id, batch);
+            }
+
+            batch.delete(getNamespace("object"), id);
+            related = onRemove(id, batch);
+            commit(batch, "remove " + id);
+            committed = true;
+
+            idIndex.applyRemove(id);
+
+            for (FieldIndex fieldIndex : indexes) {
+                fieldIndex.applyRemove(id);
+            }
+
+            ObjectCache objectCache = getObjectCache();
+            if (objectCache != null) objectCache.remove(id);
+        } finally {
+            try {
+                if (related != null) {
+                    if (committed) {
+                        related.commit();
+                    } else {
+                        related.abort();
+                    }
+                }
+            } finally {
+                versionStore.end(write);
+                StripedLocks.unlock(clazz, id);
+            }
+        }
+
+        postChange(id, OnUpdateListener.Status.REMOVED, this);
+        modelListenerHandler.execOnUpdateListeners(this, OnUpdateListener.Status.REMOVED);
+
+        return true;
+    }
+
+    /**
+     * Changes staged by onRemove() in the batch removing an object.
+     */
+    protected interface PendingChange {
+
+        /**
+         * Called once the batch was committed, to update what is kept in memory.
+         */
+        void commit();
+
+        /**
+         * Called if the batch was not committed.
+         */
+        void abort();
+    }
+
+    /**
+     * Called for every object being removed, before the removal is committed,...
+     * so subclasses can remove data related to the object in the same batch.
+     *
+     * @param id The object's id.
+     * @param batch The batch removing the object.
+     * @return What to do once the batch is committed or not, null if nothing.
+     */
+    protected PendingChange onRemove(String id, StorageEngine.Batch batch) {
+        return null;
+    }
+
+    /**
+     * Saves many objects with a single batch, committed one namespace after...
+     * the other (records first, then their index entries). An object given more...
+     * than once is saved as its last occurrence.
+     * Every object's listeners are triggered (CREATED or UPDATED) after...
+     * the commit.
+     *
+     * @param objects The objects to be saved.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * @throws StorageException in case the objects could not be written.
+     */
+    public void saveAll(Collection<T> objects) {
+        Map<String, T> byId = new LinkedHashMap<>();
+
+        for (T object : objects) {
+            byId.put(String.valueOf(((Model) object).getId()), object);
+        }
+
+        List<String> ids = new ArrayList<>(byId.keySet());
+        List<T> saved = new ArrayList<>(byId.values());
+        long[] sequences = new long[ids.size()];
+        boolean[] held = StripedLocks.lockAll(clazz, ids);
+
+        VersionStore versionStore = getVersionStore();
+        VersionStore.Write write = versionStore.begin();
+
+        try {
+            byte[][] records = new byte[saved.size()][];
+
+            for (int i = 0; i < records.length; i++) {
+                Model model = (Model) saved.get(i);
+                model.loadMissingFields();
+                records[i] = model.encode();
+            }
+
+            StorageEngine storageEngine = loadStorageEngine();
+            StorageEngine.Batch batch = storageEngine.batch();
+
+            IdIndex idIndex = getIdIndex();
+            FieldIndex[] indexes = getFieldIndexes();
+            Object[][] values = new Object[ids.size()][indexes.length];
+
+            for (String id : ids) {
+                write.keep(storageEngine, getNamespace("object"), idIndex, id);
+            }
+
+            versionStore.publish(write);
+
+            // The records first, as in save().
+            for (int i = 0; i < ids.size(); i++) {
+                batch.put(getNamespace("object"), ids.get(i), records[i]);
+            }
+
+            for (int i = 0; i < ids.size(); i++) {
+                String id = ids.get(i);
+                sequences[i] = idIndex.stageAdd(id, batch);
+
+                for (int j = 0; j < indexes.length; j++) {
+                    values[i][j] = indexes[j].stagePut(id, saved.get(i), batch);
+                }
+            }
+
+            commit(batch, "save " + ids.size() + " objects");
+
+            ObjectCache objectCache = getObjectCache();
+
+            for (int i = 0; i < ids.size(); i++) {
+                String id = ids.get(i);
+                idIndex.applyAdd(id, sequences[i]);
+
+                for (int j = 0; j < indexes.length; j++) {
+                    indexes[j].applyPut(id, values[i][j]);
+                }
+
+                if (objectCache != null) objectCache.put(id, saved.get(i));
+            }
+        } finally {
+            versionStore.end(write);
+            StripedLocks.unlockAll(clazz, held);
+        }
+
+        List<OnUpdateListener.Status> statuses = new ArrayList<>(ids.size());
+
+        for (long sequence : sequences) {
+            statuses.add((sequence >= 0) ? OnUpdateListener.Status.CREATED : OnUpdateListener.Status.UPDATED);
+        }
+
+        if (ChangeDispatcher.isListened(clazz)) {
+            List<Change> changes = new ArrayList<>(ids.size());
+
+            for (int i = 0; i < ids.size(); i++) {
+                changes.add(new Change(clazz, ids.get(i), statuses.get(i), (Model) saved.get(i)));
+            }
+
+            ChangeDispatcher.post(changes);
+        }
+
+        for (int i = 0; i < saved.size(); i++) {
+            Model model = (Model) saved.get(i);
+            model.modelListenerHandler.execOnUpdateListeners(model, statuses.get(i));
+        }
+    }
+
+    /**
+     * Removal of many objects staged in a batch. Holds the locks of the...
+     * objects until committed or aborted.
+     */
+    final class Removal implements PendingChange {
+        private final boolean[] held;
+        private final VersionStore versionStore;
+        private final VersionStore.Write write;
+
+        private final List<String> ids = new ArrayList<>();
+        private final List<T> objects = new ArrayList<>();
+        private final List<PendingChange> related = new ArrayList<>();
+
+        private IdIndex idIndex = null;
+        private FieldIndex[] indexes = null;
+        private boolean done = false;
+
+        private Removal(Collection<String> ids) {
+            held = StripedLocks.lockAll(clazz, ids);
+
+            try {
+                versionStore = getVersionStore();
+                write = versionStore.begin();
+            } catch (RuntimeException e) {
+                StripedLocks.unlockAll(clazz, held);
+                throw e;
+            }
+        }
+
+        /**
+         * @return How many objects are removed.
+         */
+        int size() {
+            return ids.size();
+        }
+
+        @Override
+        public void commit() {
+            finish(true);
+        }
+
+        @Override
+        public void abort() {
+            finish(false);
+        }
+
+        private void finish(boolean committed) {
+            if (done) return;
+
+            done = true;
+
+            try {
+                for (PendingChange change : related) {
+                    if (committed) {
+                        change.commit();
+                    } else {
+                        change.abort();
+                    }
+                }
+
+                if (committed) {
+                    ObjectCache objectCache = getObjectCache();
+
+                    for (String id : ids) {
+                        idIndex.applyRemove(id);
+
+                        for (FieldIndex fieldIndex : indexes) {
+                            fieldIndex.applyRemove(id);
+                        }
+
+                        if (objectCache != null) objectCache.remove(id);
+                    }
+                }
+            } finally {
+                versionStore.end(write);
+                StripedLocks.unlockAll(clazz, held);
+            }
+
+            if (!committed) return;
+
+            if (ChangeDispatcher.isListened(clazz)) {
+                List<Change> changes = new ArrayList<>(ids.size());
+
+                for (String id : ids) {
+                    changes.add(new Change(clazz, id, OnUpdateListener.Status.REMOVED, null));
+                }
+
+                ChangeDispatcher.post(changes);
+            }
+
+            for (T object : objects) {
+                modelListenerHandler.execOnUpdateListeners((Model) object, OnUpdateListener.Status.REMOVED);
+            }
+        }
+    }
+
+    /**
+     * Stages the removal of many objects in a batch. The objects stay locked...
+     * until the removal is committed (once the batch is) or aborted.
+     *
+     * @param ids Ids of the objects to be removed.
+     * @param batch The batch removing them.
+     * @return The removal.
+     */
+    Removal stageRemoveAll(Collection<String> ids, StorageEngine.Batch batch) {
+        Set<String> unique = new LinkedHashSet<>(ids);
+        Removal removal = new Removal(unique);
+
+        try {
+            StorageEngine storageEngine = loadStorageEngine();
+
+            removal.idIndex = getIdIndex();
+            removal.indexes = getFieldIndexes();
+
+            for (String id : unique) {
+                removal.write.keep(storageEngine, getNamespace("object"), removal.idIndex, id);
+            }
+
+            removal.versionStore.publish(removal.write);
+
+            for (String id : unique) {
+                T object = null;
+
+                if (!modelListenerHandler.onUpdateListeners.isEmpty() && removal.idIndex.contains(id)) {
+                    object = find(id);
+                }
+
+                if (!removal.idIndex.stageRemove(id, batch)) continue;
+
+                if (object != null) removal.objects.add(object);
+
+                for (FieldIndex fieldIndex : removal.indexes) {
+                    fieldIndex.stageRemove(id, batch);
+                }
+
+                removal.ids.add(id);
+            }
+
+            // The records after every index entry, as in remove().
+            for (String id : removal.ids) {
+                batch.delete(getNamespace("object"), id);
+
+                PendingChange related = onRemove(id, batch);
+                if (related != null) removal.related.add(related);
+            }
+        } catch (RuntimeException e) {
+            removal.abort();
+            throw e;
+        }
+
+        return removal;
+    }
+
+    /**
+     * Removes many objects with a single batch, committed one namespace after...
+     * the other (index entries first, then the records).
+     * Listeners of the current instance are triggered (REMOVED) for...
+     * every removed object after the commit.
+     *
+     * @param ids Ids of the objects to be removed.
+     * @return How many objects were removed.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * @throws StorageException in case the removal could not be written.
+     */
+    public int removeAll(Collection<String> ids) {
+        StorageEngine.Batch batch = loadStorageEngine().batch();
+        Removal removal = stageRemoveAll(ids, batch);
+
+        if (removal.size() == 0) {
+            removal.abort();
+            return 0;
+        }
+
+        try {
+            commit(batch, "remove " + removal.size() + " objects");
+        } catch (RuntimeException e) {
+            removal.abort();
+            throw e;
+        }
+
+        removal.commit();
+        return removal.size();
+    }
+
+    /**
+     * Find a specific object from its id.
+     *
+     * TODO: Figure out how to make this accesible without...
+     *       creating a dummy instance.
+     *
+     * @param id Object's id.
+     * @return The object if found, null otherwise.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    public T find(String id) {
+        ObjectCache objectCache = getObjectCache();
+
+        if (objectCache != null) {
+            T object = (T) objectCache.get(String.valueOf(id));
+
+            if (object != null) return object;
+        }
+
+        ByteBuffer record = loadStorageEngine().get(getNamespace("object"), String.valueOf(id));
+
+        if (record == null) return null;
+
+        T object = decode(record);
+
+        if (objectCache != null && object != null) {
+            objectCache.put(String.valueOf(id), object);
+        }
+
+        return object;
+    }
+
+    /**
+     * Find a specific object from its id, reading only some of its fields.
+     * The other fields keep their default values, and are read again from...
+     * storage before saving, so saving the object does not overwrite them.
+     *
+     * @param id Object's id.
+     * @param fields Names of the fields to read.
+     * @return The object if found, null otherwise.
+     * @throws IllegalArgumentException in case a field is not stored.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    public T find(String id, String... fields) {
+        return find(id, projection(fields));
+    }
+
+    /**
+     * Find a specific object from its id, reading only some of its fields.
+     */
+    T find(String id, Set<String> fields) {
+        ObjectCache objectCache = getObjectCache();
+
+        if (objectCache != null) {
+            T object = (T) objectCache.get(String.valueOf(id));
+
+            if (object != null) return object;
+        }
+
+        ByteBuffer record = loadStorageEngine().get(getNamespace("object"), String.valueOf(id));
+
+        if (record == null) return null;
+
+        return decode(record, fields);
+    }
+
+    /**
+     * Find all objects of type T, reading only some of their fields.
+     *
+     * @param fields Names of the fields to read.
+     * @return A list of all objects on the database.
+     * @throws IllegalArgumentException in case a field is not stored.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * @see #find(String, String...)
+     */
+    public List<T> findAll(String... fields) {
+        Set<String> projection = projection(fields);
+        List<T> listT = new ArrayList<>();
+
+        for (String id : getIdIndex().ids()) {
+            listT.add(find(id, projection));
+        }
+
+        return listT;
+    }
+
+    /**
+     * Counts the objects of type T, without reading them.
+     *
+     * @return How many objects are stored.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    public int count() {
+        return getIdIndex().size();
+    }
+
+    /**
+     * Sums a numeric field over all objects of type T.
+     * Indexed fields are summed from the index, other fields are read from...
+     * the stored records without creating objects.
+     *
+     * @param field The field's name.
+     * @return The sum, 0 if there are no objects.
+     * @throws IllegalArgumentException in case the field is not stored or not numeric.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    public double sum(String field) {
+        return FieldSummary.of(this, field).sum;
+    }
+
+    /**
+     * Averages a numeric field over all objects of type T.
+     *
+     * @param field The field's name.
+     * @return The average, 0 if there are no objects.
+     * @throws IllegalArgumentException in case the field is not stored or not numeric.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * @see #sum(String)
+     */
+    public double average(String field) {
+        FieldSummary summary = FieldSummary.of(this, field);
+
+        return (summary.count == 0) ? 0 : summary.sum / summary.count;
+    }
+
+    /**
+     * Finds the lowest value of a numeric field over all objects of type T.
+     *
+     * @param field The field's name.
+     * @return The value, as the field's type, or null if there are no objects.
+     * @throws IllegalArgumentException in case the field is not stored or not numeric.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * @see #sum(String)
+     */
+    public Number min(String field) {
+        return FieldSummary.of(this, field).min;
+    }
+
+    /**
+     * Finds the highest value of a numeric field over all objects of type T.
+     *
+     * @param field The field's name.
+     * @return The value, as the field's type, or null if there are no objects.
+     * @throws IllegalArgumentException in case the field is not stored or not numeric.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     * @see #sum(String)
+     */
+    public Number max(String field) {
+        return FieldSummary.of(this, field).max;
+    }
+
+    /**
+     * Find the objects with a given value on an indexed field.
+     * Only the matching objects are read.
+     *
+     * @param field The field's name, annotated with Indexed.
+     * @param value The value, as the field's type or as text.
+     * @return The objects found, in the order they were indexed.
+     * @throws IllegalArgumentException in case the field is not indexed.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    public List<T> findBy(String field, Object value) {
+        List<T> listT = new ArrayList<>();
+
+        for (String id : getFieldIndex(field).find(value)) {
+            T object = find(id);
+
+            if (object != null) listT.add(object);
+        }
+
+        return listT;
+    }
+
+    /**
+     * Find the objects with a value between from and to (inclusive) on an...
+     * indexed field, in ascending order.
+     *
+     * @param field The field's name, annotated with Indexed(ordered = true).
+     * @param from The lowest value, or null for no lower bound.
+     * @param to The highest value, or null for no upper bound.
+     * @return The objects found.
+     * @throws IllegalArgumentException in case the field is not indexed in order.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    public List<T> findRange(String field, Object from, Object to) {
+        return findRange(field, from, to, false, 0);
+    }
+
+    /**
+     * Find the objects with a value between from and to (inclusive) on an...
+     * indexed field, walking the index in order. Only the returned objects...
+     * are read.
+     *
+     * @param field The field's name, annotated with Indexed(ordered = true).
+     * @param from The lowest value, or null for no lower bound.
+     * @param to The highest value, or null for no upper bound.
+     * @param descending Should return the highest values first.
+     * @param limit How many objects to return at most, 0 for no limit.
+     * @return The objects found.
+     * @throws IllegalArgumentException in case the field is not indexed in order.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    public List<T> findRange(String field, Object from, Object to, boolean descending, int limit) {
+        List<T> listT = new ArrayList<>();
+
+        for (String id : getFieldIndex(field).range(from, to, descending, limit)) {
+            T object = find(id);
+
+            if (object != null) listT.add(object);
+        }
+
+        return listT;
+    }
+
+    /**
+     * Starts a query over the objects of type T.
+     *
+     * @return The query.
+     */
+    public Query<T> query() {
+        return new Query<>(this);
+    }
+
+    /**
+     * Walks all objects of type T, reading them while iterating.
+     *
+     * @return The cursor.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    public ModelCursor<T> cursor() {
+        return cursor(ModelCursor.DEFAULT_WINDOW);
+    }
+
+    /**
+     * Walks all objects of type T, reading them while iterating.
+     *
+     * @param window How many objects are read at a time.
+     * @return The cursor.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    public ModelCursor<T> cursor(int window) {
+        return new ModelCursor<>(this, getIdIndex().ids(), window);
+    }
+
+    /**
+     * Opens a consistent read view of the objects of type T, unaffected by...
+     * later saves and removes. Must be closed when no longer needed.
+     *
+     * @return The snapshot.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    public ModelSnapshot<T> snapshot() {
+        getIdIndex();
+
+        return new ModelSnapshot<>(this);
+    }
+
+    /**
+     * Find all objects of type T.
+     * Use query() to find a page of them.
+     *
+     * @return A list of all objects on the database.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    public List<T> findAll() {
+        return findAll(getIdIndex().ids());
+    }
+
+    /**
+     * Finds the objects of a list of ids, in parallel for classes with...
+     * parallel load enabled.
+     *
+     * @param ids The ids.
+     * @return The objects, null for ids not found, in the order of the ids.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    List<T> findAll(List<String> ids) {
+        if (parallelLoads.contains(clazz)) {
+            return ParallelLoader.load(this, ids);
+        }
+
+        return findMany(ids);
+    }
+
+    /**
+     * Finds the objects of a list of ids, reading the ones not cached with...
+     * a single storage call.
+     *
+     * @param ids The ids.
+     * @return The objects, null for ids not found, in the order of the ids.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    List<T> findMany(List<String> ids) {
+        ObjectCache objectCache = getObjectCache();
+        List<T> listT = new ArrayList<>(ids.size());
+        List<String> missing = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+
+        for (String id : ids) {
+            T object = (objectCache == null) ? null : (T) objectCache.get(id);
+
+            if (object == null) {
+                missing.add(id);
+                positions.add(listT.size());
+            }
+
+            listT.add(object);
+        }
+
+        if (missing.isEmpty()) return listT;
+
+        ByteBuffer[] records = loadStorageEngine().getAll(getNamespace("object"), missing);
+
+        for (int i = 0; i < records.length; i++) {
+            if (records[i] == null) continue;
+
+            T object = decode(records[i]);
+
+            if (objectCache != null && object != null) objectCache.put(missing.get(i), object);
+
+            listT.set(positions.get(i), object);
+        }
+
+        return listT;
+    }
+
+    /**
+     * Handles all listeners.
+     */
+    protected final ModelListenerHandler modelListenerHandler = new ModelListenerHandler();
+
+    /**
+     * Listeners.
+     */
+
+    /**
+     * Listener that should be triggered whenever the object...
+     * is CREATED, UPDATED or REMOVED.
+     */
+    public static abstract class OnUpdateListener {
+
+        /**
+         * Possible statuses.
+         */
+        public enum Status {
+            CREATED,
+            UPDATED,
+            REMOVED
+        }
+
+        /**
+         * Run the listener. 
+         * 
+         * @param object The object that was modified.
+         * @param status What happened to the object.
+         */
+        public abstract void onUpdate(Model object, Status status);
+    }
+
+    /**
+     * Listener handler.
+     */
+    private class ModelListenerHandler {
+
+        public List<OnUpdateListener> onUpdateListeners;
+
+        public ModelListenerHandler() {
+            onUpdateListeners = new ArrayList<OnUpdateListener>();
+        }
+
+        /**
+         * Triggers all listeners listening to this object.
+         *
+         * @param target The object that was modified.
+         * @param status What happened to the object.
+         */
+        protected void execOnUpdateListeners(Model target, OnUpdateListener.Status status) {
+            for (OnUpdateListener onUpdateListener : onUpdateListeners) {
+                onUpdateListener.onUpdate(target, status);
+            }
+        }
+    }
+
+    /**
+     * Add a new update listener.
+     *
+     * @param onUpdateListener The listener.
+     */
+    public void addOnUpdateListener(OnUpdateListener onUpdateListener) {
+        modelListenerHandler.onUpdateListeners.add(onUpdateListener);
+    }
+
+    /**
+     * Remove an update listener.
+     *
+     * @param onUpdateListener The listener.
+     */
+    public void removeOnUpdateListener(OnUpdateListener onUpdateListener) {
+        modelListenerHandler.onUpdateListeners.remove(onUpdateListener);
+    }
+
+    /**
+     * Change of a stored object, delivered to OnChangeListeners.
+     */
+    public static final class Change {
+        private final Class<?> clazz;
+        private final String id;
+        private final OnUpdateListener.Status status;
+        private final Model object;
+
+        /**
+         * Stored fields of the object when the change was committed (the...
+         * object itself may change afterwards), null without an object.
+         */
+        final Object[] values;
+
+        Change(Class<?> clazz, String id, OnUpdateListener.Status status, Model object) {
+            this(clazz, id, status, object, (object == null) ? null : ModelBinding.of(clazz).valuesOf(object));
+        }
+
+        private Change(Class<?> clazz, String id, OnUpdateListener.Status status, Model object, Object[] values) {
+            this.clazz = clazz;
+            this.id = id;
+            this.status = status;
+            this.object = object;
+            this.values = values;
+        }
+
+        /**
+         * @return The same change with another status.
+         */
+        Change withStatus(OnUpdateListener.Status status) {
+            return new Change(clazz, id, status, object, values);
+        }
+
+        /**
+         * @return The class of the object.
+         */
+        public Class<?> getModelClass() {
+            return clazz;
+        }
+
+        /**
+         * @return The object's id.
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @return What happened to the object.
+         */
+        public OnUpdateListener.Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return The object as saved, or as removed by remove(). Null for...
+         *         objects removed by removeAll(). It is the instance that was...
+         *         saved, so it may have changed since.
+         */
+        public Model getObject() {
+            return object;
+        }
+
+        @Override
+        public String toString() {
+            return status + " " + clazz.getSimpleName() + " " + id;
+        }
+    }
+
+    /**
+     * Listener of every object of a class, or of a single id, that gets...
+     * the changes in batches off the writing thread.
+     */
+    public static abstract class OnChangeListener {
+
+        /**
+         * Run the listener.
+         *
+         * @param changes The changes since the previous call, one per object.
+         */
+        public abstract void onUpdate(List<Change> changes);
+    }
+
+    /**
+     * Queues a committed change for the OnChangeListeners of the class.
+     */
+    private void postChange(String id, OnUpdateListener.Status status, Model object) {
+        if (!ChangeDispatcher.isListened(clazz)) return;
+
+        List<Change> changes = new ArrayList<>(1);
+        changes.add(new Change(clazz, id, status, object));
+
+        ChangeDispatcher.post(changes);
+    }
+
+    /**
+     * Listens to the changes of every object of a given class.
+     *
+     * @param clazz The model class.
+     * @param onChangeListener The listener.
+     */
+    public static void addOnChangeListener(Class<?> clazz, OnChangeListener onChangeListener) {
+        ChangeDispatcher.addListener(clazz, null, onChangeListener);
+    }
+
+    /**
+     * Listens to the changes of a single object of a given class.
+     *
+     * @param clazz The model class.
+     * @param id The object's id.
+     * @param onChangeListener The listener.
+     */
+    public static void addOnChangeListener(Class<?> clazz, String id, OnChangeListener onChangeListener) {
+        ChangeDispatcher.addListener(clazz, id, onChangeListener);
+    }
+
+    /**
+     * Remove a listener of a class.
+     *
+     * @param clazz The model class.
+     * @param onChangeListener The listener.
+     */
+    public static void removeOnChangeListener(Class<?> clazz, OnChangeListener onChangeListener) {
+        ChangeDispatcher.removeListener(clazz, null, onChangeListener);
+    }
+
+    /**
+     * Remove a listener of a single object.
+     *
+     * @param clazz The model class.
+     * @param id The object's id.
+     * @param onChangeListener The listener.
+     */
+    public static void removeOnChangeListener(Class<?> clazz, String id, OnChangeListener onChangeListener) {
+        ChangeDispatcher.removeListener(clazz, id, onChangeListener);
+    }
+
+    /**
+     * Sets the executor running OnChangeListeners, e.g. one posting to the...
+     * main thread. It is given one task at a time, so listeners are never...
+     * run concurrently even if it has many threads.
+     *
+     * @param executor The executor, or null to go back to a single background thread.
+     */
+    public static void setChangeExecutor(Executor executor) {
+        ChangeDispatcher.setExecutor(executor);
     }
 
     /**
@@ -0,0 +1,585 @@
+package com.mauriciogiordano.easydb.bean;
+
+import org.apache.commons.lang3.ClassUtils;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * Stored fields of a model class, resolved once per class.
+ *
+ * Holds, for every field annotated with ModelField, its accessor, its...
+ * Fields kind and its json key, so (de)serialization only has to walk the...
+ * table. Accessors use the generated ModelSerializer of the class when...
+ * there is one and reflection otherwise.
+ */
+class ModelBinding {
+
+    /**
+     * Bindings of every evaluated class.
+     * This avoids evaluating every time a new instance is created.
+     */
+    private static ConcurrentMap<Class<?>, ModelBinding> bindings = new ConcurrentHashMap<Class<?>, ModelBinding>();
+
+    /**
+     * Suffix of the classes generated by the annotation processor.
+     */
+    static final String SERIALIZER_SUFFIX = "$$ModelSerializer";
+
+    final Class<?> clazz;
+    final FieldBinding[] fields;
+    final ModelSerializer<Object> serializer;
+    private final Map<String, FieldBinding> fieldsByName;
+
+    /**
+     * Fields annotated with Indexed, and whether each index is ordered.
+     */
+    final FieldBinding[] indexedFields;
+    final boolean[] orderedIndexes;
+
+    /**
+     * Codec used to write records.
+     */
+    final RecordCodec codec;
+
+    /**
+     * Current schema, and every schema records were written with (by id).
+     */
+    final Schema schema;
+    private final Map<Integer, Schema> schemas = Collections.synchronizedMap(new HashMap<Integer, Schema>());
+
+    /**
+     * True once the current schema is known to be in storage.
+     */
+    volatile boolean schemaStored = false;
+
+    /**
+     * @param indexed True for every field annotated with Indexed.
+     * @param ordered True for every field whose index is ordered.
+     * @throws RuntimeException in case a list field is indexed.
+     */
+    private ModelBinding(Class<?> clazz, FieldBinding[] fields, ModelSerializer<Object> serializer,
+                         boolean[] indexed, boolean[] ordered) {
+        this.clazz = clazz;
+        this.fields = fields;
+        this.serializer = serializer;
+
+        Map<String, FieldBinding> byName = new HashMap<>();
+
+        for (FieldBinding field : fields) {
+            byName.put(field.name, field);
+        }
+
+        this.fieldsByName = Collections.unmodifiableMap(byName);
+
+        List<FieldBinding> indexedFields = new ArrayList<>();
+        List<Boolean> orderedIndexes = new ArrayList<>();
+
+        for (int i = 0; i < fields.length; i++) {
+            if (!indexed[i]) continue;
+
+            if (fields[i].kind == Model.Fields.LIST) {
+                throw new RuntimeException("Field '"
+                        + fields[i].name
+                        + "' is a list and can't be indexed!");
+            }
+
+            indexedFields.add(fields[i]);
+            orderedIndexes.add(ordered[i]);
+        }
+
+        this.indexedFields = indexedFields.toArray(new FieldBinding[indexedFields.size()]);
+        this.orderedIndexes = new boolean[orderedIndexes.size()];
+
+        for (int i = 0; i < this.orderedIndexes.length; i++) {
+            this.orderedIndexes[i] = orderedIndexes.get(i);
+        }
+        this.codec = clazz.isAnnotationPresent(Model.BinaryFormat.class) ? RecordCodec.BINARY : RecordCodec.JSON;
+
+        String[] names = new String[fields.length];
+        Model.Fields[] kinds = new Model.Fields[fields.length];
+
+        for (int i = 0; i < fields.length; i++) {
+            names[i] = fields[i].name;
+            kinds[i] = fields[i].kind;
+        }
+
+        this.schema = new Schema(this, names, kinds);
+        schemas.put(schema.id, schema);
+    }
+
+    /**
+     * Returns a schema by id.
+     *
+     * @param id The schema id.
+     * @return The schema if known and null otherwise.
+     */
+    Schema schema(int id) {
+        return schemas.get(id);
+    }
+
+    /**
+     * Registers a schema read from storage.
+     *
+     * @param description The schema as returned by Schema#describe().
+     */
+    void addSchema(String description) {
+        Schema schema = Schema.parse(this, description);
+
+        if (schema != null) {
+            schemas.put(schema.id, schema);
+        }
+    }
+
+    /**
+     * Returns the binding of a class, evaluating it if not yet evaluated.
+     *
+     * @param clazz The model class.
+     * @return The binding.
+     * @throws RuntimeException in case the class don't follow the rules.
+     */
+    static ModelBinding of(Class<?> clazz) {
+        ModelBinding binding = bindings.get(clazz);
+
+        if (binding == null) {
+            binding = evaluate(clazz);
+
+            ModelBinding previous = bindings.putIfAbsent(clazz, binding);
+            if (previous != null) binding = previous;
+        }
+
+        return binding;
+    }
+
+    /**
+     * Creates a new instance of the class.
+     *
+     * @return The new instance.
+     */
+    Object newInstance() throws IllegalAccessException, InstantiationException {
+        return (serializer != null) ? serializer.newInstance() : clazz.newInstance();
+    }
+
+    /**
+     * Returns the binding of a field.
+     *
+     * @param name The field's name.
+     * @return The field binding if found and null otherwise.
+     */
+    FieldBinding field(String name) {
+        return fieldsByName.get(name);
+    }
+
+    /**
+     * Reads every stored field of an object, as FieldIndex keeps them.
+     *
+     * @param object The object.
+     * @return The values, by field ordinal.
+     */
+    Object[] valuesOf(Object object) {
+        Object[] values = new Object[fields.length];
+
+        for (FieldBinding field : fields) {
+            values[field.ordinal] = FieldIndex.valueOf(field, object);
+        }
+
+        return values;
+    }
+
+    /**
+     * Verifies if the given field follow the rules.
+     *
+     * @param field Field to be verified
+     * @return True if field is allowed and false otherwise.
+     */
+    private static boolean isAllowed(Field field) {
+        return ClassUtils.isPrimitiveOrWrapper(field.getType())
+                || CharSequence.class.isAssignableFrom(field.getType())
+                || List.class.isAssignableFrom(field.getType());
+    }
+
+    /**
+     * Return a Fields object for a given field's Class.
+     *
+     * @param field The class that will be used.
+     * @throws RuntimeException in case the field type is not found.
+     * @return A Fields type if found.
+     */
+    private static Model.Fields toFieldEnum(Field field) {
+        Class<?> type = ClassUtils.primitiveToWrapper(field.getType());
+
+        if (type == Integer.class) {
+            return Model.Fields.INT;
+        } else if (type == Long.class) {
+            return Model.Fields.LONG;
+        } else if (type == Float.class) {
+            return Model.Fields.FLOAT;
+        } else if (type == Double.class) {
+            return Model.Fields.DOUBLE;
+        } else if (CharSequence.class.isAssignableFrom(type)) {
+            return Model.Fields.STRING;
+        } else if (type == Boolean.class) {
+            return Model.Fields.BOOLEAN;
+        } else if (type.isAssignableFrom(List.class)) {
+            Type listType = field.getGenericType();
+
+            if (listType instanceof ParameterizedType
+                    && ((ParameterizedType) listType).getActualTypeArguments()[0] == String.class) {
+                return Model.Fields.LIST;
+            }
+        }
+
+        throw new RuntimeException("Field '"
+                + field.getName()
+                + "' has type '" + field.getGenericType()
+                + "' that is not supported!");
+    }
+
+    /**
+     * Loads the generated serializer of a class.
+     *
+     * @return The serializer if generated and null otherwise.
+     */
+    @SuppressWarnings("unchecked")
+    private static ModelSerializer<Object> loadSerializer(Class<?> clazz) {
+        try {
+            Class<?> serializerClass = Class.forName(clazz.getName() + SERIALIZER_SUFFIX,
+                    true, clazz.getClassLoader());
+
+            return (ModelSerializer<Object>) serializerClass.newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (IllegalAccessException | InstantiationException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Evaluates the class.
+     *
+     * @throws RuntimeException in case the class don't follow the rules.
+     */
+    private static ModelBinding evaluate(Class<?> clazz) {
+        ModelSerializer<Object> serializer = loadSerializer(clazz);
+
+        if (serializer != null) {
+            String[] names = serializer.getFieldNames();
+            Model.Fields[] kinds = serializer.getFieldKinds();
+            FieldBinding[] fields = new FieldBinding[names.length];
+
+            for (int i = 0; i < names.length; i++) {
+                fields[i] = new GeneratedFieldBinding(serializer, names[i], kinds[i], i);
+            }
+
+            return new ModelBinding(clazz, fields, serializer,
+                    serializer.getIndexedFields(), serializer.getOrderedFields());
+        }
+
+        List<FieldBinding> fields = new ArrayList<>();
+        List<Model.Indexed> indexes = new ArrayList<>();
+
+        for (Field field : clazz.getDeclaredFields()) {
+            if (!field.isAnnotationPresent(Model.ModelField.class)) {
+                continue;
+            }
+
+            if (!isAllowed(field)) {
+                throw new RuntimeException("Field '"
+                        + field.getName()
+                        + "' has type '" + field.getType().getSimpleName()
+                        + "' that is not allowed!");
+            }
+
+            field.setAccessible(true);
+
+            fields.add(new ReflectiveFieldBinding(field, toFieldEnum(field), fields.size()));
+            indexes.add(field.getAnnotation(Model.Indexed.class));
+        }
+
+        boolean[] indexed = new boolean[fields.size()];
+        boolean[] ordered = new boolean[fields.size()];
+
+        for (int i = 0; i < indexed.length; i++) {
+            indexed[i] = indexes.get(i) != null;
+            ordered[i] = indexed[i] && indexes.get(i).ordered();
+        }
+
+        return new ModelBinding(clazz, fields.toArray(new FieldBinding[fields.size()]), null, indexed, ordered);
+    }
+
+    /**
+     * Names and kinds of the fields a binary record was written with, mapped...
+     * to the current fields of the class.
+     */
+    static class Schema {
+        final int id;
+        final Model.Fields[] kinds;
+
+        /**
+         * Current field for every position, null when it no longer exists.
+         */
+        final FieldBinding[] fields;
+        private final String description;
+
+        Schema(ModelBinding binding, String[] names, Model.Fields[] kinds) {
+            this.kinds = kinds;
+            this.fields = new FieldBinding[names.length];
+
+            StringBuilder builder = new StringBuilder();
+
+            for (int i = 0; i < names.length; i++) {
+                fields[i] = binding.field(names[i]);
+                builder.append(names[i]).append(':').append(kinds[i].name()).append('\n');
+            }
+
+            this.description = builder.toString();
+
+            CRC32 crc = new CRC32();
+            crc.update(description.getBytes(Model.UTF_8));
+            this.id = (int) crc.getValue();
+        }
+
+        /**
+         * @return A text form of the schema, one "name:KIND" per line.
+         */
+        String describe() {
+            return description;
+        }
+
+        /**
+         * @return The schema or null if the description is malformed.
+         */
+        static Schema parse(ModelBinding binding, String description) {
+            String[] lines = description.split("\n");
+            List<String> names = new ArrayList<>();
+            List<Model.Fields> kinds = new ArrayList<>();
+
+            for (String line : lines) {
+                int separator = line.lastIndexOf(':');
+
+                if (separator < 0) continue;
+
+                try {
+                    kinds.add(Model.Fields.valueOf(line.substring(separator + 1)));
+                    names.add(line.substring(0, separator));
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+
+            return new Schema(binding, names.toArray(new String[names.size()]),
+                    kinds.toArray(new Model.Fields[kinds.size()]));
+        }
+    }
+
+    /**
+     * A stored field.
+     */
+    abstract static class FieldBinding {
+        final String name;
+        final Model.Fields kind;
+        final int ordinal;
+
+        FieldBinding(String name, Model.Fields kind, int ordinal) {
+            this.name = name;
+            this.kind = kind;
+            this.ordinal = ordinal;
+        }
+
+        abstract int getInt(Object target);
+
+        abstract long getLong(Object target);
+
+        abstract float getFloat(Object target);
+
+        abstract double getDouble(Object target);
+
+        abstract boolean getBoolean(Object target);
+
+        abstract Object get(Object target);
+
+        abstract void setInt(Object target, int value);
+
+        abstract void setLong(Object target, long value);
+
+        abstract void setFloat(Object target, float value);
+
+        abstract void setDouble(Object target, double value);
+
+        abstract void setBoolean(Object target, boolean value);
+
+        abstract void set(Object target, Object value);
+    }
+
+    /**
+     * A field accessed through the generated serializer.
+     */
+    private static class GeneratedFieldBinding extends FieldBinding {
+        private final ModelSerializer<Object> serializer;
+
+        GeneratedFieldBinding(ModelSerializer<Object> serializer, String name, Model.Fields kind, int ordinal) {
+            super(name, kind, ordinal);
+            this.serializer = serializer;
+        }
+
+        int getInt(Object target) { return serializer.getInt(target, ordinal); }
+
+        long getLong(Object target) { return serializer.getLong(target, ordinal); }
+
+        float getFloat(Object target) { return serializer.getFloat(target, ordinal); }
+
+        double getDouble(Object target) { return serializer.getDouble(target, ordinal); }
+
+        boolean getBoolean(Object target) { return serializer.getBoolean(target, ordinal); }
+
+        Object get(Object target) { return serializer.get(target, ordinal); }
+
+        void setInt(Object target, int value) { serializer.setInt(target, ordinal, value); }
+
+        void setLong(Object target, long value) { serializer.setLong(target, ordinal, value); }
+
+        void setFloat(Object target, float value) { serializer.setFloat(target, ordinal, value); }
+
+        void setDouble(Object target, double value) { serializer.setDouble(target, ordinal, value); }
+
+        void setBoolean(Object target, boolean value) { serializer.setBoolean(target, ordinal, value); }
+
+        void set(Object target, Object value) { serializer.set(target, ordinal, value); }
+    }
+
+    /**
+     * A field accessed through reflection.
+     * Getters and setters accept both primitives and their wrappers (null is read as 0/false).
+     */
+    private static class ReflectiveFieldBinding extends FieldBinding {
+        private final Field field;
+        private final boolean primitive;
+
+        ReflectiveFieldBinding(Field field, Model.Fields kind, int ordinal) {
+            super(field.getName(), kind, ordinal);
+            this.field = field;
+            this.primitive = field.getType().isPrimitive();
+        }
+
+        int getInt(Object target) {
+            try {
+                if (primitive) return field.getInt(target);
+
+                Object value = field.get(target);
+                return (value == null) ? 0 : ((Number) value).intValue();
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        long getLong(Object target) {
+            try {
+                if (primitive) return field.getLong(target);
+
+                Object value = field.get(target);
+                return (value == null) ? 0 : ((Number) value).longValue();
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        float getFloat(Object target) {
+            try {
+                if (primitive) return field.getFloat(target);
+
+                Object value = field.get(target);
+                return (value == null) ? 0 : ((Number) value).floatValue();
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        double getDouble(Object target) {
+            try {
+                if (primitive) return field.getDouble(target);
+
+                Object value = field.get(target);
+                return (value == null) ? 0 : ((Number) value).doubleValue();
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        boolean getBoolean(Object target) {
+            try {
+                if (primitive) return field.getBoolean(target);
+
+                Object value = field.get(target);
+                return (value != null) && (Boolean) value;
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Object get(Object target) {
+            try {
+                return field.get(target);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void setInt(Object target, int value) {
+            try {
+                if (primitive) field.setInt(target, value); else field.set(target, value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void setLong(Object target, long value) {
+            try {
+                if (primitive) field.setLong(target, value); else field.set(target, value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void setFloat(Object target, float value) {
+            try {
+                if (primitive) field.setFloat(target, value); else field.set(target, value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void setDouble(Object target, double value) {
+            try {
+                if (primitive) field.setDouble(target, value); else field.set(target, value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void setBoolean(Object target, boolean value) {
+            try {
+                if (primitive) field.setBoolean(target, value); else field.set(target, value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void set(Object target, Object value) {
+            try {
+                field.set(target, value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.mauriciogiordano.easydb.bean;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazy walk over the stored objects of a model class.
+ *
+ * Objects are read and created while iterating, a window of them at a...
+ * time, so the first ones are available right away and only the window...
+ * is kept in memory. Objects removed after the cursor was created are...
+ * skipped.
+ *
+ * <pre>
+ * ModelCursor&lt;Message&gt; cursor = new Message(context).cursor();
+ *
+ * try {
+ *     for (Message message : cursor) { ... }
+ * } finally {
+ *     cursor.close();
+ * }
+ * </pre>
+ */
+public class ModelCursor<T> implements Iterable<T>, Iterator<T>, Closeable {
+
+    /**
+     * Objects read at a time when no window is given.
+     */
+    public static final int DEFAULT_WINDOW = 16;
+
+    private final Model<T> model;
+    private final List<String> ids;
+    private final int window;
+
+    private final ArrayDeque<T> prefetched;
+    private int position = 0;
+    private boolean closed = false;
+
+    ModelCursor(Model<T> model, List<String> ids, int window) {
+        this.model = model;
+        this.ids = ids;
+        this.window = Math.max(1, window);
+        this.prefetched = new ArrayDeque<>(this.window);
+    }
+
+    /**
+     * Reads objects until the window is full or there are no more ids.
+     */
+    private void fill() {
+        while (prefetched.size() < window && position < ids.size()) {
+            T object = model.find(ids.get(position++));
+
+            if (object != null) prefetched.add(object);
+        }
+    }
+
+    /**
+     * @return How many objects the cursor walks at most.
+     */
+    public int getCount() {
+        return ids.size();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) return false;
+
+        if (prefetched.isEmpty()) fill();
+
+        return !prefetched.isEmpty();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) throw new NoSuchElementException();
+
+        return prefetched.poll();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return this;
+    }
+
+    /**
+     * Stops the walk, releasing the objects read ahead.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        prefetched.clear();
+    }
+}
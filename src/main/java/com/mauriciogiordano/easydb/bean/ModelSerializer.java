@@ -0,0 +1,73 @@
+package com.mauriciogiordano.easydb.bean;
+
+/**
+ * Typed access to the stored fields of a model class, without reflection.
+ *
+ * Implementations are generated at compile time by the easydb processor...
+ * (named after the model class with a "$$ModelSerializer" suffix) and picked...
+ * up automatically, classes without one fall back to reflection.
+ *
+ * Fields are addressed by their index inside getFieldNames(). Each getter...
+ * and setter only accepts indexes of fields of the matching kind.
+ *
+ * @param <T> The model class.
+ */
+public interface ModelSerializer<T> {
+
+    /**
+     * @return A new instance created with the empty constructor.
+     */
+    T newInstance();
+
+    /**
+     * @return The name of every field annotated with ModelField, in declaration order.
+     */
+    String[] getFieldNames();
+
+    /**
+     * @return The kind of every field, in the same order as getFieldNames().
+     */
+    Model.Fields[] getFieldKinds();
+
+    /**
+     * @return For every field, in the same order as getFieldNames(), true if...
+     *         it is annotated with Indexed.
+     */
+    boolean[] getIndexedFields();
+
+    /**
+     * @return For every field, in the same order as getFieldNames(), true if...
+     *         it is annotated with Indexed(ordered = true).
+     */
+    boolean[] getOrderedFields();
+
+    int getInt(T object, int field);
+
+    long getLong(T object, int field);
+
+    float getFloat(T object, int field);
+
+    double getDouble(T object, int field);
+
+    boolean getBoolean(T object, int field);
+
+    /**
+     * Reads a STRING or LIST field.
+     */
+    Object get(T object, int field);
+
+    void setInt(T object, int field, int value);
+
+    void setLong(T object, int field, long value);
+
+    void setFloat(T object, int field, float value);
+
+    void setDouble(T object, int field, double value);
+
+    void setBoolean(T object, int field, boolean value);
+
+    /**
+     * Writes a STRING (as a String) or LIST (as a List of String) field.
+     */
+    void set(T object, int field, Object value);
+}
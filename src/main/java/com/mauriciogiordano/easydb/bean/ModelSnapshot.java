@@ -0,0 +1,146 @@
+package com.mauriciogiordano.easydb.bean;
+
+import com.mauriciogiordano.easydb.storage.StorageEngine;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * Consistent read view of the stored objects of a model class.
+ *
+ * Shows the objects as they were when the snapshot was opened, ignoring...
+ * everything saved or removed after that, so a list read while another...
+ * thread saves many objects is never half written. Reading never waits...
+ * for writers. Old records are kept only while an open snapshot needs...
+ * them, so snapshots should be closed as soon as possible.
+ *
+ * <pre>
+ * ModelSnapshot&lt;Message&gt; snapshot = new Message(context).snapshot();
+ *
+ * try {
+ *     List&lt;Message&gt; messages = snapshot.findAll();
+ * } finally {
+ *     snapshot.close();
+ * }
+ * </pre>
+ */
+public class ModelSnapshot<T> implements Closeable {
+
+    private final Model<T> model;
+    private final VersionStore versionStore;
+    private final long[] hidden;
+
+    private boolean closed = false;
+
+    ModelSnapshot(Model<T> model) {
+        this.model = model;
+        this.versionStore = model.getVersionStore();
+        this.hidden = versionStore.open();
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Snapshot is closed!");
+        }
+    }
+
+    /**
+     * @return Ids of the objects, in the order they were added.
+     * @throws IllegalStateException in case the snapshot is closed.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    public synchronized List<String> ids() {
+        checkOpen();
+
+        NavigableMap<Long, String> entries = model.getIdIndex().entries();
+        Map<String, VersionStore.Version> versions = versionStore.hiddenVersions(hidden);
+
+        if (!versions.isEmpty()) {
+            Iterator<String> iterator = entries.values().iterator();
+
+            while (iterator.hasNext()) {
+                if (versions.containsKey(iterator.next())) iterator.remove();
+            }
+
+            for (Map.Entry<String, VersionStore.Version> entry : versions.entrySet()) {
+                if (entry.getValue().record != null) entries.put(entry.getValue().sequence, entry.getKey());
+            }
+        }
+
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * @return How many objects there are.
+     * @throws IllegalStateException in case the snapshot is closed.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    public int count() {
+        return ids().size();
+    }
+
+    /**
+     * Find a specific object from its id.
+     *
+     * @param id Object's id.
+     * @return The object if found, null otherwise.
+     * @throws IllegalStateException in case the snapshot is closed.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    public synchronized T find(String id) {
+        checkOpen();
+
+        ByteBuffer record = model.loadStorageEngine().get(model.getNamespace("object"), id);
+
+        // Read after the record: a write committed before has already kept the old one.
+        VersionStore.Version version = versionStore.hiddenVersion(hidden, id);
+
+        if (version != null) record = (version.record == null) ? null : version.record.duplicate();
+
+        return (record == null) ? null : model.decode(record);
+    }
+
+    /**
+     * Find all objects, reading the records with a single storage call.
+     *
+     * @return The objects, in the order they were added.
+     * @throws IllegalStateException in case the snapshot is closed.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    public synchronized List<T> findAll() {
+        List<String> ids = ids();
+        StorageEngine storageEngine = model.loadStorageEngine();
+        ByteBuffer[] records = storageEngine.getAll(model.getNamespace("object"), ids);
+        Map<String, VersionStore.Version> versions = versionStore.hiddenVersions(hidden);
+        List<T> listT = new ArrayList<>(ids.size());
+
+        for (int i = 0; i < records.length; i++) {
+            VersionStore.Version version = versions.get(ids.get(i));
+            ByteBuffer record = (version == null) ? records[i] : version.record;
+
+            if (record == null) continue;
+
+            T object = model.decode((version == null) ? record : record.duplicate());
+
+            if (object != null) listT.add(object);
+        }
+
+        return listT;
+    }
+
+    /**
+     * Closes the snapshot, releasing the old records it needed.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+
+        closed = true;
+        versionStore.close(hidden);
+    }
+}
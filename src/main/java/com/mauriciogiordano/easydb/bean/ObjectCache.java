@@ -0,0 +1,86 @@
+package com.mauriciogiordano.easydb.bean;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Objects of a class kept in memory by id, shared by every instance of...
+ * the class. Holds at most maxSize objects, evicting the least recently...
+ * used one when full.
+ */
+final class ObjectCache {
+
+    /**
+     * Objects kept when no size was set for the class.
+     */
+    static final int DEFAULT_SIZE = 100;
+
+    private final Map<String, Object> objects;
+    private int maxSize;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    ObjectCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.objects = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                return size() > ObjectCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param id The object's id.
+     * @return The cached object or null if not cached.
+     */
+    synchronized Object get(String id) {
+        Object object = objects.get(id);
+
+        if (object == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+
+        return object;
+    }
+
+    synchronized void put(String id, Object object) {
+        objects.put(id, object);
+    }
+
+    synchronized void remove(String id) {
+        objects.remove(id);
+    }
+
+    synchronized void clear() {
+        objects.clear();
+    }
+
+    /**
+     * Changes the size, evicting the least recently used objects if needed.
+     *
+     * @param maxSize How many objects can be kept.
+     */
+    synchronized void resize(int maxSize) {
+        this.maxSize = maxSize;
+
+        while (objects.size() > maxSize) {
+            objects.remove(objects.keySet().iterator().next());
+        }
+    }
+
+    synchronized int size() {
+        return objects.size();
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+}
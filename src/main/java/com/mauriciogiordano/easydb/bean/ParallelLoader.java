@@ -0,0 +1,106 @@
+package com.mauriciogiordano.easydb.bean;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads many objects at once, splitting the ids in chunks decoded by a...
+ * pool with one thread per core. The result keeps the order of the ids.
+ */
+final class ParallelLoader {
+
+    /**
+     * Below this many ids objects are read on the calling thread.
+     */
+    static final int THRESHOLD = 256;
+
+    /**
+     * Chunks per thread, so a slow chunk does not keep the other threads idle.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService executor = null;
+
+    private ParallelLoader() { }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+
+            executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "easydb-loader-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return executor;
+    }
+
+    /**
+     * Finds the objects of a list of ids.
+     *
+     * @param model Instance used to find the objects.
+     * @param ids The ids.
+     * @return The objects, null for ids not found, in the order of the ids.
+     */
+    static <T> List<T> load(final Model<T> model, final List<String> ids) {
+        if (ids.size() < THRESHOLD || THREADS < 2) {
+            return model.findMany(ids);
+        }
+
+        final Object[] objects = new Object[ids.size()];
+        int chunk = (ids.size() + THREADS * CHUNKS_PER_THREAD - 1) / (THREADS * CHUNKS_PER_THREAD);
+        List<Future<Void>> futures = new ArrayList<>();
+
+        for (int start = 0; start < ids.size(); start += chunk) {
+            final int from = start;
+            final int to = Math.min(ids.size(), start + chunk);
+
+            futures.add(executor().submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    List<T> found = model.findMany(ids.subList(from, to));
+
+                    for (int i = from; i < to; i++) {
+                        objects[i] = found.get(i - from);
+                    }
+
+                    return null;
+                }
+            }));
+        }
+
+        try {
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading objects", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+
+            throw new IllegalStateException(e.getCause());
+        }
+
+        return new ArrayList<>((List<T>) Arrays.asList(objects));
+    }
+}
@@ -0,0 +1,513 @@
+package com.mauriciogiordano.easydb.bean;
+
+import com.mauriciogiordano.easydb.storage.StorageEngine;
+
+import org.json.JSONException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Query over the stored objects of a model class.
+ *
+ * Conditions are combined with AND. The query reads ids from the smallest...
+ * matching index (or the ids index when no condition is indexed), checks...
+ * the conditions on the stored records without creating objects, and only...
+ * creates the objects of the requested page. When the order comes from an...
+ * ordered index the walk stops as soon as the page is full.
+ *
+ * <pre>
+ * List&lt;Message&gt; page = new Message(context).query()
+ *         .where("conversationId").eq("42")
+ *         .orderBy("timestamp", true)
+ *         .offset(50)
+ *         .limit(50)
+ *         .find();
+ * </pre>
+ */
+public class Query<T> {
+
+    private enum Operator {
+        EQ,
+        LT,
+        LE,
+        GT,
+        GE,
+        IN
+    }
+
+    private static class Condition {
+        final ModelBinding.FieldBinding field;
+        final Operator operator;
+        final Object value;
+        final Set<Object> values;
+
+        Condition(ModelBinding.FieldBinding field, Operator operator, Object value, Set<Object> values) {
+            this.field = field;
+            this.operator = operator;
+            this.value = value;
+            this.values = values;
+        }
+
+        boolean matches(Object actual) {
+            if (operator == Operator.IN) return values.contains(actual);
+            if (operator == Operator.EQ) return (value == null) ? actual == null : value.equals(actual);
+            if (actual == null || value == null) return false;
+
+            int comparison = FieldIndex.ORDER.compare(actual, value);
+
+            switch (operator) {
+                case LT:
+                    return comparison < 0;
+                case LE:
+                    return comparison <= 0;
+                case GT:
+                    return comparison > 0;
+                default:
+                    return comparison >= 0;
+            }
+        }
+    }
+
+    /**
+     * Condition being built by where().
+     */
+    public class Where {
+        private final ModelBinding.FieldBinding field;
+
+        private Where(ModelBinding.FieldBinding field) {
+            this.field = field;
+        }
+
+        private Query<T> add(Operator operator, Object value) {
+            conditions.add(new Condition(field, operator, FieldIndex.normalize(field, value), null));
+            return Query.this;
+        }
+
+        public Query<T> eq(Object value) {
+            return add(Operator.EQ, value);
+        }
+
+        public Query<T> lt(Object value) {
+            return add(Operator.LT, value);
+        }
+
+        public Query<T> le(Object value) {
+            return add(Operator.LE, value);
+        }
+
+        public Query<T> gt(Object value) {
+            return add(Operator.GT, value);
+        }
+
+        public Query<T> ge(Object value) {
+            return add(Operator.GE, value);
+        }
+
+        public Query<T> in(Object... values) {
+            Set<Object> normalized = new HashSet<>();
+
+            for (Object value : values) {
+                normalized.add(FieldIndex.normalize(field, value));
+            }
+
+            conditions.add(new Condition(field, Operator.IN, null, normalized));
+            return Query.this;
+        }
+    }
+
+    private final Model<T> model;
+    private final List<Condition> conditions = new ArrayList<>();
+
+    private ModelBinding.FieldBinding orderBy = null;
+    private boolean descending = false;
+    private int offset = 0;
+    private int limit = 0;
+    private Set<String> projection = null;
+
+    Query(Model<T> model) {
+        this.model = model;
+    }
+
+    /**
+     * Returns the binding of a field that can be compared.
+     *
+     * @throws IllegalArgumentException in case the field is not stored or is a list.
+     */
+    private ModelBinding.FieldBinding field(String name) {
+        ModelBinding.FieldBinding field = model.binding.field(name);
+
+        if (field == null) {
+            throw new IllegalArgumentException("Field '" + name + "' is not stored!");
+        }
+
+        if (field.kind == Model.Fields.LIST) {
+            throw new IllegalArgumentException("Field '" + name + "' is a list and can't be compared!");
+        }
+
+        return field;
+    }
+
+    /**
+     * Starts a condition on a field.
+     *
+     * @param field The field's name.
+     * @return The condition, finished by eq(), lt(), le(), gt(), ge() or in().
+     * @throws IllegalArgumentException in case the field is not stored or is a list.
+     */
+    public Where where(String field) {
+        return new Where(field(field));
+    }
+
+    /**
+     * Orders the objects by a field.
+     *
+     * @param field The field's name.
+     * @param descending Should return the highest values first.
+     * @return The query.
+     * @throws IllegalArgumentException in case the field is not stored or is a list.
+     */
+    public Query<T> orderBy(String field, boolean descending) {
+        this.orderBy = field(field);
+        this.descending = descending;
+        return this;
+    }
+
+    /**
+     * Reads only some fields of the returned objects.
+     *
+     * @param fields Names of the fields to read.
+     * @return The query.
+     * @throws IllegalArgumentException in case a field is not stored.
+     * @see Model#find(String, String...)
+     */
+    public Query<T> select(String... fields) {
+        this.projection = model.projection(fields);
+        return this;
+    }
+
+    /**
+     * @param offset How many matching objects to skip.
+     * @return The query.
+     */
+    public Query<T> offset(int offset) {
+        this.offset = Math.max(0, offset);
+        return this;
+    }
+
+    /**
+     * @param limit How many objects to return at most, 0 for no limit.
+     * @return The query.
+     */
+    public Query<T> limit(int limit) {
+        this.limit = Math.max(0, limit);
+        return this;
+    }
+
+    private FieldIndex indexOf(FieldIndex[] indexes, ModelBinding.FieldBinding field) {
+        for (FieldIndex index : indexes) {
+            if (index.field == field) return index;
+        }
+
+        return null;
+    }
+
+    /**
+     * Ids to walk and whether they already come in the requested order.
+     */
+    private static class Plan {
+        final List<String> ids;
+        final boolean ordered;
+
+        Plan(List<String> ids, boolean ordered) {
+            this.ids = ids;
+            this.ordered = ordered;
+        }
+    }
+
+    /**
+     * Picks the ids to walk: the smallest equality match, then a range of an...
+     * ordered index, then an ordered index walk for orderBy, then every id.
+     */
+    private Plan plan() {
+        FieldIndex[] indexes = model.getFieldIndexes();
+        List<String> best = null;
+
+        for (Condition condition : conditions) {
+            FieldIndex index = indexOf(indexes, condition.field);
+
+            if (index == null) continue;
+
+            List<String> ids = null;
+
+            if (condition.operator == Operator.EQ) {
+                ids = index.find(condition.value);
+            } else if (condition.operator == Operator.IN) {
+                Set<String> union = new LinkedHashSet<>();
+
+                for (Object value : condition.values) {
+                    union.addAll(index.find(value));
+                }
+
+                ids = new ArrayList<>(union);
+            }
+
+            if (ids != null && (best == null || ids.size() < best.size())) best = ids;
+        }
+
+        if (best != null) return new Plan(best, orderBy == null);
+
+        for (Condition condition : conditions) {
+            FieldIndex index = indexOf(indexes, condition.field);
+
+            if (index == null || !index.isOrdered() || condition.value == null) continue;
+
+            Object from = null;
+            Object to = null;
+
+            for (Condition bound : conditions) {
+                if (bound.field != condition.field || bound.value == null) continue;
+
+                if (bound.operator == Operator.GT || bound.operator == Operator.GE) {
+                    if (from == null || FieldIndex.ORDER.compare(bound.value, from) > 0) from = bound.value;
+                } else if (bound.operator == Operator.LT || bound.operator == Operator.LE) {
+                    if (to == null || FieldIndex.ORDER.compare(bound.value, to) < 0) to = bound.value;
+                }
+            }
+
+            if (from == null && to == null) continue;
+
+            boolean ordered = orderBy == null || orderBy == condition.field;
+            return new Plan(index.range(from, to, orderBy != null && descending, 0), ordered);
+        }
+
+        if (orderBy != null) {
+            FieldIndex index = indexOf(indexes, orderBy);
+
+            if (index != null && index.isOrdered()) {
+                return new Plan(index.range(null, null, descending, 0), true);
+            }
+        }
+
+        return new Plan(model.getIdIndex().ids(), orderBy == null);
+    }
+
+    /**
+     * Collects the values of the fields the query looks at.
+     */
+    private static class ValuesVisitor extends RecordCodec.FieldVisitor {
+        final Set<ModelBinding.FieldBinding> wanted;
+        final Object[] values;
+
+        ValuesVisitor(Set<ModelBinding.FieldBinding> wanted, int size) {
+            this.wanted = wanted;
+            this.values = new Object[size];
+
+            // Fields missing from the record keep the default value.
+            for (ModelBinding.FieldBinding field : wanted) {
+                switch (field.kind) {
+                    case INT:
+                        values[field.ordinal] = 0;
+                        break;
+                    case LONG:
+                        values[field.ordinal] = 0L;
+                        break;
+                    case FLOAT:
+                        values[field.ordinal] = 0f;
+                        break;
+                    case DOUBLE:
+                        values[field.ordinal] = 0d;
+                        break;
+                    case BOOLEAN:
+                        values[field.ordinal] = false;
+                        break;
+                }
+            }
+        }
+
+        @Override
+        boolean wants(ModelBinding.FieldBinding field) {
+            return wanted.contains(field);
+        }
+
+        @Override
+        void visitInt(ModelBinding.FieldBinding field, int value) {
+            values[field.ordinal] = value;
+        }
+
+        @Override
+        void visitLong(ModelBinding.FieldBinding field, long value) {
+            values[field.ordinal] = value;
+        }
+
+        @Override
+        void visitFloat(ModelBinding.FieldBinding field, float value) {
+            values[field.ordinal] = value;
+        }
+
+        @Override
+        void visitDouble(ModelBinding.FieldBinding field, double value) {
+            values[field.ordinal] = value;
+        }
+
+        @Override
+        void visitBoolean(ModelBinding.FieldBinding field, boolean value) {
+            values[field.ordinal] = value;
+        }
+
+        @Override
+        void visitString(ModelBinding.FieldBinding field, String value) {
+            values[field.ordinal] = value;
+        }
+    }
+
+    /**
+     * A matching id and the value it is ordered by.
+     */
+    private static class Match {
+        final String id;
+        final Object value;
+
+        Match(String id, Object value) {
+            this.id = id;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Runs the query.
+     *
+     * @return The matching objects.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    public List<T> find() {
+        Plan plan = plan();
+
+        Set<ModelBinding.FieldBinding> wanted = new HashSet<>();
+
+        for (Condition condition : conditions) {
+            wanted.add(condition.field);
+        }
+
+        if (!plan.ordered) wanted.add(orderBy);
+
+        StorageEngine storageEngine = model.loadStorageEngine();
+        String namespace = model.getNamespace("object");
+        List<Match> matches = new ArrayList<>();
+        int skip = plan.ordered ? offset : 0;
+
+        for (String id : plan.ids) {
+            Object[] values = null;
+
+            if (!wanted.isEmpty()) {
+                ByteBuffer record = storageEngine.get(namespace, id);
+
+                if (record == null) continue;
+
+                ValuesVisitor visitor = new ValuesVisitor(wanted, model.binding.fields.length);
+
+                try {
+                    model.codecOf(record).decode(model.binding, record, visitor);
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                    continue;
+                }
+
+                values = visitor.values;
+            }
+
+            if (!matches(values)) continue;
+
+            if (plan.ordered) {
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+
+                matches.add(new Match(id, null));
+
+                if (limit > 0 && matches.size() >= limit) break;
+            } else {
+                matches.add(new Match(id, values[orderBy.ordinal]));
+            }
+        }
+
+        if (!plan.ordered) {
+            Collections.sort(matches, new Comparator<Match>() {
+                @Override
+                public int compare(Match a, Match b) {
+                    int comparison = FieldIndex.ORDER.compare(a.value, b.value);
+                    return descending ? -comparison : comparison;
+                }
+            });
+
+            int end = (limit > 0) ? Math.min(matches.size(), offset + limit) : matches.size();
+            matches = (offset >= end) ? new ArrayList<Match>() : matches.subList(offset, end);
+        }
+
+        List<T> listT = new ArrayList<>(matches.size());
+
+        for (Match match : matches) {
+            T object = (projection == null) ? model.find(match.id) : model.find(match.id, projection);
+
+            if (object != null) listT.add(object);
+        }
+
+        return listT;
+    }
+
+    /**
+     * Checks the conditions on the values of an object.
+     *
+     * @param values The values, by field ordinal (see ModelBinding#valuesOf()).
+     * @return True if the values match every condition.
+     */
+    boolean matches(Object[] values) {
+        for (Condition condition : conditions) {
+            if (!condition.matches(values[condition.field.ordinal])) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Runs the query, then keeps its result up to date as objects of the...
+     * class are saved and removed.
+     *
+     * @param listener Listener of the changes of the result.
+     * @return The live query, to be closed when no longer needed.
+     * @throws IllegalStateException in case the query has an offset, a limit or a projection.
+     * @throws com.mauriciogiordano.easydb.exception.NoContextFoundException in case of null context.
+     */
+    public LiveQuery<T> observe(LiveQuery.Listener<T> listener) {
+        if (offset > 0 || limit > 0 || projection != null) {
+            throw new IllegalStateException("Live queries can't have an offset, a limit or a projection!");
+        }
+
+        return LiveQuery.start(this, model.clazz, listener);
+    }
+
+    /**
+     * @return True if the query has an order.
+     */
+    boolean isOrdered() {
+        return orderBy != null;
+    }
+
+    /**
+     * Compares the values of two objects in the order of the query.
+     *
+     * @param a The values of an object, by field ordinal.
+     * @param b The values of the other object.
+     */
+    int compare(Object[] a, Object[] b) {
+        int comparison = FieldIndex.ORDER.compare(a[orderBy.ordinal], b[orderBy.ordinal]);
+        return descending ? -comparison : comparison;
+    }
+}
@@ -0,0 +1,258 @@
+package com.mauriciogiordano.easydb.bean;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Sorted elements that can also be reached by position.
+ *
+ * Kept in a treap (a binary search tree balanced by random priorities)...
+ * where every node knows the size of its subtree, so inserting, removing...
+ * and finding the position of an element, or the element at a position,...
+ * cost O(log n) instead of shifting a list. The comparator must be a total...
+ * order: elements comparing as equal are the same element.
+ *
+ * Nodes are never changed, a change copies the O(log n) nodes on its path,...
+ * so snapshot() is O(1) and a snapshot never sees later changes.
+ */
+final class RankedList<E> {
+
+    private static final class Node<E> {
+        final E element;
+        final int priority;
+        final int size;
+        final Node<E> left;
+        final Node<E> right;
+
+        Node(E element, int priority, Node<E> left, Node<E> right) {
+            this.element = element;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.size = 1 + size(left) + size(right);
+        }
+
+        Node<E> with(Node<E> left, Node<E> right) {
+            return new Node<>(element, priority, left, right);
+        }
+    }
+
+    /**
+     * The elements lower than a given one, and the rest.
+     */
+    private static final class Split<E> {
+        final Node<E> low;
+        final Node<E> high;
+
+        Split(Node<E> low, Node<E> high) {
+            this.low = low;
+            this.high = high;
+        }
+    }
+
+    private final Comparator<? super E> comparator;
+    private final Random random = new Random();
+
+    private Node<E> root = null;
+
+    RankedList(Comparator<? super E> comparator) {
+        this.comparator = comparator;
+    }
+
+    private static int size(Node<?> node) {
+        return (node == null) ? 0 : node.size;
+    }
+
+    /**
+     * Joins two treaps, every element of the first being lower.
+     */
+    private static <E> Node<E> merge(Node<E> low, Node<E> high) {
+        if (low == null) return high;
+        if (high == null) return low;
+
+        if (low.priority > high.priority) {
+            return low.with(low.left, merge(low.right, high));
+        }
+
+        return high.with(merge(low, high.left), high.right);
+    }
+
+    private Split<E> split(Node<E> node, E element) {
+        if (node == null) return new Split<>(null, null);
+
+        if (comparator.compare(node.element, element) < 0) {
+            Split<E> right = split(node.right, element);
+            return new Split<>(node.with(node.left, right.low), right.high);
+        }
+
+        Split<E> left = split(node.left, element);
+        return new Split<>(left.low, node.with(left.high, node.right));
+    }
+
+    int size() {
+        return size(root);
+    }
+
+    /**
+     * @param element The element.
+     * @return Its position, -1 if not there.
+     */
+    int indexOf(E element) {
+        Node<E> node = root;
+        int position = 0;
+
+        while (node != null) {
+            int comparison = comparator.compare(element, node.element);
+
+            if (comparison == 0) return position + size(node.left);
+
+            if (comparison < 0) {
+                node = node.left;
+            } else {
+                position += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+
+        return -1;
+    }
+
+    private static <E> E get(Node<E> node, int position) {
+        if (position < 0 || position >= size(node)) {
+            throw new IndexOutOfBoundsException("Position " + position + " of " + size(node) + "!");
+        }
+
+        while (true) {
+            int left = size(node.left);
+
+            if (position == left) return node.element;
+
+            if (position < left) {
+                node = node.left;
+            } else {
+                position -= left + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * @param position The position.
+     * @return The element at the position.
+     * @throws IndexOutOfBoundsException in case there is no such position.
+     */
+    E get(int position) {
+        return get(root, position);
+    }
+
+    /**
+     * Inserts an element that is not there yet.
+     *
+     * @param element The element.
+     * @return Its position.
+     */
+    int add(E element) {
+        Split<E> parts = split(root, element);
+        int position = size(parts.low);
+
+        root = merge(merge(parts.low, new Node<>(element, random.nextInt(), null, null)), parts.high);
+        return position;
+    }
+
+    /**
+     * Removes an element.
+     *
+     * @param element The element.
+     * @return The position it had, -1 if not there.
+     */
+    int remove(E element) {
+        int position = indexOf(element);
+
+        if (position >= 0) root = remove(root, element);
+
+        return position;
+    }
+
+    private Node<E> remove(Node<E> node, E element) {
+        int comparison = comparator.compare(element, node.element);
+
+        if (comparison == 0) return merge(node.left, node.right);
+
+        if (comparison < 0) return node.with(remove(node.left, element), node.right);
+
+        return node.with(node.left, remove(node.right, element));
+    }
+
+    /**
+     * @return The elements as they are now, in order. Reading an element...
+     *         costs O(log n), iterating costs O(n).
+     */
+    List<E> snapshot() {
+        return new Snapshot<>(root);
+    }
+
+    private static final class Snapshot<E> extends AbstractList<E> {
+        private final Node<E> root;
+
+        Snapshot(Node<E> root) {
+            this.root = root;
+        }
+
+        @Override
+        public E get(int position) {
+            return RankedList.get(root, position);
+        }
+
+        @Override
+        public int size() {
+            return RankedList.size(root);
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            return new InOrder<>(root);
+        }
+    }
+
+    /**
+     * Walks a tree in order, keeping only the path to the next node.
+     */
+    private static final class InOrder<E> implements Iterator<E> {
+        private final List<Node<E>> path = new ArrayList<>();
+
+        InOrder(Node<E> root) {
+            descend(root);
+        }
+
+        private void descend(Node<E> node) {
+            while (node != null) {
+                path.add(node);
+                node = node.left;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !path.isEmpty();
+        }
+
+        @Override
+        public E next() {
+            if (path.isEmpty()) throw new NoSuchElementException();
+
+            Node<E> node = path.remove(path.size() - 1);
+            descend(node.right);
+            return node.element;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
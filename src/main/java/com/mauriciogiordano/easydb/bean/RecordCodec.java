@@ -0,0 +1,131 @@
+package com.mauriciogiordano.easydb.bean;
+
+import org.json.JSONException;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Converts the stored fields of a model into the bytes kept by the...
+ * storage engine, and back.
+ *
+ * Decoding does not build objects by itself, it hands every value to a...
+ * FieldVisitor, so callers decide whether to fill an instance or just look...
+ * at some of the values.
+ */
+abstract class RecordCodec {
+
+    /**
+     * Json text, the default format.
+     */
+    static final RecordCodec JSON = new JsonRecordCodec();
+
+    /**
+     * Compact binary, see BinaryRecordCodec.
+     */
+    static final RecordCodec BINARY = new BinaryRecordCodec();
+
+    /**
+     * Encodes the stored fields of an object.
+     *
+     * @param binding The binding of the object's class.
+     * @param object The object.
+     * @return The record.
+     */
+    abstract byte[] encode(ModelBinding binding, Object object);
+
+    /**
+     * Decodes a record.
+     *
+     * @param binding The binding of the record's class.
+     * @param record The record, from its position to its limit.
+     * @param visitor Receives the values.
+     * @throws JSONException in case the record is malformed.
+     */
+    abstract void decode(ModelBinding binding, ByteBuffer record, FieldVisitor visitor) throws JSONException;
+
+    /**
+     * Returns the codec a record was written with.
+     *
+     * @param record The record.
+     * @return The codec.
+     */
+    static RecordCodec of(ByteBuffer record) {
+        return BinaryRecordCodec.isBinary(record) ? BINARY : JSON;
+    }
+
+    /**
+     * Receives the values of a record. Fields missing from the record are not visited.
+     */
+    abstract static class FieldVisitor {
+
+        /**
+         * @param field The field.
+         * @return False to skip the value without decoding it.
+         */
+        boolean wants(ModelBinding.FieldBinding field) {
+            return true;
+        }
+
+        void visitInt(ModelBinding.FieldBinding field, int value) { }
+
+        void visitLong(ModelBinding.FieldBinding field, long value) { }
+
+        void visitFloat(ModelBinding.FieldBinding field, float value) { }
+
+        void visitDouble(ModelBinding.FieldBinding field, double value) { }
+
+        void visitBoolean(ModelBinding.FieldBinding field, boolean value) { }
+
+        void visitString(ModelBinding.FieldBinding field, String value) { }
+
+        void visitList(ModelBinding.FieldBinding field, List<String> value) { }
+    }
+
+    /**
+     * Visitor copying every value into an object.
+     */
+    static class ObjectVisitor extends FieldVisitor {
+
+        private final Object target;
+
+        ObjectVisitor(Object target) {
+            this.target = target;
+        }
+
+        @Override
+        void visitInt(ModelBinding.FieldBinding field, int value) {
+            field.setInt(target, value);
+        }
+
+        @Override
+        void visitLong(ModelBinding.FieldBinding field, long value) {
+            field.setLong(target, value);
+        }
+
+        @Override
+        void visitFloat(ModelBinding.FieldBinding field, float value) {
+            field.setFloat(target, value);
+        }
+
+        @Override
+        void visitDouble(ModelBinding.FieldBinding field, double value) {
+            field.setDouble(target, value);
+        }
+
+        @Override
+        void visitBoolean(ModelBinding.FieldBinding field, boolean value) {
+            field.setBoolean(target, value);
+        }
+
+        @Override
+        void visitString(ModelBinding.FieldBinding field, String value) {
+            field.set(target, value);
+        }
+
+        @Override
+        void visitList(ModelBinding.FieldBinding field, List<String> value) {
+            field.set(target, value);
+        }
+    }
+}
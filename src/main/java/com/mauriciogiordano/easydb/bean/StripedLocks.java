@@ -0,0 +1,111 @@
+package com.mauriciogiordano.easydb.bean;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Locks serializing the writes of the same object, keyed by class and id.
+ *
+ * Every class has its own stripes and an id always maps to the same stripe,...
+ * so writes of different ids mostly take different locks and run in...
+ * parallel. Many ids are locked in stripe order, so two writers can't wait...
+ * for each other. Writers of a class may lock another class (e.g. a parent...
+ * removing its children) but never the other way around.
+ */
+final class StripedLocks {
+
+    /**
+     * Stripes per class, a power of two.
+     */
+    static final int STRIPES = 64;
+
+    private static final ConcurrentMap<Class<?>, ReentrantLock[]> locks = new ConcurrentHashMap<>();
+
+    private StripedLocks() { }
+
+    private static ReentrantLock[] of(Class<?> clazz) {
+        ReentrantLock[] stripes = locks.get(clazz);
+
+        if (stripes != null) return stripes;
+
+        stripes = new ReentrantLock[STRIPES];
+
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+
+        ReentrantLock[] previous = locks.putIfAbsent(clazz, stripes);
+        return (previous == null) ? stripes : previous;
+    }
+
+    private static int stripe(String id) {
+        int hash = String.valueOf(id).hashCode();
+        hash ^= (hash >>> 16);
+
+        return hash & (STRIPES - 1);
+    }
+
+    /**
+     * Locks the writes of an object.
+     *
+     * @param clazz The class of the object.
+     * @param id The object's id.
+     */
+    static void lock(Class<?> clazz, String id) {
+        of(clazz)[stripe(id)].lock();
+    }
+
+    static void unlock(Class<?> clazz, String id) {
+        of(clazz)[stripe(id)].unlock();
+    }
+
+    /**
+     * Locks the writes of many objects.
+     *
+     * @param clazz The class of the objects.
+     * @param ids The objects' ids.
+     * @return The stripes locked, to be given to unlockAll().
+     */
+    static boolean[] lockAll(Class<?> clazz, Collection<String> ids) {
+        ReentrantLock[] stripes = of(clazz);
+        boolean[] held = new boolean[STRIPES];
+
+        for (String id : ids) {
+            held[stripe(id)] = true;
+        }
+
+        for (int i = 0; i < STRIPES; i++) {
+            if (held[i]) stripes[i].lock();
+        }
+
+        return held;
+    }
+
+    /**
+     * Locks the writes of every object of a class.
+     *
+     * @param clazz The class of the objects.
+     * @return The stripes locked, to be given to unlockAll().
+     */
+    static boolean[] lockClass(Class<?> clazz) {
+        ReentrantLock[] stripes = of(clazz);
+        boolean[] held = new boolean[STRIPES];
+
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i].lock();
+            held[i] = true;
+        }
+
+        return held;
+    }
+
+    static void unlockAll(Class<?> clazz, boolean[] held) {
+        ReentrantLock[] stripes = of(clazz);
+
+        for (int i = STRIPES - 1; i >= 0; i--) {
+            if (held[i]) stripes[i].unlock();
+        }
+    }
+}
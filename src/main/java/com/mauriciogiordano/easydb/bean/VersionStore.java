@@ -0,0 +1,284 @@
+package com.mauriciogiordano.easydb.bean;
+
+import com.mauriciogiordano.easydb.storage.StorageEngine;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Old versions of the records of a class, kept while snapshots need them.
+ *
+ * Every write gets a version and keeps the records (and id sequences) it...
+ * replaces, before they are replaced. A snapshot reads the current record...
+ * and, if a write it must not see touched it, the record kept by the...
+ * earliest of those writes. Readers never wait for writers: the old record...
+ * is published before the new one is committed, so a reader finds it...
+ * whichever record it read.
+ *
+ * Only writes that begin while a snapshot is open (or being opened) keep...
+ * their old records, so writes cost nothing more when snapshots are not...
+ * used. Opening a snapshot waits for the writes that began before, which...
+ * kept nothing and are seen by the snapshot once committed, but never for...
+ * later ones. Old records are dropped as soon as no open snapshot can see...
+ * them, right at the end of the write when there is none.
+ */
+final class VersionStore {
+
+    /**
+     * A record as it was before a write, null if the object did not exist.
+     */
+    static final class Version {
+        final ByteBuffer record;
+        final long sequence;
+
+        Version(ByteBuffer record, long sequence) {
+            this.record = record;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * A write in progress.
+     */
+    final class Write {
+        private final long version;
+        private final boolean tracked;
+        private final Map<String, Version> versions;
+
+        private Write(long version, boolean tracked) {
+            this.version = version;
+            this.tracked = tracked;
+            this.versions = new HashMap<>();
+        }
+
+        /**
+         * Keeps the record an object has before the write, in case a snapshot...
+         * needs it. Must be called before the object is changed. Does nothing...
+         * if no snapshot was open or being opened when the write began.
+         *
+         * @param storageEngine The engine where the class is stored.
+         * @param namespace Full name of the namespace of the records.
+         * @param idIndex The ids index of the class.
+         * @param id The object's id.
+         */
+        void keep(StorageEngine storageEngine, String namespace, IdIndex idIndex, String id) {
+            if (!tracked || versions.containsKey(id)) return;
+
+            long sequence = idIndex.sequenceOf(id);
+            ByteBuffer record = (sequence < 0) ? null : storageEngine.get(namespace, id);
+
+            versions.put(id, (record == null) ? new Version(null, -1) : new Version(copy(record), sequence));
+        }
+    }
+
+    /**
+     * Records replaced by each version.
+     */
+    private final NavigableMap<Long, Map<String, Version>> versions = new TreeMap<>();
+
+    /**
+     * Versions published but not yet committed.
+     */
+    private final Set<Long> inProgress = new TreeSet<>();
+
+    /**
+     * Open snapshots, by the lowest version each of them may need.
+     */
+    private final NavigableMap<Long, Integer> horizons = new TreeMap<>();
+
+    /**
+     * Snapshots open or being opened, writes beginning meanwhile are tracked.
+     */
+    private int snapshots = 0;
+
+    /**
+     * Writes in progress that began with no snapshot open, so kept nothing.
+     */
+    private int untracked = 0;
+
+    private long version = 0;
+
+    private static ByteBuffer copy(ByteBuffer record) {
+        ByteBuffer source = record.duplicate();
+        byte[] bytes = new byte[source.remaining()];
+
+        source.get(bytes);
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    /**
+     * Starts a write. Must be followed by publish() before the write...
+     * changes anything, and by end() once committed or failed.
+     *
+     * @return The write.
+     */
+    synchronized Write begin() {
+        Write write = new Write(++version, snapshots > 0);
+
+        if (write.tracked) {
+            inProgress.add(write.version);
+        } else {
+            untracked++;
+        }
+
+        return write;
+    }
+
+    /**
+     * Makes the kept records visible to snapshots.
+     */
+    synchronized void publish(Write write) {
+        if (write.tracked) versions.put(write.version, write.versions);
+    }
+
+    /**
+     * Ends a write.
+     */
+    synchronized void end(Write write) {
+        if (write.tracked) {
+            inProgress.remove(write.version);
+            reclaim();
+        } else if (--untracked == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Drops the records no open snapshot can see.
+     */
+    private void reclaim() {
+        long horizon = horizons.isEmpty() ? Long.MAX_VALUE : horizons.firstKey();
+        List<Long> unused = new ArrayList<>();
+
+        for (Long key : versions.headMap(horizon, false).keySet()) {
+            if (!inProgress.contains(key)) unused.add(key);
+        }
+
+        for (Long key : unused) {
+            versions.remove(key);
+        }
+    }
+
+    /**
+     * Opens a snapshot. Waits for the writes in progress that kept nothing,...
+     * never for the others.
+     *
+     * @return The versions the snapshot must not see: every version above...
+     *         the first element, and the rest of the elements.
+     */
+    synchronized long[] open() {
+        boolean interrupted = false;
+
+        // Writes beginning from now on keep their old records.
+        snapshots++;
+
+        while (untracked > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) Thread.currentThread().interrupt();
+
+        long[] hidden = new long[inProgress.size() + 1];
+        int i = 0;
+
+        hidden[i++] = version;
+
+        for (Long key : inProgress) {
+            hidden[i++] = key;
+        }
+
+        long horizon = (hidden.length > 1) ? hidden[1] : version + 1;
+        Integer count = horizons.get(horizon);
+        horizons.put(horizon, (count == null) ? 1 : count + 1);
+
+        return hidden;
+    }
+
+    /**
+     * Closes a snapshot.
+     *
+     * @param hidden What open() returned.
+     */
+    synchronized void close(long[] hidden) {
+        long horizon = (hidden.length > 1) ? hidden[1] : hidden[0] + 1;
+        Integer count = horizons.get(horizon);
+
+        if (count == null) return;
+
+        snapshots--;
+
+        if (count == 1) {
+            horizons.remove(horizon);
+        } else {
+            horizons.put(horizon, count - 1);
+        }
+
+        reclaim();
+    }
+
+    /**
+     * Returns, for every object written after a snapshot, its version as the...
+     * snapshot sees it.
+     *
+     * @param hidden What open() returned.
+     * @return The versions, by id.
+     */
+    synchronized Map<String, Version> hiddenVersions(long[] hidden) {
+        Map<String, Version> found = new HashMap<>();
+
+        // The earliest hidden write has the record the snapshot sees.
+        for (int i = 1; i < hidden.length; i++) {
+            putAbsent(found, versions.get(hidden[i]));
+        }
+
+        for (Map<String, Version> replaced : versions.tailMap(hidden[0], false).values()) {
+            putAbsent(found, replaced);
+        }
+
+        return found;
+    }
+
+    /**
+     * @return The version of an object as a snapshot sees it, or null if...
+     *         no hidden write touched it.
+     */
+    synchronized Version hiddenVersion(long[] hidden, String id) {
+        for (int i = 1; i < hidden.length; i++) {
+            Map<String, Version> replaced = versions.get(hidden[i]);
+
+            if (replaced != null && replaced.containsKey(id)) return replaced.get(id);
+        }
+
+        for (Map<String, Version> replaced : versions.tailMap(hidden[0], false).values()) {
+            if (replaced.containsKey(id)) return replaced.get(id);
+        }
+
+        return null;
+    }
+
+    private static void putAbsent(Map<String, Version> found, Map<String, Version> replaced) {
+        if (replaced == null) return;
+
+        for (Map.Entry<String, Version> entry : replaced.entrySet()) {
+            if (!found.containsKey(entry.getKey())) found.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return How many old versions are kept.
+     */
+    synchronized int size() {
+        return versions.size();
+    }
+}
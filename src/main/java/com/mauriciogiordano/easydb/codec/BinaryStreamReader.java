@@ -0,0 +1,153 @@
+package com.mauriciogiordano.easydb.codec;
+
+import org.json.JSONException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the values written by BinaryStreamWriter from any ByteBuffer...
+ * (heap or memory-mapped) without copying it.
+ */
+public class BinaryStreamReader {
+
+    private final ByteBuffer input;
+    private final StringBuilder builder = new StringBuilder();
+
+    /**
+     * @param input The bytes to be read, from its position to its limit.
+     */
+    public BinaryStreamReader(ByteBuffer input) {
+        this.input = input.duplicate();
+    }
+
+    private JSONException truncated() {
+        return new JSONException("Truncated record at " + input.position());
+    }
+
+    public boolean hasRemaining() {
+        return input.hasRemaining();
+    }
+
+    public int readByte() throws JSONException {
+        try {
+            return input.get() & 0xFF;
+        } catch (BufferUnderflowException e) {
+            throw truncated();
+        }
+    }
+
+    public long readVarLong() throws JSONException {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new JSONException("Malformed varint at " + input.position());
+    }
+
+    public long readSignedVarLong() throws JSONException {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public int readInt() throws JSONException {
+        try {
+            return input.getInt();
+        } catch (BufferUnderflowException e) {
+            throw truncated();
+        }
+    }
+
+    public long readLong() throws JSONException {
+        try {
+            return input.getLong();
+        } catch (BufferUnderflowException e) {
+            throw truncated();
+        }
+    }
+
+    public float readFloat() throws JSONException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() throws JSONException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public boolean readBoolean() throws JSONException {
+        return readByte() != 0;
+    }
+
+    /**
+     * @return The string, or null.
+     */
+    public String readString() throws JSONException {
+        long length = readVarLong() - 1;
+
+        if (length < 0) {
+            return null;
+        }
+
+        if (length > input.remaining()) {
+            throw truncated();
+        }
+
+        int end = input.position() + (int) length;
+
+        builder.setLength(0);
+
+        try {
+            while (input.position() < end) {
+                int b = input.get() & 0xFF;
+
+                if (b < 0x80) {
+                    builder.append((char) b);
+                } else if (b < 0xE0) {
+                    builder.append((char) (((b & 0x1F) << 6) | (input.get() & 0x3F)));
+                } else if (b < 0xF0) {
+                    builder.append((char) (((b & 0x0F) << 12) | ((input.get() & 0x3F) << 6) | (input.get() & 0x3F)));
+                } else {
+                    builder.appendCodePoint(((b & 0x07) << 18) | ((input.get() & 0x3F) << 12)
+                            | ((input.get() & 0x3F) << 6) | (input.get() & 0x3F));
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw truncated();
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Skips a string without decoding it.
+     */
+    public void skipString() throws JSONException {
+        long length = readVarLong() - 1;
+
+        if (length > input.remaining()) {
+            throw truncated();
+        }
+
+        if (length > 0) {
+            input.position(input.position() + (int) length);
+        }
+    }
+
+    /**
+     * Skips bytes.
+     */
+    public void skip(int count) throws JSONException {
+        if (count > input.remaining()) {
+            throw truncated();
+        }
+
+        input.position(input.position() + count);
+    }
+}
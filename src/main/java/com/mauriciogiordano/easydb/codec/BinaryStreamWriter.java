@@ -0,0 +1,148 @@
+package com.mauriciogiordano.easydb.codec;
+
+import java.util.Arrays;
+
+/**
+ * Writes compact binary values: varints, fixed size numbers and...
+ * length-prefixed UTF-8 strings.
+ */
+public class BinaryStreamWriter {
+
+    private byte[] buffer;
+    private int size = 0;
+
+    public BinaryStreamWriter() {
+        this(64);
+    }
+
+    /**
+     * @param capacity Initial size of the buffer.
+     */
+    public BinaryStreamWriter(int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+
+    public BinaryStreamWriter writeByte(int value) {
+        ensure(1);
+        buffer[size++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * Writes an unsigned varint, 7 bits per byte.
+     */
+    public BinaryStreamWriter writeVarLong(long value) {
+        ensure(10);
+
+        while ((value & ~0x7FL) != 0) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        buffer[size++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * Writes a signed varint using zigzag encoding, so small negatives stay small.
+     */
+    public BinaryStreamWriter writeSignedVarLong(long value) {
+        return writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    public BinaryStreamWriter writeInt(int value) {
+        ensure(4);
+        buffer[size++] = (byte) (value >>> 24);
+        buffer[size++] = (byte) (value >>> 16);
+        buffer[size++] = (byte) (value >>> 8);
+        buffer[size++] = (byte) value;
+        return this;
+    }
+
+    public BinaryStreamWriter writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+        return this;
+    }
+
+    public BinaryStreamWriter writeFloat(float value) {
+        return writeInt(Float.floatToIntBits(value));
+    }
+
+    public BinaryStreamWriter writeDouble(double value) {
+        return writeLong(Double.doubleToLongBits(value));
+    }
+
+    public BinaryStreamWriter writeBoolean(boolean value) {
+        return writeByte(value ? 1 : 0);
+    }
+
+    /**
+     * Writes a string as varint(length + 1) followed by its UTF-8 bytes, 0 means null.
+     */
+    public BinaryStreamWriter writeString(CharSequence value) {
+        if (value == null) {
+            return writeVarLong(0);
+        }
+
+        int length = value.length();
+        int bytes = 0;
+
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+
+        writeVarLong(bytes + 1);
+        ensure(bytes);
+
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+
+            if (c < 0x80) {
+                buffer[size++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[size++] = (byte) (0xC0 | (c >> 6));
+                buffer[size++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+
+                buffer[size++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[size++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                buffer[size++] = (byte) (0xE0 | (c >> 12));
+                buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[size++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * @return A copy of everything written so far.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+}
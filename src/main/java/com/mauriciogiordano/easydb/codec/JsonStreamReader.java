@@ -0,0 +1,530 @@
+package com.mauriciogiordano.easydb.codec;
+
+import org.json.JSONException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads json tokens straight from UTF-8 bytes, without building a tree.
+ *
+ * Works over any ByteBuffer (heap or memory-mapped) and never copies the...
+ * input, strings are decoded when they are read. Values can be skipped...
+ * without being decoded. Commas and colons are checked where json puts...
+ * them, and malformed strings or escapes throw instead of being guessed.
+ */
+public class JsonStreamReader {
+
+    /**
+     * Kinds of the next token.
+     */
+    public enum Token {
+        BEGIN_OBJECT,
+        END_OBJECT,
+        BEGIN_ARRAY,
+        END_ARRAY,
+        NAME,
+        STRING,
+        NUMBER,
+        BOOLEAN,
+        NULL,
+        END_DOCUMENT
+    }
+
+    private final ByteBuffer input;
+    private final StringBuilder builder = new StringBuilder();
+
+    /**
+     * True after a name (and its colon) was read, meaning a value follows.
+     */
+    private boolean expectingValue = false;
+
+    /**
+     * States of an object or array: nothing read yet, an element read (a comma...
+     * or the end follows), a comma read (an element follows).
+     */
+    private static final int EMPTY = 0;
+    private static final int NONEMPTY = 1;
+    private static final int NEXT = 2;
+
+    /**
+     * Nesting of the current position, true for objects and false for arrays,...
+     * and the state of each level.
+     */
+    private boolean[] stack = new boolean[16];
+    private int[] states = new int[16];
+    private int depth = 0;
+
+    /**
+     * @param input The bytes to be read, from its position to its limit.
+     */
+    public JsonStreamReader(ByteBuffer input) {
+        this.input = input.duplicate();
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at " + input.position());
+    }
+
+    /**
+     * Skips whitespace.
+     *
+     * @return The next byte, -1 at the end.
+     */
+    private int peekByte() {
+        while (input.hasRemaining()) {
+            byte b = input.get(input.position());
+
+            if (b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                input.position(input.position() + 1);
+            } else {
+                return b;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return The kind of the next token, without consuming it.
+     */
+    public Token peek() throws JSONException {
+        int b = peekSeparated();
+
+        switch (b) {
+            case -1: return Token.END_DOCUMENT;
+            case '{': return Token.BEGIN_OBJECT;
+            case '}': return Token.END_OBJECT;
+            case '[': return Token.BEGIN_ARRAY;
+            case ']': return Token.END_ARRAY;
+            case '"': return expectingValue || !inObject() ? Token.STRING : Token.NAME;
+            case 't':
+            case 'f': return Token.BOOLEAN;
+            case 'n': return Token.NULL;
+            default:
+                if (b == '-' || (b >= '0' && b <= '9')) return Token.NUMBER;
+                throw syntaxError("Unexpected character '" + (char) b + "'");
+        }
+    }
+
+    /**
+     * Skips whitespace and the comma between two elements, checking it is...
+     * there when needed and nowhere else.
+     *
+     * @return The first byte of the next token, -1 at the end.
+     */
+    private int peekSeparated() throws JSONException {
+        int b = peekByte();
+
+        if (expectingValue) {
+            if (b == '}' || b == ']' || b == ',') throw syntaxError("Expected a value");
+            return b;
+        }
+
+        if (depth == 0) return b;
+
+        int state = states[depth - 1];
+
+        if (state == NONEMPTY && b != '}' && b != ']' && b != -1) {
+            if (b != ',') throw syntaxError("Expected ','");
+
+            input.position(input.position() + 1);
+            states[depth - 1] = state = NEXT;
+            b = peekByte();
+        }
+
+        if (state == NEXT && (b == '}' || b == ']')) throw syntaxError("Expected a value after ','");
+        if (state == EMPTY && b == ',') throw syntaxError("Unexpected ','");
+        if (inObject() && b != '"' && b != '}' && b != -1) throw syntaxError("Expected a name");
+
+        return b;
+    }
+
+    private boolean inObject() {
+        return depth > 0 && stack[depth - 1];
+    }
+
+    private void push(boolean object) {
+        if (depth == stack.length) {
+            boolean[] grown = new boolean[depth * 2];
+            System.arraycopy(stack, 0, grown, 0, depth);
+            stack = grown;
+
+            int[] grownStates = new int[depth * 2];
+            System.arraycopy(states, 0, grownStates, 0, depth);
+            states = grownStates;
+        }
+
+        states[depth] = EMPTY;
+        stack[depth++] = object;
+    }
+
+    /**
+     * Marks the end of a value, so a comma or the end of its parent follows.
+     */
+    private void endValue() {
+        expectingValue = false;
+
+        if (depth > 0) states[depth - 1] = NONEMPTY;
+    }
+
+    private void expect(char c) throws JSONException {
+        if (peekByte() != c) {
+            throw syntaxError("Expected '" + c + "'");
+        }
+
+        input.position(input.position() + 1);
+    }
+
+    public void beginObject() throws JSONException {
+        if (peek() != Token.BEGIN_OBJECT) throw syntaxError("Expected '{'");
+
+        input.position(input.position() + 1);
+        push(true);
+        expectingValue = false;
+    }
+
+    public void endObject() throws JSONException {
+        if (peek() != Token.END_OBJECT || !inObject()) throw syntaxError("Expected '}'");
+
+        input.position(input.position() + 1);
+        depth--;
+        endValue();
+    }
+
+    public void beginArray() throws JSONException {
+        if (peek() != Token.BEGIN_ARRAY) throw syntaxError("Expected '['");
+
+        input.position(input.position() + 1);
+        push(false);
+        expectingValue = false;
+    }
+
+    public void endArray() throws JSONException {
+        if (peek() != Token.END_ARRAY || depth == 0 || inObject()) throw syntaxError("Expected ']'");
+
+        input.position(input.position() + 1);
+        depth--;
+        endValue();
+    }
+
+    /**
+     * @return True if the current object or array has more elements.
+     */
+    public boolean hasNext() throws JSONException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+    }
+
+    /**
+     * Reads the name of the next value inside an object, and its colon.
+     */
+    public String nextName() throws JSONException {
+        if (peek() != Token.NAME) throw syntaxError("Expected a name");
+
+        String name = readString();
+        expect(':');
+        expectingValue = true;
+        return name;
+    }
+
+    /**
+     * Reads a string value. Numbers and booleans are returned as text.
+     *
+     * @return The value, or null for a json null.
+     */
+    public String nextString() throws JSONException {
+        String value;
+
+        switch (peek()) {
+            case STRING:
+                value = readString();
+                break;
+            case NULL:
+                readLiteral();
+                value = null;
+                break;
+            case NUMBER:
+            case BOOLEAN:
+                value = readLiteral();
+                break;
+            default:
+                throw syntaxError("Expected a string");
+        }
+
+        endValue();
+        return value;
+    }
+
+    public boolean nextBoolean() throws JSONException {
+        String literal = readScalar();
+        return "true".equalsIgnoreCase(literal);
+    }
+
+    /**
+     * Reads a string or an unquoted value as text.
+     */
+    private String readScalar() throws JSONException {
+        Token token = peek();
+
+        if (token != Token.STRING && token != Token.NUMBER && token != Token.BOOLEAN && token != Token.NULL) {
+            throw syntaxError("Expected a value");
+        }
+
+        String text = (token == Token.STRING) ? readString() : readLiteral();
+
+        endValue();
+        return text;
+    }
+
+    /**
+     * Reads a long, accepting quoted numbers and truncating fractions.
+     * Anything that is not a number is read as 0.
+     */
+    public long nextLong() throws JSONException {
+        if (peek() != Token.NUMBER) return parseLong(readScalar());
+
+        int start = input.position();
+        long value = 0;
+        boolean negative = false;
+
+        if (input.get(start) == '-') {
+            negative = true;
+            input.position(start + 1);
+        }
+
+        int digits = 0;
+
+        while (input.hasRemaining()) {
+            byte b = input.get(input.position());
+
+            if (b < '0' || b > '9') break;
+
+            value = value * 10 + (b - '0');
+            digits++;
+            input.position(input.position() + 1);
+        }
+
+        if (digits == 0 || digits > 18 || isNumberPart(peekRaw())) {
+            // Fraction, exponent or too many digits, take the slow path.
+            input.position(start);
+            return parseLong(readScalar());
+        }
+
+        endValue();
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a long exactly when it is one, through a double otherwise.
+     */
+    private static long parseLong(String text) {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            // Not an integer, or out of range.
+        }
+
+        try {
+            return (long) Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public int nextInt() throws JSONException {
+        return (int) nextLong();
+    }
+
+    /**
+     * Reads a double, accepting quoted numbers. Anything that is not a number is read as 0.
+     */
+    public double nextDouble() throws JSONException {
+        String text = readScalar();
+
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Consumes a null value.
+     */
+    public void nextNull() throws JSONException {
+        if (peek() != Token.NULL) throw syntaxError("Expected null");
+
+        readLiteral();
+        endValue();
+    }
+
+    /**
+     * Skips the next value, including nested objects and arrays, without decoding it.
+     */
+    public void skipValue() throws JSONException {
+        int nesting = 0;
+
+        do {
+            switch (peek()) {
+                case BEGIN_OBJECT:
+                    beginObject();
+                    nesting++;
+                    break;
+                case BEGIN_ARRAY:
+                    beginArray();
+                    nesting++;
+                    break;
+                case END_OBJECT:
+                    if (nesting == 0) throw syntaxError("Expected a value");
+                    endObject();
+                    nesting--;
+                    break;
+                case END_ARRAY:
+                    if (nesting == 0) throw syntaxError("Expected a value");
+                    endArray();
+                    nesting--;
+                    break;
+                case NAME:
+                    skipString();
+                    expect(':');
+                    expectingValue = true;
+                    break;
+                case STRING:
+                    skipString();
+                    endValue();
+                    break;
+                case END_DOCUMENT:
+                    throw syntaxError("Unexpected end of document");
+                default:
+                    readLiteral();
+                    endValue();
+            }
+        } while (nesting > 0);
+    }
+
+    private int peekRaw() {
+        return input.hasRemaining() ? input.get(input.position()) : -1;
+    }
+
+    private static boolean isNumberPart(int b) {
+        return b == '.' || b == 'e' || b == 'E' || b == '+' || b == '-' || (b >= '0' && b <= '9');
+    }
+
+    /**
+     * Reads an unquoted token (number, true, false, null).
+     */
+    private String readLiteral() throws JSONException {
+        peekByte();
+
+        builder.setLength(0);
+
+        while (input.hasRemaining()) {
+            byte b = input.get(input.position());
+
+            if (b == ',' || b == '}' || b == ']' || b == ':' || b == '"' || b == '{' || b == '['
+                    || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                break;
+            }
+
+            builder.append((char) b);
+            input.position(input.position() + 1);
+        }
+
+        if (builder.length() == 0) {
+            throw syntaxError("Expected a value");
+        }
+
+        return builder.toString();
+    }
+
+    private void skipString() throws JSONException {
+        expect('"');
+
+        while (input.hasRemaining()) {
+            byte b = input.get();
+
+            if (b == '\\') {
+                if (!input.hasRemaining()) break;
+
+                input.get();
+            } else if (b == '"') {
+                return;
+            }
+        }
+
+        throw syntaxError("Unterminated string");
+    }
+
+    /**
+     * Reads a quoted string, decoding escapes and UTF-8.
+     */
+    private String readString() throws JSONException {
+        expect('"');
+
+        builder.setLength(0);
+
+        while (input.hasRemaining()) {
+            int b = input.get() & 0xFF;
+
+            if (b == '"') {
+                return builder.toString();
+            } else if (b == '\\') {
+                if (!input.hasRemaining()) break;
+
+                int escaped = input.get();
+
+                switch (escaped) {
+                    case 'n': builder.append('\n'); break;
+                    case 'r': builder.append('\r'); break;
+                    case 't': builder.append('\t'); break;
+                    case 'b': builder.append('\b'); break;
+                    case 'f': builder.append('\f'); break;
+                    case '"':
+                    case '\\':
+                    case '/': builder.append((char) escaped); break;
+                    case 'u':
+                        // Surrogate pairs come as two escapes, appended one after the other.
+                        if (input.remaining() < 4) throw syntaxError("Unterminated escape");
+
+                        int c = 0;
+
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(input.get(), 16);
+
+                            if (digit < 0) throw syntaxError("Invalid escape");
+
+                            c = (c << 4) | digit;
+                        }
+
+                        builder.append((char) c);
+                        break;
+                    default:
+                        throw syntaxError("Invalid escape");
+                }
+            } else if (b < 0x80) {
+                builder.append((char) b);
+            } else if (b < 0xE0) {
+                checkRemaining(1);
+                builder.append((char) (((b & 0x1F) << 6) | (input.get() & 0x3F)));
+            } else if (b < 0xF0) {
+                checkRemaining(2);
+                builder.append((char) (((b & 0x0F) << 12) | ((input.get() & 0x3F) << 6) | (input.get() & 0x3F)));
+            } else {
+                checkRemaining(3);
+
+                int codePoint = ((b & 0x07) << 18) | ((input.get() & 0x3F) << 12)
+                        | ((input.get() & 0x3F) << 6) | (input.get() & 0x3F);
+
+                if (!Character.isValidCodePoint(codePoint)) throw syntaxError("Invalid UTF-8");
+
+                builder.appendCodePoint(codePoint);
+            }
+        }
+
+        throw syntaxError("Unterminated string");
+    }
+
+    private void checkRemaining(int bytes) throws JSONException {
+        if (input.remaining() < bytes) throw syntaxError("Unterminated string");
+    }
+}
@@ -0,0 +1,212 @@
+package com.mauriciogiordano.easydb.codec;
+
+import java.util.Arrays;
+
+/**
+ * Writes json tokens straight into UTF-8 bytes, without building a tree.
+ *
+ * Commas are handled by the writer, callers only say where objects and...
+ * arrays begin and end. Non finite doubles are written as strings.
+ */
+public class JsonStreamWriter {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private byte[] buffer;
+    private int size = 0;
+
+    /**
+     * True when the next token needs a comma before it.
+     */
+    private boolean needsComma = false;
+
+    public JsonStreamWriter() {
+        this(128);
+    }
+
+    /**
+     * @param capacity Initial size of the buffer.
+     */
+    public JsonStreamWriter(int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+
+    private void write(byte b) {
+        ensure(1);
+        buffer[size++] = b;
+    }
+
+    private void writeAscii(String value) {
+        ensure(value.length());
+
+        for (int i = 0; i < value.length(); i++) {
+            buffer[size++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void beforeValue() {
+        if (needsComma) {
+            write((byte) ',');
+        }
+
+        needsComma = true;
+    }
+
+    public JsonStreamWriter beginObject() {
+        beforeValue();
+        write((byte) '{');
+        needsComma = false;
+        return this;
+    }
+
+    public JsonStreamWriter endObject() {
+        write((byte) '}');
+        needsComma = true;
+        return this;
+    }
+
+    public JsonStreamWriter beginArray() {
+        beforeValue();
+        write((byte) '[');
+        needsComma = false;
+        return this;
+    }
+
+    public JsonStreamWriter endArray() {
+        write((byte) ']');
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Writes the name of the next value inside an object.
+     */
+    public JsonStreamWriter name(String name) {
+        beforeValue();
+        writeString(name);
+        write((byte) ':');
+        needsComma = false;
+        return this;
+    }
+
+    public JsonStreamWriter value(long value) {
+        beforeValue();
+        writeAscii(Long.toString(value));
+        return this;
+    }
+
+    public JsonStreamWriter value(double value) {
+        beforeValue();
+
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            writeString(Double.toString(value));
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            writeAscii(Long.toString((long) value));
+        } else {
+            writeAscii(Double.toString(value));
+        }
+
+        return this;
+    }
+
+    public JsonStreamWriter value(boolean value) {
+        beforeValue();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * Writes a string value, or null.
+     */
+    public JsonStreamWriter value(CharSequence value) {
+        beforeValue();
+
+        if (value == null) {
+            writeAscii("null");
+        } else {
+            writeString(value);
+        }
+
+        return this;
+    }
+
+    public JsonStreamWriter nullValue() {
+        beforeValue();
+        writeAscii("null");
+        return this;
+    }
+
+    /**
+     * Writes a quoted and escaped string encoded in UTF-8.
+     */
+    private void writeString(CharSequence value) {
+        int length = value.length();
+
+        ensure(length + 2);
+        buffer[size++] = '"';
+
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                ensure(2);
+                buffer[size++] = '\\';
+                buffer[size++] = (byte) c;
+            } else if (c < 0x20) {
+                ensure(6);
+                buffer[size++] = '\\';
+
+                switch (c) {
+                    case '\n': buffer[size++] = 'n'; break;
+                    case '\r': buffer[size++] = 'r'; break;
+                    case '\t': buffer[size++] = 't'; break;
+                    case '\b': buffer[size++] = 'b'; break;
+                    case '\f': buffer[size++] = 'f'; break;
+                    default:
+                        buffer[size++] = 'u';
+                        buffer[size++] = '0';
+                        buffer[size++] = '0';
+                        buffer[size++] = HEX[c >> 4];
+                        buffer[size++] = HEX[c & 0xF];
+                }
+            } else if (c < 0x80) {
+                ensure(1);
+                buffer[size++] = (byte) c;
+            } else if (c < 0x800) {
+                ensure(2);
+                buffer[size++] = (byte) (0xC0 | (c >> 6));
+                buffer[size++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+
+                ensure(4);
+                buffer[size++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[size++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                ensure(3);
+                buffer[size++] = (byte) (0xE0 | (c >> 12));
+                buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[size++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        ensure(1);
+        buffer[size++] = '"';
+    }
+
+    /**
+     * @return A copy of everything written so far.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+}
@@ -0,0 +1,14 @@
+package com.mauriciogiordano.easydb.exception;
+
+public class StorageException extends RuntimeException {
+
+    /**
+     * Throws a RuntimeException wrapping an I/O failure of a storage engine.
+     *
+     * @param message What the engine was doing.
+     * @param cause The original exception.
+     */
+    public StorageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,709 @@
+package com.mauriciogiordano.easydb.storage;
+
+import com.mauriciogiordano.easydb.exception.StorageException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only storage engine, every namespace is a log file inside a directory.
+ *
+ * Puts append the new value and deletes append a tombstone, so a write costs...
+ * the size of the record no matter how large the namespace is. The position of...
+ * every live value is kept in memory (rebuilt from the log when the namespace is...
+ * opened) and values are read with positional reads. Files are compacted when...
+ * most of their bytes belong to overwritten or deleted values.
+ *
+ * Record layout: type (1 byte), key length (4), value length (4), CRC32 of key...
+ * and value (4), key, value.
+ */
+public class LogStorageEngine implements StorageEngine {
+
+    protected static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+
+    private static final int HEADER_SIZE = 13;
+
+    /**
+     * Dead bytes needed before a file is considered for compaction.
+     */
+    private static final long COMPACTION_THRESHOLD = 1024 * 1024;
+
+    private final File directory;
+    private final boolean sync;
+    private final Map<String, LogFile> logFiles = new HashMap<>();
+
+    /**
+     * Set when a compacted file replaced a log file that could then not be...
+     * reopened. Writes would go to the replaced file, which is no longer...
+     * linked, and be lost, so nothing is done anymore.
+     */
+    private volatile StorageException failure = null;
+
+    /**
+     * Creates an engine that forces every write to disk.
+     *
+     * @param directory Where the log files are kept.
+     */
+    public LogStorageEngine(File directory) {
+        this(directory, true);
+    }
+
+    /**
+     * @param directory Where the log files are kept.
+     * @param sync Should force every write (or batch) to disk before returning.
+     */
+    public LogStorageEngine(File directory, boolean sync) {
+        this.directory = directory;
+        this.sync = sync;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new StorageException("Could not create " + directory, null);
+        }
+    }
+
+    /**
+     * Position of a live value inside a log file.
+     */
+    protected static class Location {
+        public final long offset;
+        public final int length;
+
+        public Location(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * An open log file and the index of its live values.
+     */
+    protected static class LogFile {
+        public final File file;
+        public final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        public RandomAccessFile randomAccessFile;
+        public FileChannel channel;
+        public Map<String, Location> index = new HashMap<>();
+        public long size;
+        public long deadBytes;
+
+        public LogFile(File file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * Returns the log file of a namespace, opening it if needed.
+     *
+     * @param namespace The namespace to be used.
+     * @param create Should create the file if it does not exist yet.
+     * @return The open log file, or null if it does not exist and create is false.
+     */
+    protected LogFile logFile(String namespace, boolean create) {
+        checkUsable();
+
+        synchronized (logFiles) {
+            LogFile logFile = logFiles.get(namespace);
+
+            if (logFile == null) {
+                logFile = new LogFile(new File(directory, namespace + ".log"));
+
+                // Reading a namespace never written leaves no empty file behind.
+                if (!create && !logFile.file.exists()) return null;
+
+                try {
+                    open(logFile);
+                } catch (IOException e) {
+                    throw new StorageException("Could not open " + logFile.file, e);
+                }
+
+                logFiles.put(namespace, logFile);
+            }
+
+            return logFile;
+        }
+    }
+
+    /**
+     * @throws StorageException in case a log file could not be reopened after...
+     *         being compacted.
+     */
+    private void checkUsable() {
+        if (failure != null) {
+            throw new StorageException("Engine is unusable: " + failure.getMessage(), failure);
+        }
+    }
+
+    /**
+     * Opens the file and rebuilds the index by replaying the log.
+     * A torn record at the end of the file (crash while appending) is cut off.
+     * The log file is only changed if the whole file could be replayed.
+     */
+    private void open(LogFile logFile) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(logFile.file, "rw");
+
+        try {
+            replay(logFile, randomAccessFile);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    private void replay(LogFile logFile, RandomAccessFile randomAccessFile) throws IOException {
+        FileChannel channel = randomAccessFile.getChannel();
+        Map<String, Location> index = new HashMap<>();
+        long deadBytes = 0;
+
+        long length = channel.size();
+        long offset = 0;
+
+        channel.position(0);
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(channel), 64 * 1024));
+
+        CRC32 crc = new CRC32();
+
+        try {
+            while (offset + HEADER_SIZE <= length) {
+                byte type = input.readByte();
+                int keyLength = input.readInt();
+                int valueLength = input.readInt();
+                int checksum = input.readInt();
+
+                if ((type != TYPE_PUT && type != TYPE_DELETE) || keyLength < 0 || valueLength < 0
+                        || offset + HEADER_SIZE + keyLength + valueLength > length) {
+                    break;
+                }
+
+                byte[] key = new byte[keyLength];
+                byte[] value = new byte[valueLength];
+
+                input.readFully(key);
+                input.readFully(value);
+
+                crc.reset();
+                crc.update(key);
+                crc.update(value);
+
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                int recordLength = HEADER_SIZE + keyLength + valueLength;
+
+                Location previous = (type == TYPE_PUT)
+                        ? index.put(new String(key, UTF_8),
+                                new Location(offset + HEADER_SIZE + keyLength, valueLength))
+                        : index.remove(new String(key, UTF_8));
+
+                if (previous != null) {
+                    deadBytes += HEADER_SIZE + keyLength + previous.length;
+                }
+
+                if (type == TYPE_DELETE) {
+                    deadBytes += recordLength;
+                }
+
+                offset += recordLength;
+            }
+        } catch (EOFException e) {
+            // Torn record, handled below.
+        }
+
+        if (offset < length) {
+            channel.truncate(offset);
+        }
+
+        logFile.randomAccessFile = randomAccessFile;
+        logFile.channel = channel;
+        logFile.index = index;
+        logFile.deadBytes = deadBytes;
+        logFile.size = offset;
+    }
+
+    /**
+     * Builds the bytes of a record.
+     */
+    private static ByteBuffer record(byte type, byte[] key, byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        crc.update(value);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + key.length + value.length);
+        buffer.put(type).putInt(key.length).putInt(value.length).putInt((int) crc.getValue());
+        buffer.put(key).put(value);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    /**
+     * Appends records to a log file and updates its index.
+     * Must be called holding the write lock.
+     */
+    private void append(LogFile logFile, List<Operation> operations) throws IOException {
+        int total = 0;
+        int[] keyLengths = new int[operations.size()];
+        List<ByteBuffer> records = new ArrayList<>(operations.size());
+
+        for (int i = 0; i < operations.size(); i++) {
+            Operation operation = operations.get(i);
+            byte[] key = operation.key.getBytes(UTF_8);
+
+            ByteBuffer record = record(operation.value == null ? TYPE_DELETE : TYPE_PUT,
+                    key, operation.value == null ? new byte[0] : operation.value);
+
+            keyLengths[i] = key.length;
+            records.add(record);
+            total += record.remaining();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(total);
+
+        for (ByteBuffer record : records) {
+            buffer.put(record);
+        }
+
+        buffer.flip();
+
+        long position = logFile.size;
+
+        while (buffer.hasRemaining()) {
+            position += logFile.channel.write(buffer, position);
+        }
+
+        if (sync) {
+            logFile.channel.force(false);
+        }
+
+        long offset = logFile.size;
+
+        for (int i = 0; i < operations.size(); i++) {
+            Operation operation = operations.get(i);
+            int recordLength = records.get(i).limit();
+            int keyLength = keyLengths[i];
+
+            Location previous = (operation.value == null)
+                    ? logFile.index.remove(operation.key)
+                    : logFile.index.put(operation.key,
+                            new Location(offset + HEADER_SIZE + keyLength, operation.value.length));
+
+            if (previous != null) {
+                logFile.deadBytes += HEADER_SIZE + keyLength + previous.length;
+            }
+
+            if (operation.value == null) {
+                logFile.deadBytes += recordLength;
+            }
+
+            offset += recordLength;
+        }
+
+        logFile.size = offset;
+
+        if (logFile.deadBytes > COMPACTION_THRESHOLD && logFile.deadBytes > logFile.size / 2) {
+            try {
+                compact(logFile);
+            } catch (IOException e) {
+                // The records are written and the file is still usable, compaction is tried again later.
+                // Failing once the file was replaced throws a StorageException instead.
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log file keeping only live values.
+     * Must be called holding the write lock. The compacted file replaces the...
+     * old one while it is still open, so if anything fails before that the old...
+     * one is kept and stays usable (IOException). Once it is replaced the old...
+     * one can't be written anymore, so failing to open the new one makes the...
+     * whole engine unusable (StorageException).
+     */
+    private void compact(LogFile logFile) throws IOException {
+        File compacted = new File(logFile.file.getPath() + ".compact");
+        RandomAccessFile output = new RandomAccessFile(compacted, "rw");
+
+        try {
+            output.setLength(0);
+            FileChannel channel = output.getChannel();
+            long position = 0;
+
+            for (Map.Entry<String, Location> entry : logFile.index.entrySet()) {
+                byte[] value = new byte[entry.getValue().length];
+                readFully(logFile.channel, ByteBuffer.wrap(value), entry.getValue().offset);
+
+                ByteBuffer record = record(TYPE_PUT, entry.getKey().getBytes(UTF_8), value);
+
+                while (record.hasRemaining()) {
+                    position += channel.write(record, position);
+                }
+            }
+
+            channel.force(false);
+        } catch (IOException e) {
+            output.close();
+            compacted.delete();
+            throw e;
+        }
+
+        output.close();
+
+        if (!compacted.renameTo(logFile.file)) {
+            compacted.delete();
+            throw new IOException("Could not replace " + logFile.file);
+        }
+
+        syncDirectory();
+
+        RandomAccessFile replaced = logFile.randomAccessFile;
+
+        try {
+            open(logFile);
+            onReopened(logFile);
+        } catch (IOException | RuntimeException e) {
+            failure = new StorageException("Could not reopen " + logFile.file + " after compacting it", e);
+            throw failure;
+        }
+
+        try {
+            replaced.close();
+        } catch (IOException e) {
+            // Already replaced, nothing is lost.
+        }
+    }
+
+    /**
+     * Forces the entries of the directory to disk, so a rename survives a crash.
+     * Some platforms can't open a directory (Windows, Android before 8.0),...
+     * there the rename is as durable as the file system makes it.
+     */
+    private void syncDirectory() {
+        try {
+            FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException | LinkageError e) {
+            // Not supported here.
+        }
+    }
+
+    /**
+     * Called after a log file was replaced by its compacted version.
+     * Holds the write lock.
+     *
+     * @param logFile The log file.
+     */
+    protected void onReopened(LogFile logFile) {
+    }
+
+    /**
+     * Reads bytes at a given position, looping until the buffer is full.
+     */
+    protected static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+
+            if (read < 0) {
+                throw new EOFException();
+            }
+
+            position += read;
+        }
+    }
+
+    /**
+     * Reads a value. Called holding the read lock.
+     *
+     * @param logFile The log file.
+     * @param location Where the value is.
+     * @return The value.
+     */
+    protected ByteBuffer readValue(LogFile logFile, Location location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        readFully(logFile.channel, buffer, location.offset);
+        buffer.flip();
+
+        return buffer;
+    }
+
+    @Override
+    public ByteBuffer get(String namespace, String key) {
+        LogFile logFile = logFile(namespace, false);
+
+        if (logFile == null) return null;
+
+        logFile.lock.readLock().lock();
+
+        try {
+            Location location = logFile.index.get(key);
+
+            return (location == null) ? null : readValue(logFile, location);
+        } catch (IOException e) {
+            throw new StorageException("Could not read " + key + " from " + namespace, e);
+        } finally {
+            logFile.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ByteBuffer[] getAll(String namespace, List<String> keys) {
+        LogFile logFile = logFile(namespace, false);
+        ByteBuffer[] values = new ByteBuffer[keys.size()];
+
+        if (logFile == null) return values;
+
+        logFile.lock.readLock().lock();
+
+        try {
+            for (int i = 0; i < values.length; i++) {
+                Location location = logFile.index.get(keys.get(i));
+
+                values[i] = (location == null) ? null : readValue(logFile, location);
+            }
+
+            return values;
+        } catch (IOException e) {
+            throw new StorageException("Could not read from " + namespace, e);
+        } finally {
+            logFile.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(String namespace, String key, byte[] value) {
+        List<Operation> operations = new ArrayList<>(1);
+        operations.add(new Operation(key, value));
+
+        write(namespace, operations);
+    }
+
+    @Override
+    public void delete(String namespace, String key) {
+        List<Operation> operations = new ArrayList<>(1);
+        operations.add(new Operation(key, null));
+
+        write(namespace, operations);
+    }
+
+    private void write(String namespace, List<Operation> operations) {
+        boolean puts = false;
+
+        for (Operation operation : operations) {
+            puts |= operation.value != null;
+        }
+
+        // Only deleting from a namespace never written has nothing to do.
+        LogFile logFile = logFile(namespace, puts);
+
+        if (logFile == null) return;
+
+        logFile.lock.writeLock().lock();
+
+        try {
+            checkUsable();
+
+            List<Operation> toWrite = new ArrayList<>(operations.size());
+            Set<String> written = new HashSet<>();
+
+            for (Operation operation : operations) {
+                // Deleting something that does not exist needs no tombstone.
+                if (operation.value != null || logFile.index.containsKey(operation.key)
+                        || written.contains(operation.key)) {
+                    toWrite.add(operation);
+                    written.add(operation.key);
+                }
+            }
+
+            if (!toWrite.isEmpty()) {
+                append(logFile, toWrite);
+            }
+        } catch (IOException e) {
+            throw new StorageException("Could not write to " + namespace, e);
+        } finally {
+            logFile.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void scan(String namespace, String prefix, Visitor visitor) {
+        LogFile logFile = logFile(namespace, false);
+
+        if (logFile == null) return;
+
+        logFile.lock.readLock().lock();
+
+        try {
+            for (Map.Entry<String, Location> entry : logFile.index.entrySet()) {
+                if (prefix != null && !entry.getKey().startsWith(prefix)) continue;
+
+                if (!visitor.visit(entry.getKey(), readValue(logFile, entry.getValue()))) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            throw new StorageException("Could not scan " + namespace, e);
+        } finally {
+            logFile.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the log file of a namespace keeping only live values.
+     *
+     * @param namespace The namespace to be used.
+     */
+    public void compact(String namespace) {
+        LogFile logFile = logFile(namespace, false);
+
+        if (logFile == null) return;
+
+        logFile.lock.writeLock().lock();
+
+        try {
+            checkUsable();
+            compact(logFile);
+        } catch (IOException e) {
+            throw new StorageException("Could not compact " + namespace, e);
+        } finally {
+            logFile.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Batch batch() {
+        return new LogBatch();
+    }
+
+    @Override
+    public void flush() {
+        checkUsable();
+
+        if (sync) return;
+
+        synchronized (logFiles) {
+            for (LogFile logFile : logFiles.values()) {
+                logFile.lock.writeLock().lock();
+
+                try {
+                    logFile.channel.force(false);
+                } catch (IOException e) {
+                    throw new StorageException("Could not flush " + logFile.file, e);
+                } finally {
+                    logFile.lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (logFiles) {
+            for (LogFile logFile : logFiles.values()) {
+                logFile.lock.writeLock().lock();
+
+                try {
+                    logFile.randomAccessFile.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    logFile.lock.writeLock().unlock();
+                }
+            }
+
+            logFiles.clear();
+        }
+    }
+
+    /**
+     * A pending put (value != null) or delete (value == null).
+     */
+    private static class Operation {
+        final String key;
+        final byte[] value;
+
+        Operation(String key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Batch appending every operation of a namespace with a single write.
+     */
+    private class LogBatch implements Batch {
+
+        private final Map<String, List<Operation>> operations = new LinkedHashMap<>();
+
+        private List<Operation> operations(String namespace) {
+            List<Operation> list = operations.get(namespace);
+
+            if (list == null) {
+                list = new ArrayList<>();
+                operations.put(namespace, list);
+            }
+
+            return list;
+        }
+
+        @Override
+        public Batch put(String namespace, String key, byte[] value) {
+            operations(namespace).add(new Operation(key, value));
+            return this;
+        }
+
+        @Override
+        public Batch delete(String namespace, String key) {
+            operations(namespace).add(new Operation(key, null));
+            return this;
+        }
+
+        /**
+         * Appends the operations of every namespace.
+         *
+         * @return True if everything was written and false if a namespace...
+         *         could not be written (namespaces before it are).
+         */
+        @Override
+        public boolean commit() {
+            try {
+                for (Map.Entry<String, List<Operation>> entry : operations.entrySet()) {
+                    write(entry.getKey(), entry.getValue());
+                }
+
+                return true;
+            } catch (StorageException e) {
+                return false;
+            } finally {
+                operations.clear();
+            }
+        }
+    }
+}
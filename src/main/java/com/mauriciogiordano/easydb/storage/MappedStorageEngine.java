@@ -0,0 +1,165 @@
+package com.mauriciogiordano.easydb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Read-optimized storage engine for data that is written once and read many times.
+ *
+ * Uses the same log files as LogStorageEngine, but values are returned as...
+ * read-only views over a memory-mapped copy of the file instead of being read...
+ * into the heap, so decoding works straight from the page cache. Only the keys...
+ * and offsets are kept in memory. The mapping is extended lazily when a read...
+ * reaches past it (after new writes): only the bytes appended since are...
+ * mapped, and the whole file is mapped again once it doubled, so the work...
+ * stays proportional to what was written instead of to the file size.
+ *
+ * Appended regions are merged as they grow, each one kept larger than all...
+ * the later ones together, so a file is never split in more than O(log n)...
+ * mappings however many small writes were read in between, and each byte...
+ * is mapped again O(log n) times.
+ */
+public class MappedStorageEngine extends LogStorageEngine {
+
+    /**
+     * Mapped regions of a log file, by position. The first one starts at 0...
+     * and the others map what was appended after it, from the largest to...
+     * the smallest.
+     */
+    private static final class Mapping {
+        final NavigableMap<Long, MappedByteBuffer> regions = new TreeMap<>();
+
+        /**
+         * Size of the file when it was last mapped whole, and how far it is mapped.
+         */
+        long base = 0;
+        long end = 0;
+    }
+
+    private final Map<LogFile, Mapping> mappings = new IdentityHashMap<>();
+
+    /**
+     * Creates an engine that forces every write to disk.
+     *
+     * @param directory Where the log files are kept.
+     */
+    public MappedStorageEngine(File directory) {
+        super(directory);
+    }
+
+    /**
+     * @param directory Where the log files are kept.
+     * @param sync Should force every write (or batch) to disk before returning.
+     */
+    public MappedStorageEngine(File directory, boolean sync) {
+        super(directory, sync);
+    }
+
+    /**
+     * Maps a region of a log file, read-only.
+     *
+     * @param logFile The log file.
+     * @param position Where the region starts.
+     * @param size Length of the region.
+     * @return The mapping.
+     */
+    protected MappedByteBuffer map(LogFile logFile, long position, long size) throws IOException {
+        return logFile.channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    /**
+     * Returns the mapped region holding a value, mapping it if needed.
+     *
+     * @return The region and where it starts, null if it can't be mapped.
+     */
+    private Map.Entry<Long, MappedByteBuffer> region(LogFile logFile, long offset, long end) throws IOException {
+        synchronized (mappings) {
+            Mapping mapping = mappings.get(logFile);
+
+            if (mapping == null) {
+                mapping = new Mapping();
+                mappings.put(logFile, mapping);
+            }
+
+            Map.Entry<Long, MappedByteBuffer> region = mapping.regions.floorEntry(offset);
+
+            if (region != null && region.getKey() + region.getValue().capacity() >= end) {
+                return region;
+            }
+
+            long size = logFile.size;
+
+            if (size < end) return null;
+
+            if (size >= 2 * mapping.base) {
+                // Grown enough to be worth a single region again.
+                if (size > Integer.MAX_VALUE) return null;
+
+                mapping.regions.clear();
+                mapping.regions.put(0L, map(logFile, 0, size));
+                mapping.base = size;
+            } else {
+                // Only the bytes appended since the last mapping (values never span two regions).
+                long start = Math.min(offset, mapping.end);
+
+                // From the first appended region not larger than everything after it, replacing the rest.
+                for (Map.Entry<Long, MappedByteBuffer> appended : mapping.regions.tailMap(0L, false).entrySet()) {
+                    long after = size - appended.getKey() - appended.getValue().capacity();
+
+                    if (appended.getValue().capacity() <= after) {
+                        start = Math.min(start, appended.getKey());
+                        break;
+                    }
+                }
+
+                if (size - start > Integer.MAX_VALUE) return null;
+
+                mapping.regions.tailMap(start, true).clear();
+                mapping.regions.put(start, map(logFile, start, size - start));
+            }
+
+            mapping.end = size;
+
+            return mapping.regions.floorEntry(offset);
+        }
+    }
+
+    @Override
+    protected ByteBuffer readValue(LogFile logFile, Location location) throws IOException {
+        long end = location.offset + location.length;
+        Map.Entry<Long, MappedByteBuffer> region = region(logFile, location.offset, end);
+
+        if (region == null) {
+            return super.readValue(logFile, location);
+        }
+
+        ByteBuffer view = region.getValue().duplicate();
+        view.limit((int) (end - region.getKey()));
+        view.position((int) (location.offset - region.getKey()));
+
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    protected void onReopened(LogFile logFile) {
+        synchronized (mappings) {
+            mappings.remove(logFile);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (mappings) {
+            mappings.clear();
+        }
+
+        super.close();
+    }
+}
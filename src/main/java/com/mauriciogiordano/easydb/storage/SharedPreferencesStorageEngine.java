@@ -0,0 +1,176 @@
+package com.mauriciogiordano.easydb.storage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Default storage engine, every namespace is a SharedPreferences file...
+ * and every value is stored as a string.
+ *
+ * Values that are not valid UTF-8 (binary records) are stored in Base64...
+ * behind BINARY_PREFIX, a private use character.
+ */
+public class SharedPreferencesStorageEngine implements StorageEngine {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String BINARY_PREFIX = "\uE000";
+
+    private final Context context;
+
+    /**
+     * @param context Application context to use inside sharedPreferences.
+     */
+    public SharedPreferencesStorageEngine(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Loads a reference to the SharedPreferences for a given namespace.
+     *
+     * @param namespace The namespace to be used.
+     * @return The sharedPreferences object.
+     */
+    protected SharedPreferences loadSharedPreferences(String namespace) {
+        return context.getSharedPreferences(namespace, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Converts a value into the string kept in SharedPreferences.
+     */
+    private static String toString(byte[] value) {
+        try {
+            return UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(value))
+                    .toString();
+        } catch (CharacterCodingException e) {
+            return BINARY_PREFIX + Base64.encodeToString(value, Base64.NO_WRAP);
+        }
+    }
+
+    /**
+     * Converts a string kept in SharedPreferences back into the value.
+     */
+    private static ByteBuffer toValue(String value) {
+        if (value.startsWith(BINARY_PREFIX)) {
+            return ByteBuffer.wrap(Base64.decode(value.substring(BINARY_PREFIX.length()), Base64.NO_WRAP));
+        }
+
+        return ByteBuffer.wrap(value.getBytes(UTF_8));
+    }
+
+    @Override
+    public ByteBuffer get(String namespace, String key) {
+        String value = loadSharedPreferences(namespace).getString(key, null);
+
+        return (value == null) ? null : toValue(value);
+    }
+
+    @Override
+    public ByteBuffer[] getAll(String namespace, List<String> keys) {
+        SharedPreferences sharedPreferences = loadSharedPreferences(namespace);
+        ByteBuffer[] values = new ByteBuffer[keys.size()];
+
+        for (int i = 0; i < values.length; i++) {
+            String value = sharedPreferences.getString(keys.get(i), null);
+
+            values[i] = (value == null) ? null : toValue(value);
+        }
+
+        return values;
+    }
+
+    @Override
+    public void put(String namespace, String key, byte[] value) {
+        loadSharedPreferences(namespace).edit().putString(key, toString(value)).commit();
+    }
+
+    @Override
+    public void delete(String namespace, String key) {
+        loadSharedPreferences(namespace).edit().remove(key).commit();
+    }
+
+    @Override
+    public void scan(String namespace, String prefix, Visitor visitor) {
+        Map<String, ?> values = loadSharedPreferences(namespace).getAll();
+
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            if (!(entry.getValue() instanceof String)) continue;
+            if (prefix != null && !entry.getKey().startsWith(prefix)) continue;
+
+            if (!visitor.visit(entry.getKey(), toValue((String) entry.getValue()))) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public Batch batch() {
+        return new SharedPreferencesBatch();
+    }
+
+    @Override
+    public void flush() {
+        // Every write is committed synchronously.
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release, SharedPreferences are managed by the context.
+    }
+
+    /**
+     * Batch holding one editor per namespace.
+     */
+    private class SharedPreferencesBatch implements Batch {
+
+        private final Map<String, SharedPreferences.Editor> editors = new LinkedHashMap<>();
+
+        private SharedPreferences.Editor editor(String namespace) {
+            SharedPreferences.Editor editor = editors.get(namespace);
+
+            if (editor == null) {
+                editor = loadSharedPreferences(namespace).edit();
+                editors.put(namespace, editor);
+            }
+
+            return editor;
+        }
+
+        @Override
+        public Batch put(String namespace, String key, byte[] value) {
+            editor(namespace).putString(key, SharedPreferencesStorageEngine.toString(value));
+            return this;
+        }
+
+        @Override
+        public Batch delete(String namespace, String key) {
+            editor(namespace).remove(key);
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            boolean success = true;
+
+            for (SharedPreferences.Editor editor : editors.values()) {
+                success &= editor.commit();
+            }
+
+            editors.clear();
+
+            return success;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.mauriciogiordano.easydb.storage;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Storage engine used by the models to persist their data.
+ *
+ * Every value lives inside a namespace (one per model class and...
+ * purpose, e.g. "object" or "objectList") and is identified by a key.
+ * Implementations must be safe to use from multiple threads.
+ */
+public interface StorageEngine {
+
+    /**
+     * Reads a value.
+     *
+     * The returned buffer is positioned at the start of the value and...
+     * may be a read-only view over memory owned by the engine, so it must...
+     * not be kept after the value is written again.
+     *
+     * @param namespace The namespace to be used.
+     * @param key The value's key.
+     * @return The value if found and null otherwise.
+     */
+    ByteBuffer get(String namespace, String key);
+
+    /**
+     * Reads many values of a namespace at once.
+     *
+     * @param namespace The namespace to be used.
+     * @param keys The values' keys.
+     * @return The values, null for keys not found, in the order of the keys.
+     * @see #get(String, String)
+     */
+    ByteBuffer[] getAll(String namespace, List<String> keys);
+
+    /**
+     * Writes a value, replacing any previous one.
+     *
+     * @param namespace The namespace to be used.
+     * @param key The value's key.
+     * @param value The value to be stored.
+     */
+    void put(String namespace, String key, byte[] value);
+
+    /**
+     * Deletes a value. Does nothing if the key does not exist.
+     *
+     * @param namespace The namespace to be used.
+     * @param key The value's key.
+     */
+    void delete(String namespace, String key);
+
+    /**
+     * Visits every value of a namespace whose key starts with prefix.
+     *
+     * @param namespace The namespace to be used.
+     * @param prefix Only keys starting with it are visited (null or empty for all).
+     * @param visitor Called once per value, returning false stops the scan.
+     */
+    void scan(String namespace, String prefix, Visitor visitor);
+
+    /**
+     * Starts a batch of writes that are only applied on Batch#commit().
+     *
+     * @return A new batch.
+     */
+    Batch batch();
+
+    /**
+     * Blocks until every write made before the call is durably stored.
+     */
+    void flush();
+
+    /**
+     * Releases any resource held by the engine.
+     */
+    void close();
+
+    /**
+     * Callback used by StorageEngine#scan.
+     */
+    interface Visitor {
+
+        /**
+         * @param key The value's key.
+         * @param value The value (see StorageEngine#get).
+         * @return True to keep scanning and false to stop.
+         */
+        boolean visit(String key, ByteBuffer value);
+    }
+
+    /**
+     * Group of writes, possibly across namespaces.
+     */
+    interface Batch {
+
+        /**
+         * Queues a write.
+         *
+         * @param namespace The namespace to be used.
+         * @param key The value's key.
+         * @param value The value to be stored.
+         * @return The batch itself.
+         */
+        Batch put(String namespace, String key, byte[] value);
+
+        /**
+         * Queues a delete.
+         *
+         * @param namespace The namespace to be used.
+         * @param key The value's key.
+         * @return The batch itself.
+         */
+        Batch delete(String namespace, String key);
+
+        /**
+         * Applies every queued operation, one namespace after the other in...
+         * the order they were first used. Not atomic across namespaces: if...
+         * it fails or the process dies, the namespaces before may be written...
+         * and the rest not, so callers queue first what is safe to find alone.
+         *
+         * @return True if everything was written successfully and false otherwise.
+         */
+        boolean commit();
+    }
+}
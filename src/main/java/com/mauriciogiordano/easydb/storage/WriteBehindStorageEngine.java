@@ -0,0 +1,409 @@
+package com.mauriciogiordano.easydb.storage;
+
+import com.mauriciogiordano.easydb.exception.StorageException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage engine that queues writes in memory and applies them to another...
+ * engine from a background thread, so saving does not block the caller.
+ *
+ * Pending writes are keyed by namespace and key: writing the same key again...
+ * before it is flushed replaces the pending value, so values saved repeatedly...
+ * reach the disk once per flush. Reads see pending writes. Call flush() to...
+ * wait until everything written so far is stored.
+ *
+ * Writes that fail stay queued and are retried, waiting longer after every...
+ * failure. After MAX_ATTEMPTS failures in a row the background thread stops...
+ * until the next write; flush() and close() throw the failure.
+ */
+public class WriteBehindStorageEngine implements StorageEngine {
+
+    /**
+     * Pending value of a deleted key.
+     */
+    private static final byte[] TOMBSTONE = new byte[0];
+
+    /**
+     * Failed flushes in a row before the background thread gives up.
+     */
+    static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * Longest wait between two attempts.
+     */
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    private final StorageEngine delegate;
+    private final long delayMillis;
+
+    /**
+     * Writes not yet handed to the delegate, and writes being handed.
+     * Both guarded by this.
+     */
+    private Map<String, Map<String, byte[]>> pending = new LinkedHashMap<>();
+    private Map<String, Map<String, byte[]>> flushing = new HashMap<>();
+
+    private final Object flushLock = new Object();
+    private Thread writer = null;
+    private boolean closed = false;
+
+    /**
+     * Creates an engine that flushes 100ms after the first pending write.
+     *
+     * @param delegate The engine that actually stores the values.
+     */
+    public WriteBehindStorageEngine(StorageEngine delegate) {
+        this(delegate, 100);
+    }
+
+    /**
+     * @param delegate The engine that actually stores the values.
+     * @param delayMillis How long writes are held (and coalesced) before being flushed.
+     */
+    public WriteBehindStorageEngine(StorageEngine delegate, long delayMillis) {
+        this.delegate = delegate;
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * Looks for a pending value. Must be called holding this.
+     *
+     * @return The pending value, TOMBSTONE if deleted or null if not pending.
+     */
+    private byte[] pendingValue(String namespace, String key) {
+        Map<String, byte[]> values = pending.get(namespace);
+        byte[] value = (values == null) ? null : values.get(key);
+
+        if (value == null) {
+            values = flushing.get(namespace);
+            value = (values == null) ? null : values.get(key);
+        }
+
+        return value;
+    }
+
+    @Override
+    public ByteBuffer get(String namespace, String key) {
+        synchronized (this) {
+            byte[] value = pendingValue(namespace, key);
+
+            if (value != null) {
+                return (value == TOMBSTONE) ? null : ByteBuffer.wrap(value).asReadOnlyBuffer();
+            }
+        }
+
+        return delegate.get(namespace, key);
+    }
+
+    @Override
+    public ByteBuffer[] getAll(String namespace, List<String> keys) {
+        ByteBuffer[] values = new ByteBuffer[keys.size()];
+        List<String> missing = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+
+        synchronized (this) {
+            for (int i = 0; i < values.length; i++) {
+                byte[] value = pendingValue(namespace, keys.get(i));
+
+                if (value == null) {
+                    missing.add(keys.get(i));
+                    positions.add(i);
+                } else if (value != TOMBSTONE) {
+                    values[i] = ByteBuffer.wrap(value).asReadOnlyBuffer();
+                }
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            ByteBuffer[] stored = delegate.getAll(namespace, missing);
+
+            for (int i = 0; i < stored.length; i++) {
+                values[positions.get(i)] = stored[i];
+            }
+        }
+
+        return values;
+    }
+
+    private void enqueue(String namespace, String key, byte[] value) {
+        Map<String, byte[]> values = pending.get(namespace);
+
+        if (values == null) {
+            values = new LinkedHashMap<>();
+            pending.put(namespace, values);
+        }
+
+        values.put(key, value);
+    }
+
+    /**
+     * Starts the writer thread if needed and wakes it up. Must be called holding this.
+     */
+    private void schedule() {
+        if (closed) {
+            throw new IllegalStateException("Storage engine is closed");
+        }
+
+        if (writer == null) {
+            writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeLoop();
+                }
+            }, "easydb-write-behind");
+
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        notifyAll();
+    }
+
+    @Override
+    public void put(String namespace, String key, byte[] value) {
+        synchronized (this) {
+            enqueue(namespace, key, value);
+            schedule();
+        }
+    }
+
+    @Override
+    public void delete(String namespace, String key) {
+        synchronized (this) {
+            enqueue(namespace, key, TOMBSTONE);
+            schedule();
+        }
+    }
+
+    @Override
+    public void scan(String namespace, String prefix, final Visitor visitor) {
+        final Map<String, byte[]> overlay = new LinkedHashMap<>();
+
+        synchronized (this) {
+            Map<String, byte[]> values = flushing.get(namespace);
+            if (values != null) overlay.putAll(values);
+
+            values = pending.get(namespace);
+            if (values != null) overlay.putAll(values);
+        }
+
+        final boolean[] stopped = {false};
+
+        delegate.scan(namespace, prefix, new Visitor() {
+            @Override
+            public boolean visit(String key, ByteBuffer value) {
+                if (overlay.containsKey(key)) return true;
+
+                stopped[0] = !visitor.visit(key, value);
+                return !stopped[0];
+            }
+        });
+
+        if (stopped[0]) return;
+
+        for (Map.Entry<String, byte[]> entry : overlay.entrySet()) {
+            if (entry.getValue() == TOMBSTONE) continue;
+            if (prefix != null && !entry.getKey().startsWith(prefix)) continue;
+
+            if (!visitor.visit(entry.getKey(), ByteBuffer.wrap(entry.getValue()).asReadOnlyBuffer())) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public Batch batch() {
+        return new Batch() {
+            private final Map<String, Map<String, byte[]>> operations = new LinkedHashMap<>();
+
+            private Map<String, byte[]> operations(String namespace) {
+                Map<String, byte[]> values = operations.get(namespace);
+
+                if (values == null) {
+                    values = new LinkedHashMap<>();
+                    operations.put(namespace, values);
+                }
+
+                return values;
+            }
+
+            @Override
+            public Batch put(String namespace, String key, byte[] value) {
+                operations(namespace).put(key, value);
+                return this;
+            }
+
+            @Override
+            public Batch delete(String namespace, String key) {
+                operations(namespace).put(key, TOMBSTONE);
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                synchronized (WriteBehindStorageEngine.this) {
+                    for (Map.Entry<String, Map<String, byte[]>> namespace : operations.entrySet()) {
+                        for (Map.Entry<String, byte[]> entry : namespace.getValue().entrySet()) {
+                            enqueue(namespace.getKey(), entry.getKey(), entry.getValue());
+                        }
+                    }
+
+                    schedule();
+                }
+
+                operations.clear();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Background thread: waits for writes, lets them pile up for delayMillis and flushes.
+     * Failed writes are retried with a growing wait, up to MAX_ATTEMPTS times.
+     */
+    private void writeLoop() {
+        int failures = 0;
+
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (pending.isEmpty() && !closed) {
+                        wait();
+                    }
+
+                    if (closed) return;
+                }
+
+                Thread.sleep(delayMillis);
+
+                try {
+                    flushPending();
+                    failures = 0;
+                } catch (RuntimeException e) {
+                    // Writes were put back in the queue, flush() and close() throw if they still fail.
+                    if (++failures >= MAX_ATTEMPTS) return;
+
+                    backOff(Math.min(Math.max(delayMillis, 10) << failures, MAX_BACKOFF_MILLIS));
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped.
+        } finally {
+            synchronized (this) {
+                // The next write starts a new thread.
+                if (writer == Thread.currentThread()) writer = null;
+            }
+        }
+    }
+
+    /**
+     * Waits before the next attempt, unless the engine is closed meanwhile.
+     */
+    private synchronized void backOff(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        long left = millis;
+
+        while (!closed && left > 0) {
+            wait(left);
+            left = deadline - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Hands every pending write to the delegate in a single batch.
+     */
+    private void flushPending() {
+        synchronized (flushLock) {
+            synchronized (this) {
+                if (pending.isEmpty()) return;
+
+                flushing = pending;
+                pending = new LinkedHashMap<>();
+            }
+
+            try {
+                Batch batch = delegate.batch();
+
+                for (Map.Entry<String, Map<String, byte[]>> namespace : flushing.entrySet()) {
+                    for (Map.Entry<String, byte[]> entry : namespace.getValue().entrySet()) {
+                        if (entry.getValue() == TOMBSTONE) {
+                            batch.delete(namespace.getKey(), entry.getKey());
+                        } else {
+                            batch.put(namespace.getKey(), entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+
+                if (!batch.commit()) {
+                    throw new StorageException("Could not commit pending writes", null);
+                }
+
+                delegate.flush();
+
+                synchronized (this) {
+                    flushing = new HashMap<>();
+                }
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    // Newer writes win over the ones that failed.
+                    Map<String, Map<String, byte[]>> failed = flushing;
+                    Map<String, Map<String, byte[]>> newer = pending;
+
+                    pending = failed;
+                    flushing = new HashMap<>();
+
+                    for (Map.Entry<String, Map<String, byte[]>> namespace : newer.entrySet()) {
+                        for (Map.Entry<String, byte[]> entry : namespace.getValue().entrySet()) {
+                            enqueue(namespace.getKey(), entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Blocks until every write made before the call is stored by the delegate.
+     *
+     * @throws StorageException in case the writes could not be stored, they...
+     *         stay queued.
+     */
+    @Override
+    public void flush() {
+        try {
+            flushPending();
+        } catch (StorageException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new StorageException("Could not flush pending writes", e);
+        }
+    }
+
+    /**
+     * Flushes pending writes, stops the writer thread and closes the delegate.
+     *
+     * @throws StorageException in case the pending writes could not be stored,...
+     *         they are lost.
+     */
+    @Override
+    public void close() {
+        try {
+            flush();
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+
+            delegate.close();
+        }
+    }
+}